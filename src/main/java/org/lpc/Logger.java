@@ -1,5 +1,30 @@
 package org.lpc;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous, level-filtered logger
+ * <p>
+ * Messages are formatted on the calling thread (only when their level is enabled) and handed to a
+ * background writer thread, which drains them in batches into a buffered channel on stdout.
+ * Supplier overloads defer building the message until we know it will actually be written.
+ * </p>
+ */
 public class Logger {
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_RED = "\u001B[31m";
@@ -8,46 +33,186 @@ public class Logger {
     public static final String ANSI_BLUE = "\u001B[34m";
     public static final String ANSI_PURPLE = "\u001B[35m";
 
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static volatile Level level = Level.INFO;
+
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final Object flushLock = new Object();
+    private static final AtomicLong submitted = new AtomicLong();
+    private static long written;   // guarded by flushLock
+
+    static {
+        Thread writer = new Thread(Logger::writeLoop, "logger-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush, "logger-flush"));
+    }
+
+    // ----------------------------- Levels -----------------------------
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() >= level.ordinal() && l != Level.OFF;
+    }
+
+    // ----------------------------- Logging -----------------------------
+
     public static void startColor(String color) {
-        System.out.print(color);
+        enqueue(color);
     }
 
     public static void endColor() {
-        System.out.print(ANSI_RESET);
+        enqueue(ANSI_RESET);
     }
 
     public static void log(Object... message) {
+        if (!isEnabled(Level.INFO)) return;
+        StringBuilder sb = new StringBuilder();
         for (Object m : message) {
-            System.out.print(m.toString());
+            sb.append(m);
         }
-        System.out.println();
+        enqueue(sb.append('\n').toString());
+    }
+
+    public static void log(Supplier<?> message) {
+        if (!isEnabled(Level.INFO)) return;
+        enqueue(message.get() + "\n");
     }
 
     public static void logLnColor(String color, Object... message) {
-        startColor(color);
+        if (!isEnabled(Level.INFO)) return;
+        StringBuilder sb = new StringBuilder(color);
         for (Object m : message) {
-            System.out.print(m.toString());
+            sb.append(m);
         }
-        endColor();
-        System.out.println();
+        enqueue(sb.append(ANSI_RESET).append('\n').toString());
     }
 
     public static void logErr(Object... message) {
+        if (!isEnabled(Level.ERROR)) return;
+        StringBuilder sb = new StringBuilder();
         for (Object m : message) {
-            startColor(ANSI_RED);
-            System.out.println(m.toString());
-            endColor();
+            sb.append(ANSI_RED).append(m).append(ANSI_RESET).append('\n');
         }
-        System.err.println();
+        enqueue(sb.toString());
+    }
+
+    public static void logErr(Supplier<?> message) {
+        if (!isEnabled(Level.ERROR)) return;
+        enqueue(ANSI_RED + message.get() + ANSI_RESET + "\n");
     }
 
     public static void logLn(Object... message) {
+        if (!isEnabled(Level.INFO)) return;
+        StringBuilder sb = new StringBuilder();
         for (Object m : message) {
-            System.out.println(m.toString());
+            sb.append(m).append('\n');
+        }
+        enqueue(sb.append('\n').toString());
+    }
+
+    public static void warn(Supplier<?> message) {
+        if (!isEnabled(Level.WARN)) return;
+        enqueue(ANSI_YELLOW + message.get() + ANSI_RESET + "\n");
+    }
+
+    public static void debug(Supplier<?> message) {
+        if (!isEnabled(Level.DEBUG)) return;
+        enqueue(message.get() + "\n");
+    }
+
+    public static void trace(Supplier<?> message) {
+        if (!isEnabled(Level.TRACE)) return;
+        enqueue(message.get() + "\n");
+    }
+
+    /**
+     * Blocks until every message submitted before this call has been written out
+     */
+    public static void flush() {
+        synchronized (flushLock) {
+            long target = submitted.get();
+            while (written < target) {
+                try {
+                    flushLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // ----------------------------- Writer -----------------------------
+
+    private static void enqueue(String text) {
+        try {
+            queue.put(text);
+            submitted.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        System.out.println();
     }
 
+    private static void writeLoop() {
+        WritableByteChannel out = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        List<String> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                for (String text : batch) {
+                    CharBuffer chars = CharBuffer.wrap(text);
+                    while (true) {
+                        CoderResult result = encoder.encode(chars, buffer, true);
+                        if (!result.isOverflow()) break;
+                        drain(out, buffer);
+                    }
+                    encoder.reset();
+                }
+                drain(out, buffer);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                buffer.clear();
+            }
+
+            synchronized (flushLock) {
+                written += batch.size();
+                flushLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private static void drain(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // ----------------------------- Formatting -----------------------------
+
     public static String strLine(String text, int totalLength) {
         if (text.length() >= totalLength) {
             return text + "\n";
@@ -18,11 +18,11 @@ public class Main {
 
         cpu.loadProgram("src/main/resources/programs/fib.asm");
 
-        log(ram.dump());
+        log(ram::dump);
 
         cpu.run();
 
-        log(ram.dump());
+        log(ram::dump);
 
         motherboard.shutdown();
     }
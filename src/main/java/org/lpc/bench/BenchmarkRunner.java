@@ -0,0 +1,272 @@
+package org.lpc.bench;
+
+import org.lpc.Logger;
+import org.lpc.computer.CPU.CPU;
+import org.lpc.computer.CPU.Encoding;
+import org.lpc.computer.Motherboard;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Runs the guest benchmark corpus, checks every result and instruction count and compares throughput against a baseline
+ * <p>
+ * Every {@code .asm} file in the corpus directory is a benchmark. Its header comments give the machine size and
+ * the expected results, which the assembler skips as ordinary comments:
+ * <pre>
+ * ; @memory stack=1024 data=4096 program=1024
+ * ; @expect 1100 = 1028
+ * </pre>
+ * Each benchmark is assembled and run a few times to warm up, then timed over several runs; the fastest run counts.
+ * A benchmark fails when a result word is wrong or it dispatches a different number of instructions than the committed
+ * baseline recorded (e.g. after a change to the assembler). Both don't depend on the host.
+ * </p>
+ * <p>
+ * MIPS do, so they are compared with a baseline measured on this host, which isn't committed ({@code build/}).
+ * A drop of more than the threshold is re-measured twice and then reported as SLOWER, without failing the run.
+ * </p>
+ * <pre>
+ * BenchmarkRunner [--dir path] [--baseline file] [--mips-baseline file] [--update] [--threshold 0.2] [--runs 5]
+ *                 [--warmup 3] [--compact]
+ * </pre>
+ * {@code --update} writes the measured instruction counts and MIPS as the new baselines instead of comparing.
+ * Exits with 1 if anything failed.
+ */
+public class BenchmarkRunner {
+    public static final Path DEFAULT_DIR = Path.of("src/main/resources/programs/bench");
+    public static final Path DEFAULT_MIPS_DIR = Path.of("build/bench"); // Host specific, not committed
+
+    private static final Pattern MEMORY = Pattern.compile(";\\s*@memory\\s+stack=(\\d+)\\s+data=(\\d+)\\s+program=(\\d+)");
+    private static final int RETRIES = 2; // Extra measurements before a benchmark counts as regressed
+    private static final Pattern EXPECT = Pattern.compile(";\\s*@expect\\s+(\\d+)\\s*=\\s*(-?\\d+)");
+
+    /**
+     * A corpus program, expected maps addresses to the word that has to be there after the run
+     */
+    public record Benchmark(String name, Path file, int stackSize, int dataSize, int programSize,
+                            Map<Long, Integer> expected) {
+        public static Benchmark parse(Path file) throws IOException {
+            String name = file.getFileName().toString().replaceFirst("\\.asm$", "");
+            int[] sizes = {1024, 1024, 1024};
+            Map<Long, Integer> expected = new TreeMap<>();
+
+            for (String line : Files.readAllLines(file)) {
+                Matcher memory = MEMORY.matcher(line.trim());
+                if (memory.matches()) {
+                    for (int i = 0; i < 3; i++) sizes[i] = Integer.parseInt(memory.group(i + 1));
+                }
+                Matcher expect = EXPECT.matcher(line.trim());
+                if (expect.matches()) {
+                    expected.put(Long.parseLong(expect.group(1)), Integer.parseInt(expect.group(2)));
+                }
+            }
+            if (expected.isEmpty()) {
+                throw new IllegalArgumentException("Benchmark has no @expect lines: " + file);
+            }
+            return new Benchmark(name, file, sizes[0], sizes[1], sizes[2], Map.copyOf(expected));
+        }
+    }
+
+    /**
+     * @param baselineMips         0 without a baseline
+     * @param baselineInstructions 0 without a baseline
+     * @param errors               wrong results, empty if the benchmark computed what it should
+     */
+    public record Measurement(Benchmark benchmark, long instructions, long bestNanos, double mips,
+                              double baselineMips, long baselineInstructions, List<String> errors) {
+        public boolean regressed(double threshold) {
+            return baselineMips > 0 && mips < baselineMips * (1 - threshold);
+        }
+
+        // The instruction count doesn't depend on the host, so any difference is a change to the program or the assembler
+        public boolean instructionsChanged() {
+            return baselineInstructions > 0 && instructions != baselineInstructions;
+        }
+    }
+
+    private final int warmup;
+    private final int runs;
+    private final Encoding encoding;
+
+    public BenchmarkRunner(int warmup, int runs, Encoding encoding) {
+        if (warmup < 0 || runs <= 0) {
+            throw new IllegalArgumentException("Invalid warmup / runs: " + warmup + ", " + runs);
+        }
+        this.warmup = warmup;
+        this.runs = runs;
+        this.encoding = encoding;
+    }
+
+    public static List<Benchmark> corpus(Path dir) throws IOException {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".asm")).sorted().toList()) {
+                benchmarks.add(Benchmark.parse(file));
+            }
+        }
+        return benchmarks;
+    }
+
+    public Measurement measure(Benchmark benchmark, double baselineMips, long baselineInstructions) {
+        List<String> errors = new ArrayList<>();
+        long instructions = 0;
+        long best = Long.MAX_VALUE;
+
+        for (int run = 0; run < warmup + runs; run++) {
+            Motherboard machine = new Motherboard(benchmark.stackSize(), benchmark.dataSize(), benchmark.programSize());
+            machine.boot();
+            CPU cpu = machine.getCpu();
+            cpu.loadProgram(benchmark.file().toString(), encoding);
+
+            long start = System.nanoTime();
+            cpu.run();
+            long elapsed = System.nanoTime() - start;
+            machine.shutdown();
+
+            if (run == 0) {
+                instructions = cpu.getInstructionCount();
+                benchmark.expected().forEach((address, value) -> {
+                    int actual = machine.getRam().readWord(address);
+                    if (actual != value) {
+                        errors.add("word at " + address + " is " + actual + ", expected " + value);
+                    }
+                });
+                if (!errors.isEmpty()) break;
+            } else if (cpu.getInstructionCount() != instructions) {
+                errors.add("ran " + cpu.getInstructionCount() + " instructions, the first run " + instructions);
+                break;
+            }
+            if (run >= warmup) {
+                best = Math.min(best, elapsed);
+            }
+        }
+
+        double mips = errors.isEmpty() ? instructions * 1000.0 / best : 0;
+        return new Measurement(benchmark, instructions, errors.isEmpty() ? best : 0, mips, baselineMips,
+                baselineInstructions, List.copyOf(errors));
+    }
+
+    // ----------------------------- Baseline -----------------------------
+
+    public static Properties loadBaseline(Path file) throws IOException {
+        Properties baseline = new Properties();
+        if (Files.exists(file)) {
+            try (Reader in = Files.newBufferedReader(file)) {
+                baseline.load(in);
+            }
+        }
+        return baseline;
+    }
+
+    // Written by hand instead of Properties.store, which adds a timestamp and scrambles the order
+    public static void saveBaseline(Path file, List<Measurement> measurements) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file)) {
+            out.write("# Dispatched instructions of the benchmark corpus, written by BenchmarkRunner --update\n");
+            for (Measurement m : measurements) {
+                out.write(m.benchmark().name() + ".instructions=" + m.instructions() + "\n");
+            }
+        }
+    }
+
+    public static void saveMipsBaseline(Path file, List<Measurement> measurements) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer out = Files.newBufferedWriter(file)) {
+            out.write("# MIPS of the benchmark corpus on this host, written by BenchmarkRunner --update\n");
+            for (Measurement m : measurements) {
+                out.write(m.benchmark().name() + ".mips=" + String.format(Locale.ROOT, "%.1f", m.mips()) + "\n");
+            }
+        }
+    }
+
+    // ----------------------------- Command line -----------------------------
+
+    public static void main(String[] args) throws IOException {
+        Path dir = DEFAULT_DIR;
+        Path baselineFile = null;
+        Path mipsFile = null;
+        boolean update = false;
+        double threshold = 0.2;
+        int runs = 5;
+        int warmup = 3;
+        Encoding encoding = Encoding.FIXED;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir" -> dir = Path.of(args[++i]);
+                case "--baseline" -> baselineFile = Path.of(args[++i]);
+                case "--mips-baseline" -> mipsFile = Path.of(args[++i]);
+                case "--update" -> update = true;
+                case "--threshold" -> threshold = Double.parseDouble(args[++i]);
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--compact" -> encoding = Encoding.COMPACT;
+                default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (baselineFile == null) {
+            baselineFile = dir.resolve(encoding == Encoding.COMPACT ? "baseline-compact.properties" : "baseline.properties");
+        }
+        if (mipsFile == null) {
+            mipsFile = DEFAULT_MIPS_DIR.resolve(encoding == Encoding.COMPACT ? "mips-compact.properties" : "mips.properties");
+        }
+
+        Logger.setLevel(Logger.Level.WARN);
+        Properties baseline = update ? new Properties() : loadBaseline(baselineFile);
+        Properties mipsBaseline = update ? new Properties() : loadBaseline(mipsFile);
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, runs, encoding);
+
+        List<Measurement> measurements = new ArrayList<>();
+        boolean failed = false;
+        System.out.printf("%-20s %14s %10s %8s %10s  %s%n", "benchmark", "instructions", "ms", "MIPS", "baseline", "result");
+        for (Benchmark benchmark : corpus(dir)) {
+            double baselineMips = Double.parseDouble(mipsBaseline.getProperty(benchmark.name() + ".mips", "0"));
+            long baselineInstructions = Long.parseLong(baseline.getProperty(benchmark.name() + ".instructions", "0"));
+            Measurement m = runner.measure(benchmark, baselineMips, baselineInstructions);
+            // A slow sample (GC, another process) shouldn't fail the run, a real regression is slow every time
+            for (int retry = 0; retry < RETRIES && m.errors().isEmpty() && !m.instructionsChanged() && m.regressed(threshold); retry++) {
+                Measurement again = runner.measure(benchmark, baselineMips, baselineInstructions);
+                if (again.mips() > m.mips()) m = again;
+            }
+            measurements.add(m);
+
+            String result;
+            if (!m.errors().isEmpty()) {
+                result = "WRONG: " + String.join("; ", m.errors());
+            } else if (m.instructionsChanged()) {
+                result = String.format("INSTRUCTIONS changed from %d by %+d", m.baselineInstructions(),
+                        m.instructions() - m.baselineInstructions());
+            } else {
+                result = null;
+            }
+            failed |= result != null;
+            if (result == null) { // Throughput is only advisory, it depends on the host and what else runs on it
+                result = m.regressed(threshold)
+                        ? String.format("ok, SLOWER by %.0f%%", (1 - m.mips() / m.baselineMips()) * 100) : "ok";
+            }
+            System.out.printf("%-20s %14d %10.1f %8.1f %10s  %s%n", benchmark.name(), m.instructions(),
+                    m.bestNanos() / 1e6, m.mips(), baselineMips > 0 ? String.format("%.1f", baselineMips) : "-", result);
+        }
+
+        if (update && !failed) {
+            saveBaseline(baselineFile, measurements);
+            saveMipsBaseline(mipsFile, measurements);
+            System.out.println("Baselines written to " + baselineFile + " and " + mipsFile);
+        }
+        Logger.flush();
+        System.exit(failed ? 1 : 0);
+    }
+}
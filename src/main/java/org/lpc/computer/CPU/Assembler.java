@@ -1,17 +1,36 @@
 package org.lpc.computer.CPU;
 
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.java.Log;
 import org.lpc.Logger;
 import org.lpc.computer.RAM.RAM;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static org.lpc.Logger.debug;
 import static org.lpc.Logger.log;
 import static org.lpc.computer.CPU.Opcodes.*;
 import static org.lpc.computer.RAM.RAM.convertIntToBytes;
@@ -24,9 +43,43 @@ public class Assembler implements Registers {
     int programAddressPointer;
     int dataAddressPointer;
 
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern ADDRESS_TERM = Pattern.compile("([+-]?)([^+-]+)");
+    // [name:] .directive operands, see processDataDirective
+    private static final Pattern DATA_DIRECTIVE = Pattern.compile("(?:([A-Za-z_][A-Za-z0-9_]*):\\s*)?(\\.[a-z]+)\\s*(.*)");
+    private static final Pattern FLOAT_LITERAL =
+            Pattern.compile("[+-]?((\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?|NaN|Infinity)[fF]?");
+
     // TODO: Make this map in memory instead of using Java's Map
     private final Map<String, Integer> dataVariables;
     private final Map<String, Integer> functionAddresses;
+    // Names that stand for their address: float and double data (FP values can only be loaded from memory)
+    // and everything defined with a data directive (arrays, strings, reservations, included files)
+    private final Map<String, Integer> dataLabels = new HashMap<>();
+    // Jump targets used before their label was defined, patched once the whole file is read
+    private final Map<Integer, String> pendingLabels = new HashMap<>();
+    // Instructions other than jumps whose immediate is a code label, moved along when the code is compacted or inlined
+    private final Set<Integer> addressOperands = new HashSet<>();
+    private boolean lineCodeAddress;
+
+    private Encoding encoding = Encoding.FIXED;
+    private Mode mode = Mode.BITS_32;
+    private File sourceDirectory;   // .incbin paths are relative to it, the working directory for sources without a file
+    @Setter
+    private boolean includesAllowed = true; // Whether .include and .incbin may read host files, off for untrusted source
+    private final List<File> dependencies = new ArrayList<>(); // Files the last source included, for build caches
+    private CompactEncoder.Report encodingReport; // Size comparison of the last compact program
+    @Setter
+    private Inliner.Options inlining;             // Inlines small leaf functions into their callers, null = off
+    private Inliner.Report inliningReport;        // What inlining did to the last program
+    @Setter
+    private Duration timeout;                     // Limit for reading one source, null = none (for untrusted source)
+    private long deadline;                        // System.nanoTime() the current source has to be read by
+
+    // Only while assembling a relocatable module (see assembleObject): the address fields found so far
+    // and the kind of address substituted into the current line
+    private List<ObjectModule.Relocation> relocations;
+    private ObjectModule.Relocation.Kind lineRelocation;
 
     public Assembler(CPU cpu) {
         this.cpu = cpu;
@@ -35,24 +88,176 @@ public class Assembler implements Registers {
         this.dataVariables = new HashMap<>();
     }
 
+    // Called per line while reading a source, so a source that takes too long is given up
+    void checkDeadline() {
+        if (timeout != null && System.nanoTime() - deadline > 0) {
+            throw new IllegalArgumentException("Assembling took longer than " + timeout.toMillis() + " ms");
+        }
+    }
+
+    // Forgets the labels and data names of earlier programs, for reusing a machine for an unrelated one
+    public void clearSymbols() {
+        dataVariables.clear();
+        functionAddresses.clear();
+        dataLabels.clear();
+        pendingLabels.clear();
+        addressOperands.clear();
+    }
+
+    public void copySymbolsFrom(Assembler other) {
+        dataVariables.putAll(other.dataVariables);
+        functionAddresses.putAll(other.functionAddresses);
+        dataLabels.putAll(other.dataLabels);
+    }
+
     private enum Section {
         NONE, DATA, START, FUNCTION
     }
 
     public void assemble(File codeFile) throws IOException {
+        assemble(codeFile, Encoding.FIXED);
+    }
+
+    /**
+     * Assembles the file into the program region, an {@code .encoding compact} line in the file overrides the encoding
+     */
+    public void assemble(File codeFile, Encoding encoding) throws IOException {
         log("Assembling code file: " + codeFile.getName());
-        BufferedReader reader = new BufferedReader(new FileReader(codeFile));
-        String line;
+        try (Reader reader = new FileReader(codeFile)) {
+            sourceDirectory = codeFile.getAbsoluteFile().getParentFile();
+            assemble(reader, encoding);
+        } finally {
+            sourceDirectory = null;
+        }
+    }
+
+    /**
+     * Assembles source that doesn't come from a file, e.g. received over the network.
+     * The labels and data names of the program loaded before are forgotten.
+     */
+    public void assemble(Reader source, Encoding encoding) throws IOException {
+        cpu.disableVerifiedMode();
+        clearSymbols();
+        this.encoding = encoding;
+        boolean counting = ram.isAccessCounting();
+        ram.setAccessCounting(false); // Writing the program isn't the program's memory traffic, see PerfCounter
+        try {
+            readSource(new BufferedReader(source));
+
+            setStartAddress();
+            resolvePendingLabels();
+
+            if (inlining != null) {
+                inline();
+            }
+            if (encoding == Encoding.COMPACT) {
+                compact();
+            }
+        } finally {
+            ram.setAccessCounting(counting);
+        }
+        cpu.setEncoding(encoding);
+        cpu.setMode(mode);
+    }
+
+    /**
+     * Assembles a file into a relocatable module for the {@link Linker} instead of loading it.
+     * The program and data regions are used as scratch space, so whatever was loaded is gone afterwards.
+     */
+    public ObjectModule assembleObject(File codeFile) throws IOException {
+        log("Assembling object file: " + codeFile.getName());
+        try (Reader reader = new FileReader(codeFile)) {
+            sourceDirectory = codeFile.getAbsoluteFile().getParentFile();
+            return assembleObject(codeFile.getName().replaceFirst("\\.asm$", ""), reader);
+        } finally {
+            sourceDirectory = null;
+        }
+    }
+
+    /**
+     * Every label, float name and data directive name of the source becomes a relocated address; calls and jumps
+     * to labels the source doesn't define are left to the linker. Constants ({@code name = value}) stay values.
+     * The module is always in the fixed encoding, the encoding is chosen when linking.
+     */
+    public ObjectModule assembleObject(String name, Reader source) throws IOException {
+        cpu.disableVerifiedMode();
+        clearSymbols();
+        relocations = new ArrayList<>();
+        boolean counting = ram.isAccessCounting();
+        ram.setAccessCounting(false);
+        try {
+            readSource(new BufferedReader(source));
+            int codeBase = ram.getProgramStart() + 8;
+            int dataBase = ram.getDataStart();
+            resolvePendingLabels();
+
+            byte[] code = readBlock(codeBase, programAddressPointer - codeBase);
+            int dataSize = dataAddressPointer - dataBase;
+            int dataLength = dataSize;
+            while (dataLength > 0 && ram.peek(dataBase + dataLength - 1) == 0) dataLength--;
+            byte[] data = readBlock(dataBase, dataLength);
+
+            // The fields hold addresses in this machine's regions, the module keeps them relative to its own start
+            ByteBuffer fields = ByteBuffer.wrap(code).order(ByteOrder.LITTLE_ENDIAN);
+            for (ObjectModule.Relocation relocation : relocations) {
+                int base = switch (relocation.kind()) {
+                    case CODE -> codeBase;
+                    case DATA -> dataBase;
+                    case EXTERNAL -> 0;
+                };
+                fields.putInt(relocation.offset(), fields.getInt(relocation.offset()) - base);
+            }
+
+            Map<String, Integer> functions = new HashMap<>();
+            functionAddresses.forEach((label, address) -> functions.put(label, address - codeBase));
+            Map<String, Integer> labels = new HashMap<>();
+            dataLabels.forEach((label, address) -> labels.put(label, address - dataBase));
+
+            ObjectModule module = new ObjectModule(name, mode, code, data, dataSize, functions, labels, relocations);
+            log("Assembled object " + module);
+            return module;
+        } finally {
+            relocations = null;
+            ram.setAccessCounting(counting);
+        }
+    }
+
+    private byte[] readBlock(int address, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = ram.peek(address + i);
+        }
+        return bytes;
+    }
+
+    // Assembles the source behind the CALL start slot, leaves the pending labels and the start call to the caller
+    private void readSource(BufferedReader reader) throws IOException {
+        this.mode = Mode.BITS_32;
+        dependencies.clear();
+        addressOperands.clear();
+        deadline = timeout != null ? System.nanoTime() + timeout.toNanos() : 0;
+        List<String> lines = new Preprocessor(this).process(reader, sourceDirectory);
 
         programAddressPointer = ram.getProgramStart() + 8;
         dataAddressPointer = ram.getDataStart();
 
         Section currentSection = Section.NONE;
 
-        while ((line = reader.readLine()) != null) {
-            line = prepLine(line);
-            if (line == null) continue;
+        for (String line : lines) {
+            checkDeadline();
 
+            if (line.startsWith(".encoding")) {
+                this.encoding = parseEncoding(line);
+                continue;
+            }
+            if (line.startsWith(".bits")) { // Has to come before the data and code it applies to
+                this.mode = parseMode(line);
+                continue;
+            }
+            if (currentSection == Section.DATA && isDataDirective(line)) {
+                processDataLine(line);
+                continue;
+            }
             if (line.startsWith(".")) {
                 currentSection = switchSection(line);
                 continue;
@@ -63,10 +268,6 @@ public class Assembler implements Registers {
 
         // programAddressPointer - 1 because the pointer is incremented after writing the instruction
         ram.setProgramEnd(programAddressPointer - 1);
-
-        setStartAddress();
-
-        reader.close();
     }
 
     private void setStartAddress() {
@@ -74,6 +275,84 @@ public class Assembler implements Registers {
         processCodeLine("CALL start");
     }
 
+    private Encoding parseEncoding(String line) {
+        String[] parts = line.split("\\s+");
+        if (parts.length != 2) throw new IllegalArgumentException("Invalid encoding directive: " + line);
+        try {
+            return Encoding.valueOf(parts[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown encoding: " + parts[1]);
+        }
+    }
+
+    private Mode parseMode(String line) {
+        String[] parts = line.split("\\s+");
+        if (parts.length != 2) throw new IllegalArgumentException("Invalid bits directive: " + line);
+        return switch (parts[1]) {
+            case "32" -> Mode.BITS_32;
+            case "64" -> Mode.BITS_64;
+            default -> throw new IllegalArgumentException("Invalid bits directive: " + line);
+        };
+    }
+
+    // Copies small leaf functions over their calls (still in the fixed encoding) and moves the labels along
+    private void inline() {
+        Map<Integer, String> names = new HashMap<>();
+        functionAddresses.forEach((name, address) -> names.merge(address, name, (a, b) -> a.compareTo(b) < 0 ? a : b));
+
+        Inliner inliner = new Inliner(cpu, inlining);
+        int end = ram.getProgramEnd() + 1;
+        Map<Integer, Integer> moved = inliner.inline(ram.getProgramStart(), end, names, addressOperands);
+        functionAddresses.replaceAll((name, address) -> moved.getOrDefault(address, address));
+        ram.setProgramEnd(moved.get(end) - 1);
+
+        inliningReport = inliner.getReport();
+        log(inliningReport::format);
+    }
+
+    // Rewrites the loaded program in the compact encoding and moves the labels along, returns the moved addresses
+    Map<Integer, Integer> compact() {
+        CompactEncoder encoder = new CompactEncoder(cpu);
+        Map<Integer, Integer> moved = encoder.encode(ram.getProgramStart(), ram.getProgramEnd(), addressOperands);
+        functionAddresses.replaceAll((name, address) -> moved.getOrDefault(address, address));
+        addressOperands.clear(); // Compact code isn't rewritten again
+
+        // Exclusive end here: a compact program can end in a 1 byte RET, which the usual "last byte" end would cut off
+        ram.setProgramEnd(moved.get(ram.getProgramEnd() + 1));
+
+        encodingReport = encoder.getReport();
+        log(encodingReport::format);
+        return moved;
+    }
+
+    // In a relocatable module the targets are relocated and unknown labels become external references
+    private void resolvePendingLabels() {
+        pendingLabels.forEach((address, label) -> {
+            Integer target = functionAddresses.get(label);
+            if (relocations != null) {
+                int offset = address - (ram.getProgramStart() + 8);
+                relocations.add(target != null
+                        ? new ObjectModule.Relocation(offset, ObjectModule.Relocation.Kind.CODE, null)
+                        : new ObjectModule.Relocation(offset, ObjectModule.Relocation.Kind.EXTERNAL, label));
+                if (target == null) return;
+            }
+            if (target == null) throw new IllegalArgumentException("Unknown label: " + label);
+            ram.writeWord(target, address);
+        });
+        pendingLabels.clear();
+    }
+
+    /**
+     * Replaces the symbols with those of a linked program, so tools that name addresses (e.g. the timing model) see them
+     */
+    void setLinkedSymbols(Map<String, Integer> functions, Map<String, Integer> labels, Set<Integer> operands, Mode mode) {
+        clearSymbols();
+        functionAddresses.putAll(functions);
+        dataLabels.putAll(labels);
+        addressOperands.addAll(operands);
+        this.mode = mode;
+    }
+
     private Section switchSection(String line) {
         switch (line.toLowerCase()) {
             case ".data" -> {
@@ -105,12 +384,29 @@ public class Assembler implements Registers {
     }
 
     private void processCodeLine(String line) {
+        lineRelocation = null;
+        lineCodeAddress = false;
         line = replaceVariables(line);
         line = replaceFunctionAddresses(line);
 
-        System.out.println("Processing line: " + line);
+        String processed = line;
+        debug(() -> "Processing line: " + processed);
 
         byte[] instructionBytes = decodeInstruction(line);
+        if (relocations != null && lineRelocation != null) {
+            // The substituted address is the immediate, the last 4 bytes of the 8 byte instructions
+            if (instructionBytes.length != 8) {
+                throw new IllegalArgumentException("No address field for the label in: " + processed);
+            }
+            relocations.add(new ObjectModule.Relocation(programAddressPointer + 4 - (ram.getProgramStart() + 8),
+                    lineRelocation, null));
+        }
+        if (lineCodeAddress && !Opcodes.isJump(instructionBytes[0])) {
+            if (!Opcodes.hasImmediate(instructionBytes[0])) {
+                throw new IllegalArgumentException("No address field for the label in: " + processed);
+            }
+            addressOperands.add(programAddressPointer);
+        }
         for (byte b : instructionBytes) {
             ram.write(programAddressPointer, b);
             programAddressPointer++;
@@ -118,44 +414,318 @@ public class Assembler implements Registers {
     }
 
     private void processDataLine(String line) {
+        Matcher directive = DATA_DIRECTIVE.matcher(line);
+        if (directive.matches()) {
+            processDataDirective(directive.group(1), directive.group(2), directive.group(3));
+            return;
+        }
+
         String[] parts = line.split("=");
         if (parts.length != 2) throw new IllegalArgumentException("Invalid data definition: " + line);
         String variableName = parts[0].trim();
         String value = parts[1].trim();
 
-        int parsedValue;
+        if (!isImmediate(value) && FLOAT_LITERAL.matcher(value).matches()) {
+            processFloatData(variableName, value);
+            return;
+        }
+
+        long parsedValue;
         try {
-            parsedValue = Integer.parseInt(value);
+            parsedValue = mode == Mode.BITS_64 ? Long.parseLong(value) : Integer.parseInt(value);
         } catch (NumberFormatException e) {
             throw new IllegalArgumentException("Invalid data value: " + value);
         }
 
-        ram.writeWord(parsedValue, dataAddressPointer);
+        // Data words are as wide as the registers
+        if (mode == Mode.BITS_64) {
+            ram.writeDWord(parsedValue, dataAddressPointer);
+        } else {
+            ram.writeWord((int) parsedValue, dataAddressPointer);
+        }
         dataVariables.put(variableName, dataAddressPointer);
 
-        dataAddressPointer += 4;
+        dataAddressPointer += mode == Mode.BITS_64 ? 8 : 4;
+    }
+
+    // x = 1.5 is a 64-bit double, x = 1.5f a 32-bit float
+    private void processFloatData(String variableName, String value) {
+        boolean single = value.endsWith("f") || value.endsWith("F");
+        String number = single ? value.substring(0, value.length() - 1) : value;
+
+        if (single) {
+            ram.writeWord(Float.floatToRawIntBits(Float.parseFloat(number)), dataAddressPointer);
+        } else {
+            ram.writeDWord(Double.doubleToRawLongBits(Double.parseDouble(number)), dataAddressPointer);
+        }
+        dataLabels.put(variableName, dataAddressPointer);
+
+        dataAddressPointer += single ? 4 : 8;
+    }
+
+    // ------------------- Data Directives -------------------
+
+    private static boolean isDataDirective(String line) {
+        String name = line.split("\\s+", 2)[0];
+        return switch (name) {
+            case ".byte", ".word", ".dword", ".float", ".double", ".ascii", ".asciz", ".space", ".align", ".incbin" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Data directives lay out memory at the data pointer, the optional name stands for the address of the first byte:
+     * <pre>
+     * table: .word 1, 2, 0x30        4 byte words (.byte, .dword for 1 and 8 bytes)
+     * scale: .double 0.5, 2.0        8 byte doubles (.float for 4 byte floats)
+     * msg: .asciz "Hi\n"             UTF-8 bytes, .asciz adds a 0 byte (escapes: \n \t \r \0 \\ \" \xHH)
+     * buffer: .space 4096            Zeroed bytes, untouched pages stay unallocated
+     * .align 64                      Moves the data pointer to the next multiple of 64
+     * image: .incbin "image.bin"     A host file, optionally .incbin "file" offset length
+     * </pre>
+     */
+    private void processDataDirective(String name, String directive, String operands) {
+        List<String> values = splitDataOperands(operands);
+        int address = switch (directive) {
+            case ".byte" -> writeData(values, 1);
+            case ".word" -> writeData(values, 4);
+            case ".dword" -> writeData(values, 8);
+            case ".float" -> writeFloatData(values, true);
+            case ".double" -> writeFloatData(values, false);
+            case ".ascii", ".asciz" -> {
+                if (values.size() != 1) throw new IllegalArgumentException(directive + " needs one string: " + operands);
+                byte[] bytes = parseString(values.get(0));
+                if (directive.equals(".asciz")) bytes = Arrays.copyOf(bytes, bytes.length + 1);
+                int start = reserveData(bytes.length);
+                ram.writeBlock(start, bytes, 0, bytes.length);
+                yield start;
+            }
+            case ".space" -> {
+                int size = parseDataSize(values, directive);
+                int start = reserveData(size);
+                ram.zeroBlock(start, size);
+                yield start;
+            }
+            case ".align" -> {
+                int alignment = parseDataSize(values, directive);
+                if (alignment <= 0 || Integer.bitCount(alignment) != 1) {
+                    throw new IllegalArgumentException("Alignment must be a power of two: " + operands);
+                }
+                int aligned = (int) (((long) dataAddressPointer + alignment - 1) & -alignment);
+                reserveData(aligned - dataAddressPointer);
+                yield aligned;
+            }
+            case ".incbin" -> includeBinary(values);
+            default -> throw new IllegalArgumentException("Unknown data directive: " + directive);
+        };
+        if (name != null) {
+            dataLabels.put(name, address);
+        }
+    }
+
+    // Integers of the given size, little-endian like everything else, returns their address
+    private int writeData(List<String> values, int size) {
+        ByteBuffer bytes = ByteBuffer.allocate(values.size() * size).order(ByteOrder.LITTLE_ENDIAN);
+        for (String value : values) {
+            long parsed = parseDataInteger(value, size);
+            switch (size) {
+                case 1 -> bytes.put((byte) parsed);
+                case 4 -> bytes.putInt((int) parsed);
+                default -> bytes.putLong(parsed);
+            }
+        }
+        int start = reserveData(bytes.capacity());
+        ram.writeBlock(start, bytes.array(), 0, bytes.capacity());
+        return start;
+    }
+
+    private int writeFloatData(List<String> values, boolean single) {
+        ByteBuffer bytes = ByteBuffer.allocate(values.size() * (single ? 4 : 8)).order(ByteOrder.LITTLE_ENDIAN);
+        for (String value : values) {
+            String number = value.endsWith("f") || value.endsWith("F") ? value.substring(0, value.length() - 1) : value;
+            if (!FLOAT_LITERAL.matcher(value).matches()) {
+                throw new IllegalArgumentException("Invalid float value: " + value);
+            }
+            if (single) {
+                bytes.putFloat(Float.parseFloat(number));
+            } else {
+                bytes.putDouble(Double.parseDouble(number));
+            }
+        }
+        int start = reserveData(bytes.capacity());
+        ram.writeBlock(start, bytes.array(), 0, bytes.capacity());
+        return start;
+    }
+
+    // .incbin "file" [offset [length]], read straight from the file into the data pages
+    private int includeBinary(List<String> values) {
+        if (!includesAllowed) {
+            throw new IllegalArgumentException(".incbin is not allowed for this source");
+        }
+        if (values.isEmpty() || values.size() > 3) {
+            throw new IllegalArgumentException("Usage: .incbin \"file\" [offset [length]]");
+        }
+        File file = new File(new String(parseString(values.get(0)), StandardCharsets.UTF_8));
+        if (!file.isAbsolute() && sourceDirectory != null) {
+            file = new File(sourceDirectory, file.getPath());
+        }
+
+        dependencies.add(file.getAbsoluteFile());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long offset = values.size() > 1 ? parseLongImmediate(values.get(1)) : 0;
+            long length = values.size() > 2 ? parseLongImmediate(values.get(2)) : channel.size() - offset;
+            if (offset < 0 || length < 0 || offset + length > channel.size()) {
+                throw new IllegalArgumentException("Range " + offset + " + " + length + " is outside "
+                        + file + " (" + channel.size() + " bytes)");
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Included file is too large: " + file);
+            }
+            int start = reserveData((int) length);
+            channel.position(offset);
+            ram.writeBlock(start, channel, length);
+            debug(() -> "Included " + length + " bytes of " + values.get(0) + " at " + start);
+            return start;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't include " + file, e);
+        }
+    }
+
+    // Moves the data pointer past size bytes and returns where they start
+    private int reserveData(int size) {
+        int start = dataAddressPointer;
+        if ((long) start + size > ram.getDataEnd() + 1L) {
+            throw new IllegalArgumentException("Data doesn't fit the data region: " + size + " bytes at " + start
+                    + ", the region ends at " + ram.getDataEnd());
+        }
+        dataAddressPointer += size;
+        return start;
+    }
+
+    private static long parseDataInteger(String value, int size) {
+        if (!isImmediate(value)) {
+            throw new IllegalArgumentException("Invalid data value: " + value);
+        }
+        long parsed = parseLongImmediate(value);
+        // Signed or unsigned values both fit, e.g. .byte -1 and .byte 255
+        if (size < 8 && (parsed < -(1L << (size * 8 - 1)) || parsed >= 1L << (size * 8))) {
+            throw new IllegalArgumentException("Value doesn't fit in " + size + " bytes: " + value);
+        }
+        return parsed;
+    }
+
+    private static int parseDataSize(List<String> values, String directive) {
+        if (values.size() != 1 || !isImmediate(values.get(0)) || parseLongImmediate(values.get(0)) < 0
+                || parseLongImmediate(values.get(0)) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(directive + " needs one size: " + values);
+        }
+        return (int) parseLongImmediate(values.get(0));
+    }
+
+    // Splits on whitespace outside of quotes, commas are already gone (see prepLine)
+    static List<String> splitDataOperands(String operands) {
+        List<String> values = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < operands.length(); i++) {
+            char c = operands.charAt(i);
+            if (quoted && c == '\\' && i + 1 < operands.length()) {
+                current.append(c).append(operands.charAt(++i));
+                continue;
+            }
+            if (c == '"') quoted = !quoted;
+            if (Character.isWhitespace(c) && !quoted) {
+                if (!current.isEmpty()) values.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("Unterminated string: " + operands);
+        if (!current.isEmpty()) values.add(current.toString());
+        return values;
+    }
+
+    // "text" with escapes to its UTF-8 bytes, \xHH is a raw byte
+    static byte[] parseString(String literal) {
+        if (literal.length() < 2 || !literal.startsWith("\"") || !literal.endsWith("\"")) {
+            throw new IllegalArgumentException("Expected a quoted string: " + literal);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i < literal.length() - 1; i++) {
+            char c = literal.charAt(i);
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            char escaped = literal.charAt(++i);
+            switch (escaped) {
+                case 'n' -> text.append('\n');
+                case 't' -> text.append('\t');
+                case 'r' -> text.append('\r');
+                case '0' -> text.append('\0');
+                case '\\', '"' -> text.append(escaped);
+                case 'x' -> {
+                    bytes.writeBytes(text.toString().getBytes(StandardCharsets.UTF_8));
+                    text.setLength(0);
+                    bytes.write(Integer.parseInt(literal.substring(i + 1, i + 3), 16));
+                    i += 2;
+                }
+                default -> throw new IllegalArgumentException("Unknown escape \\" + escaped + " in " + literal);
+            }
+        }
+        bytes.writeBytes(text.toString().getBytes(StandardCharsets.UTF_8));
+        return bytes.toByteArray();
     }
 
     private void processFunctionLine(String line) {
         processCodeLine(line);
     }
 
+    // Symbols are only replaced as whole identifiers, so a variable "x" doesn't touch "EAX"
     private String replaceVariables(String line) {
-        for (Map.Entry<String, Integer> entry : dataVariables.entrySet()) {
-            String variableName = entry.getKey();
-            int variableAddress = entry.getValue();
-            line = line.replace(variableName, String.valueOf(ram.readWord(variableAddress)));
-        }
-        return line;
+        return replaceIdentifiers(line, name -> {
+            Integer labelAddress = dataLabels.get(name);
+            if (labelAddress != null) {
+                markRelocation(ObjectModule.Relocation.Kind.DATA, line);
+                return String.valueOf(labelAddress);
+            }
+
+            Integer variableAddress = dataVariables.get(name);
+            if (variableAddress == null) return null;
+            return String.valueOf(mode == Mode.BITS_64 ? ram.readDWord(variableAddress) : ram.readWord(variableAddress));
+        });
     }
 
     private String replaceFunctionAddresses(String line) {
-        for (Map.Entry<String, Integer> entry : functionAddresses.entrySet()) {
-            String functionName = entry.getKey();
-            int functionAddress = entry.getValue();
-            line = line.replace(functionName, String.valueOf(functionAddress));
+        return replaceIdentifiers(line, name -> {
+            Integer functionAddress = functionAddresses.get(name);
+            if (functionAddress == null) return null;
+            markRelocation(ObjectModule.Relocation.Kind.CODE, line);
+            lineCodeAddress = true;
+            return String.valueOf(functionAddress);
+        });
+    }
+
+    // A relocation patches one field, so a relocatable line can only use one address
+    private void markRelocation(ObjectModule.Relocation.Kind kind, String line) {
+        if (relocations == null) return;
+        if (lineRelocation != null) {
+            throw new IllegalArgumentException("More than one address in a relocatable line: " + line);
+        }
+        lineRelocation = kind;
+    }
+
+    private static String replaceIdentifiers(String line, Function<String, String> replacement) {
+        Matcher matcher = IDENTIFIER.matcher(line);
+        StringBuilder sb = new StringBuilder();
+        while (matcher.find()) {
+            String value = replacement.apply(matcher.group());
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(value != null ? value : matcher.group()));
         }
-        return line;
+        matcher.appendTail(sb);
+        return sb.toString();
     }
 
     public String prepLine(String line) {
@@ -163,15 +733,28 @@ public class Assembler implements Registers {
         if (line.isEmpty() || line.startsWith(";")) { // Skip empty lines and comments
             return null;
         }
-        line = line.split(";")[0].trim(); // Remove comments after the instruction
-        line = line.replace(",", ""); // Remove commas
-        return line;
+
+        // Remove the comment after the instruction and the commas, but not inside strings
+        StringBuilder sb = new StringBuilder(line.length());
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted && c == '\\' && i + 1 < line.length()) {
+                sb.append(c).append(line.charAt(++i));
+                continue;
+            }
+            if (c == '"') quoted = !quoted;
+            if (!quoted && c == ';') break;
+            if (!quoted && c == ',') continue;
+            sb.append(c);
+        }
+        return sb.toString().trim();
     }
 
     // ------------------- Instruction Decoding -------------------
 
     public byte[] decodeInstruction(String instruction) {
-        String[] parts = instruction.split(" ");
+        String[] parts = splitOperands(instruction);
         if (parts.length == 0) {
             throw new IllegalArgumentException("Empty instruction.");
         }
@@ -183,6 +766,7 @@ public class Assembler implements Registers {
         } catch (IllegalArgumentException e){
             throw new IllegalArgumentException("Invalid opcode: " + opcode + " in instruction: " + instruction);
         }
+        checkOperandCount(op, parts, instruction);
 
         switch (op) {
             case MOV -> {
@@ -197,37 +781,92 @@ public class Assembler implements Registers {
             case ADD, SUB, MUL, DIV -> {
                 return handleArithmetic(parts, op);
             }
+            case CMP -> {
+                return handleCompare(parts);
+            }
             case AND, OR, XOR -> {
                 return handleLogical(parts, op);
             }
             case NOT, PUSH, POP -> {
                 return handleSingleRegister(parts, op);
             }
-            case JMP, JZ, JNZ, CALL -> {
+            case JMP, JZ, JNZ, JL, JLE, JG, JGE, JB, JBE, JA, JAE, CALL -> {
                 return handleControlFlow(parts, op);
             }
             case RET -> {
                 return handleRET();
             }
+            case HCALL -> {
+                return handleHCALL(parts);
+            }
+            case RDPMC -> {
+                return handleRDPMC(parts);
+            }
+            case FLOAD, FLOADS -> {
+                return encodeIndexed(op, getFpRegister(parts[1]), memoryOperand(parts[2]));
+            }
+            case FSTORE, FSTORES -> {
+                return encodeIndexed(op, getFpRegister(parts[2]), memoryOperand(parts[1]));
+            }
+            case FADD, FSUB, FMUL, FDIV -> {
+                return handleFloatArithmetic(parts, op);
+            }
+            case FMOV, FSQRT, FCMP -> {
+                return encodeRegisters(op, getFpRegister(parts[1]), getFpRegister(parts[2]));
+            }
+            case CVTIF -> {
+                return encodeRegisters(op, getFpRegister(parts[1]), getRegister(parts[2]));
+            }
+            case CVTFI -> {
+                return encodeRegisters(op, getRegister(parts[1]), getFpRegister(parts[2]));
+            }
             default -> {
                 throw new IllegalArgumentException("Invalid opcode: " + opcode);
             }
         }
     }
 
+    // Operands are separated by whitespace, so an expression like "n - 1" would otherwise lose everything after n
+    private static void checkOperandCount(byte op, String[] parts, String instruction) {
+        int count = parts.length - 1;
+        int min = switch (op) {
+            case RET -> 0;
+            case NOT, PUSH, POP, HCALL, JMP, JZ, JNZ, JL, JLE, JG, JGE, JB, JBE, JA, JAE, CALL -> 1;
+            default -> 2;
+        };
+        int max = switch (op) {
+            case ADD, SUB, MUL, DIV, FADD, FSUB, FMUL, FDIV -> 3;
+            default -> min;
+        };
+        if (count < min || count > max) {
+            boolean expression = Arrays.stream(parts).anyMatch(part -> part.matches("[-+*/]"));
+            throw new IllegalArgumentException(parts[0] + " takes " + (min == max ? min : min + " or " + max)
+                    + (max == 1 ? " operand" : " operands") + ", got " + count
+                    + (expression ? " (the assembler has no expressions like n - 1)" : "") + ": " + instruction);
+        }
+    }
+
     public byte[] handleMOV(String[] parts) {
         String dst = parts[1];
         String src = parts[2]; // Source register or immediate value
 
         byte[] bytes;
 
-        if (src.matches("-?\\d+")) { // MOV dst, IMM (immediate value)
+        if (isImmediate(src) && mode == Mode.BITS_64 && !fitsInt(parseLongImmediate(src))) { // MOV dst, IMM64
+            bytes = new byte[12];
+            bytes[0] = MOV_I64;
+            bytes[1] = getRegister(dst);
+
+            long value = parseLongImmediate(src);
+            System.arraycopy(convertIntToBytes((int) value), 0, bytes, 4, 4);
+            System.arraycopy(convertIntToBytes((int) (value >>> 32)), 0, bytes, 8, 4);
+        } else if (isImmediate(src)) { // MOV dst, IMM (immediate value)
             bytes = new byte[8];
             bytes[0] = MOV_I;
             bytes[1] = getRegister(dst);
 
             // Use the convertIntToBytes method to convert the immediate value (integer) to 4-byte representation
-            byte[] valueBytes = convertIntToBytes(Integer.parseInt(src));
+            byte[] valueBytes = convertIntToBytes(parseImmediate(src));
             System.arraycopy(valueBytes, 0, bytes, 4, 4); // Copy the 4 bytes of immediate value into the instruction bytes
         } else { // MOV dst, REG (register-to-register)
             bytes = new byte[4];
@@ -244,6 +883,10 @@ public class Assembler implements Registers {
         String reg = parts[1];
         String address = parts[2];
 
+        if (address.startsWith("[")) { // LOAD reg, [base + index*scale + offset]
+            return encodeIndexed(LOADX, getRegister(reg), address);
+        }
+
         byte[] bytes = new byte[8];
 
         bytes[0] = LOAD;
@@ -260,6 +903,10 @@ public class Assembler implements Registers {
         String address = parts[1];
         String reg = parts[2];
 
+        if (address.startsWith("[")) { // STORE [base + index*scale + offset], reg
+            return encodeIndexed(STOREX, getRegister(reg), address);
+        }
+
         byte[] bytes = new byte[8];
 
         bytes[0] = STORE;
@@ -277,7 +924,13 @@ public class Assembler implements Registers {
         String src1 = parts[2];
         String src2 = parts.length > 3 ? parts[3] : null; // Second source register (optional)
 
-        byte[] bytes = new byte[4]; // Always 4 bytes for arithmetic operations
+        // Immediate last operand: ADD dst, imm / ADD dst, src, imm
+        String last = src2 != null ? src2 : src1;
+        if (isImmediate(last)) {
+            return encodeImmediate((byte) (opcode + 4), src2 != null ? src1 : dst, dst, last);
+        }
+
+        byte[] bytes = new byte[4]; // 4 bytes for register arithmetic operations
 
         bytes[0] = opcode;
 
@@ -298,7 +951,16 @@ public class Assembler implements Registers {
         String dst = parts[1];
         String src = parts[2];
 
-        byte[] bytes = new byte[4]; // Always 4 bytes for logical operations
+        if (isImmediate(src)) { // AND dst, imm
+            byte immediateOpcode = switch (opcode) {
+                case AND -> AND_I;
+                case OR -> OR_I;
+                default -> XOR_I;
+            };
+            return encodeImmediate(immediateOpcode, dst, dst, src);
+        }
+
+        byte[] bytes = new byte[4]; // 4 bytes for register logical operations
 
         bytes[0] = opcode;
 
@@ -309,6 +971,22 @@ public class Assembler implements Registers {
         return bytes;
     }
 
+    public byte[] handleCompare(String[] parts) {
+        String a = parts[1];
+        String b = parts[2];
+
+        if (isImmediate(b)) { // CMP a, imm
+            return encodeImmediate(CMP_I, a, null, b);
+        }
+
+        byte[] bytes = new byte[4];
+        bytes[0] = CMP;
+        bytes[1] = getRegister(a);
+        bytes[2] = getRegister(b);
+
+        return bytes;
+    }
+
     public byte[] handleSingleRegister(String[] parts, byte opcode) {
         String reg = parts[1];
 
@@ -327,13 +1005,58 @@ public class Assembler implements Registers {
 
         bytes[0] = opcode;
 
+        int target = 0;
+        if (IDENTIFIER.matcher(address).matches()) {
+            pendingLabels.put(programAddressPointer + 4, address); // Label defined further down
+        } else {
+            target = Integer.parseInt(address);
+        }
+
         // Use convertIntToBytes for the address
-        byte[] addrBytes = convertIntToBytes(Integer.parseInt(address));
+        byte[] addrBytes = convertIntToBytes(target);
         System.arraycopy(addrBytes, 0, bytes, 4, 4); // Store the address in the last 4 bytes
 
         return bytes;
     }
 
+    // FADD dst, src / FADD dst, src1, src2, same layout as the integer arithmetic
+    public byte[] handleFloatArithmetic(String[] parts, byte opcode) {
+        byte dst = getFpRegister(parts[1]);
+        if (parts.length > 3) {
+            return encodeRegisters(opcode, getFpRegister(parts[2]), getFpRegister(parts[3]), dst);
+        }
+        return encodeRegisters(opcode, dst, getFpRegister(parts[2]), dst);
+    }
+
+    // HCALL n or HCALL name, with name registered in the motherboard's HostCalls
+    public byte[] handleHCALL(String[] parts) {
+        String function = parts[1];
+        int number = isImmediate(function) ? parseImmediate(function) : cpu.getHostCalls().number(function);
+        if (number < 0) {
+            throw new IllegalArgumentException("Unknown host function: " + function);
+        }
+
+        byte[] bytes = new byte[8];
+        bytes[0] = HCALL;
+        System.arraycopy(convertIntToBytes(number), 0, bytes, 4, 4);
+
+        return bytes;
+    }
+
+    // RDPMC reg, n or RDPMC reg, name with name a PerfCounter (instructions, cycles, ...)
+    public byte[] handleRDPMC(String[] parts) {
+        String counter = parts[2];
+        PerfCounter pmc = isImmediate(counter) ? PerfCounter.of(parseImmediate(counter))
+                : PerfCounter.valueOf(counter.toUpperCase());
+
+        byte[] bytes = new byte[8];
+        bytes[0] = RDPMC;
+        bytes[1] = getRegister(parts[1]);
+        System.arraycopy(convertIntToBytes(pmc.ordinal()), 0, bytes, 4, 4);
+
+        return bytes;
+    }
+
     public byte[] handleRET() {
         byte[] bytes = new byte[4];
         bytes[0] = RET;
@@ -341,11 +1064,152 @@ public class Assembler implements Registers {
         return bytes;
     }
 
+    // [opcode, src, 0, dst] followed by the 4 byte immediate value
+    private byte[] encodeImmediate(byte opcode, String src, String dst, String immediate) {
+        byte[] bytes = new byte[8];
+        bytes[0] = opcode;
+        bytes[1] = getRegister(src);
+        bytes[3] = dst != null ? getRegister(dst) : 0;
+
+        // Sign-extended to 64 bits in 64-bit mode, so e.g. 0xFFFFFFFF can't be an immediate there
+        if (mode == Mode.BITS_64 && !fitsInt(parseLongImmediate(immediate))) {
+            throw new IllegalArgumentException("Immediate does not fit in 32 bits, MOV it into a register first: " + immediate);
+        }
+        byte[] valueBytes = convertIntToBytes(parseImmediate(immediate));
+        System.arraycopy(valueBytes, 0, bytes, 4, 4);
+
+        return bytes;
+    }
+
+    // [opcode, a, b, c]
+    private static byte[] encodeRegisters(byte opcode, byte... registers) {
+        byte[] bytes = new byte[4];
+        bytes[0] = opcode;
+        System.arraycopy(registers, 0, bytes, 1, registers.length);
+        return bytes;
+    }
+
+    // A plain address is the same as [address]
+    private static String memoryOperand(String operand) {
+        return operand.startsWith("[") ? operand : "[" + operand + "]";
+    }
+
+    // [opcode, reg, base, scale << 6 | index] followed by the 4 byte offset, from an operand like [EBX + ESI*4 + 8]
+    private byte[] encodeIndexed(byte opcode, byte reg, String operand) {
+        if (!operand.endsWith("]")) {
+            throw new IllegalArgumentException("Unclosed memory operand: " + operand);
+        }
+        String inner = operand.substring(1, operand.length() - 1).replace(" ", "");
+
+        byte base = NO_REGISTER;
+        byte index = NO_INDEX;
+        int offset = 0;
+
+        Matcher term = ADDRESS_TERM.matcher(inner);
+        while (term.find()) {
+            boolean negative = term.group(1).equals("-");
+            String value = term.group(2);
+
+            if (isImmediate(value)) {
+                offset += negative ? -parseImmediate(value) : parseImmediate(value);
+                continue;
+            }
+            if (negative) {
+                throw new IllegalArgumentException("Registers can only be added in: " + operand);
+            }
+
+            String[] factors = value.split("\\*");
+            byte register = getRegister(factors[0]);
+            int scale = factors.length > 1 ? parseImmediate(factors[1]) : 1;
+
+            if (factors.length == 1 && base == NO_REGISTER) {
+                base = register;
+            } else if (index == NO_INDEX) {
+                if ((register & ~0x3F) != 0 || register == NO_INDEX) {
+                    throw new IllegalArgumentException("Register can't be used as index: " + factors[0]);
+                }
+                int scaleBits = switch (scale) {
+                    case 1 -> 0;
+                    case 2 -> 1;
+                    case 4 -> 2;
+                    case 8 -> 3;
+                    default -> throw new IllegalArgumentException("Scale must be 1, 2, 4 or 8: " + operand);
+                };
+                index = (byte) (scaleBits << 6 | register);
+            } else {
+                throw new IllegalArgumentException("Too many registers in: " + operand);
+            }
+        }
+
+        byte[] bytes = new byte[8];
+        bytes[0] = opcode;
+        bytes[1] = reg;
+        bytes[2] = base;
+        bytes[3] = index;
+        System.arraycopy(convertIntToBytes(offset), 0, bytes, 4, 4);
+
+        return bytes;
+    }
+
     // ------------------------ Helper Methods ------------------------
 
+    // Splits on whitespace, keeping [ ... ] memory operands together
+    private static String[] splitOperands(String instruction) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int depth = 0;
+
+        for (char c : instruction.toCharArray()) {
+            if (c == '[') depth++;
+            if (c == ']') depth--;
+
+            if (Character.isWhitespace(c) && depth == 0) {
+                if (!current.isEmpty()) {
+                    parts.add(current.toString());
+                    current.setLength(0);
+                }
+            } else {
+                current.append(c);
+            }
+        }
+        if (!current.isEmpty()) {
+            parts.add(current.toString());
+        }
+        return parts.toArray(new String[0]);
+    }
+
+    public static boolean isImmediate(String operand) {
+        return operand.matches("-?(\\d+|0[xX][0-9a-fA-F]+)");
+    }
+
+    public static long parseLongImmediate(String operand) {
+        boolean negative = operand.startsWith("-");
+        String digits = negative ? operand.substring(1) : operand;
+        if (!digits.startsWith("0x") && !digits.startsWith("0X")) {
+            return Long.parseLong(operand);
+        }
+        long value = Long.parseUnsignedLong(digits.substring(2), 16);
+        return negative ? -value : value;
+    }
+
+    private static boolean fitsInt(long value) {
+        return value == (int) value;
+    }
+
+    public static int parseImmediate(String operand) {
+        boolean negative = operand.startsWith("-");
+        String digits = negative ? operand.substring(1) : operand;
+        if (!digits.startsWith("0x") && !digits.startsWith("0X")) {
+            return Integer.parseInt(operand);
+        }
+        int value = Integer.parseUnsignedInt(digits.substring(2), 16);
+        return negative ? -value : value;
+    }
+
     public byte getOpCode(String opcode) {
         return switch (opcode.toUpperCase()) {
             case "MOV" -> MOV;
+            case "RDPMC" -> RDPMC;
             case "LOAD" -> LOAD;
             case "STORE" -> STORE;
 
@@ -353,6 +1217,7 @@ public class Assembler implements Registers {
             case "SUB" -> SUB;
             case "MUL" -> MUL;
             case "DIV" -> DIV;
+            case "CMP" -> CMP;
 
             case "AND" -> AND;
             case "OR" -> OR;
@@ -360,35 +1225,76 @@ public class Assembler implements Registers {
             case "NOT" -> NOT;
 
             case "JMP" -> JMP;
-            case "JZ" -> JZ;
-            case "JNZ" -> JNZ;
+            case "JZ", "JE" -> JZ;
+            case "JNZ", "JNE" -> JNZ;
+            case "JL" -> JL;
+            case "JLE" -> JLE;
+            case "JG" -> JG;
+            case "JGE" -> JGE;
+            case "JB" -> JB;
+            case "JBE" -> JBE;
+            case "JA" -> JA;
+            case "JAE" -> JAE;
             case "CALL" -> CALL;
             case "RET" -> RET;
+            case "HCALL" -> HCALL;
 
             case "PUSH" -> PUSH;
             case "POP" -> POP;
 
+            case "FLOAD" -> FLOAD;
+            case "FSTORE" -> FSTORE;
+            case "FLOADS" -> FLOADS;
+            case "FSTORES" -> FSTORES;
+            case "FMOV" -> FMOV;
+            case "FADD" -> FADD;
+            case "FSUB" -> FSUB;
+            case "FMUL" -> FMUL;
+            case "FDIV" -> FDIV;
+            case "FSQRT" -> FSQRT;
+            case "FCMP" -> FCMP;
+            case "CVTIF" -> CVTIF;
+            case "CVTFI" -> CVTFI;
+
             default -> throw new IllegalArgumentException("Invalid instruction: " + opcode);
         };
     }
 
     public byte getRegister(String register) {
         return switch (register.toUpperCase()) {
-            case "EAX" -> EAX;
-            case "EBX" -> EBX;
-            case "ECX" -> ECX;
-            case "EDX" -> EDX;
+            case "EAX", "RAX" -> EAX;
+            case "EBX", "RBX" -> EBX;
+            case "ECX", "RCX" -> ECX;
+            case "EDX", "RDX" -> EDX;
 
-            case "ESI" -> ESI;
-            case "EDI" -> EDI;
+            case "ESI", "RSI" -> ESI;
+            case "EDI", "RDI" -> EDI;
 
-            case "ESP" -> ESP;
-            case "EBP" -> EBP;
+            case "ESP", "RSP" -> ESP;
+            case "EBP", "RBP" -> EBP;
 
             case "IP" -> IP;
             case "ZF" -> ZF;
+            case "SF" -> SF;
+            case "CF" -> CF;
+            case "OF" -> OF;
 
             default -> throw new IllegalArgumentException("Invalid register: " + register);
         };
     }
+
+    public byte getFpRegister(String register) {
+        return switch (register.toUpperCase()) {
+            case "F0" -> F0;
+            case "F1" -> F1;
+            case "F2" -> F2;
+            case "F3" -> F3;
+            case "F4" -> F4;
+            case "F5" -> F5;
+            case "F6" -> F6;
+            case "F7" -> F7;
+
+            default -> throw new IllegalArgumentException("Invalid FP register: " + register);
+        };
+    }
 }
@@ -0,0 +1,204 @@
+package org.lpc.computer.CPU;
+
+import org.lpc.computer.Motherboard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.lpc.Logger.log;
+import static org.lpc.Logger.logErr;
+
+/**
+ * Builds a program from several source files: each file is assembled into an {@link ObjectModule} on its own
+ * scratch machine in parallel on a fork-join pool, then the modules are linked into the target machine
+ * <p>
+ * Modules are cached per file together with a hash of every file they were made from (the source, its includes
+ * and its {@code .incbin} files), so a rebuild only reassembles the files where one of those changed.
+ * The cache lives in memory and, with a cache directory, also on disk as {@code .o} files for later builds.
+ * Host function names are looked up in the target machine's host calls when a file is assembled.
+ * </p>
+ * <pre>
+ * Build build = new Build(motherboard, ForkJoinPool.commonPool(), Path.of("build"));
+ * build.build(List.of(Path.of("main.asm"), Path.of("lib/strings.asm")), Encoding.FIXED);
+ * </pre>
+ */
+public class Build {
+    /**
+     * @param assembled the files that had to be assembled, the others came from the cache
+     */
+    public record Result(List<ObjectModule> modules, List<Path> assembled, Linker linker, long nanos) {
+    }
+
+    // A module and the hash of each file it was made from when it was assembled
+    private record Entry(ObjectModule module, Map<Path, String> dependencies) {
+    }
+
+    private final Motherboard motherboard;
+    private final ForkJoinPool pool;
+    private final Path cacheDirectory; // null = memory only
+    private final Map<Path, Entry> cache = new ConcurrentHashMap<>();
+
+    public Build(Motherboard motherboard) {
+        this(motherboard, ForkJoinPool.commonPool(), null);
+    }
+
+    public Build(Motherboard motherboard, ForkJoinPool pool, Path cacheDirectory) {
+        this.motherboard = motherboard;
+        this.pool = pool;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Assembles what changed since the last build and links all sources, in this order, into the machine
+     */
+    public Result build(List<Path> sources, Encoding encoding) throws IOException {
+        long start = System.nanoTime();
+        List<Path> assembled = Collections.synchronizedList(new ArrayList<>());
+
+        List<Callable<ObjectModule>> tasks = new ArrayList<>();
+        for (Path source : sources) {
+            Path file = source.toAbsolutePath().normalize();
+            tasks.add(() -> module(file, assembled));
+        }
+
+        List<ObjectModule> modules = new ArrayList<>();
+        for (Future<ObjectModule> task : pool.invokeAll(tasks)) {
+            try {
+                modules.add(task.get());
+            } catch (ExecutionException e) {
+                // ForkJoinPool wraps the checked exceptions of a Callable in a plain RuntimeException
+                Throwable cause = e.getCause();
+                while (cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof IOException io) throw io;
+                if (cause instanceof UncheckedIOException io) throw io.getCause();
+                if (cause instanceof RuntimeException r) throw r;
+                throw new IllegalStateException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while building", e);
+            }
+        }
+
+        Linker linker = new Linker(motherboard.getCpu());
+        linker.link(modules, encoding);
+
+        long nanos = System.nanoTime() - start;
+        log("Built " + sources.size() + " files (" + assembled.size() + " assembled) in " + nanos / 1_000_000 + " ms");
+        return new Result(modules, List.copyOf(assembled), linker, nanos);
+    }
+
+    /**
+     * Forgets the cached modules, also those on disk
+     */
+    public void clean() throws IOException {
+        for (Path source : cacheDirectory != null ? cache.keySet() : List.<Path>of()) {
+            Files.deleteIfExists(cacheFile(source, ".o"));
+            Files.deleteIfExists(cacheFile(source, ".deps"));
+        }
+        cache.clear();
+    }
+
+    // ----------------------------- Assembling -----------------------------
+
+    private ObjectModule module(Path source, List<Path> assembled) throws IOException {
+        Entry entry = cache.get(source);
+        if (entry == null && cacheDirectory != null) {
+            entry = loadCached(source);
+        }
+        if (entry != null && upToDate(entry)) {
+            cache.put(source, entry);
+            return entry.module();
+        }
+
+        // Every file gets its own machine, the assembler uses the program and data regions as scratch space
+        Motherboard scratch = new Motherboard(0, motherboard.getRamDataSize(), motherboard.getRamProgramSize());
+        scratch.setHostCalls(motherboard.getHostCalls().copy());
+        scratch.boot();
+        Assembler assembler = scratch.getCpu().getAssembler();
+        ObjectModule module = assembler.assembleObject(source.toFile());
+
+        Map<Path, String> dependencies = new LinkedHashMap<>();
+        dependencies.put(source, hash(source));
+        for (File file : assembler.getDependencies()) {
+            dependencies.put(file.toPath(), hash(file.toPath()));
+        }
+        entry = new Entry(module, dependencies);
+        cache.put(source, entry);
+        if (cacheDirectory != null) {
+            saveCached(source, entry);
+        }
+        assembled.add(source);
+        return module;
+    }
+
+    private static boolean upToDate(Entry entry) throws IOException {
+        for (Map.Entry<Path, String> dependency : entry.dependencies().entrySet()) {
+            if (!Files.exists(dependency.getKey()) || !hash(dependency.getKey()).equals(dependency.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String hash(Path file) throws IOException {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ----------------------------- Disk cache -----------------------------
+
+    // <name>-<hash of the path>.o next to a .deps file with one "hash path" line per dependency
+    private Path cacheFile(Path source, String extension) {
+        String name = source.getFileName().toString().replaceFirst("\\.asm$", "");
+        return cacheDirectory.resolve(name + "-" + Integer.toHexString(source.toString().hashCode()) + extension);
+    }
+
+    // null if there is no usable cached module: missing, from another version or corrupt, it is assembled again
+    private Entry loadCached(Path source) {
+        Path object = cacheFile(source, ".o");
+        Path deps = cacheFile(source, ".deps");
+        if (!Files.exists(object) || !Files.exists(deps)) return null;
+
+        try {
+            Map<Path, String> dependencies = new LinkedHashMap<>();
+            for (String line : Files.readAllLines(deps)) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length != 2) return null;
+                dependencies.put(Path.of(parts[1]), parts[0]);
+            }
+            return new Entry(ObjectModule.load(object), dependencies);
+        } catch (IOException e) {
+            logErr(() -> "Ignoring cached module of " + source + ": " + e);
+            return null;
+        }
+    }
+
+    private void saveCached(Path source, Entry entry) throws IOException {
+        Files.createDirectories(cacheDirectory);
+        entry.module().save(cacheFile(source, ".o"));
+        StringBuilder deps = new StringBuilder();
+        entry.dependencies().forEach((file, hash) -> deps.append(hash).append(' ').append(file).append('\n'));
+        Files.writeString(cacheFile(source, ".deps"), deps);
+    }
+}
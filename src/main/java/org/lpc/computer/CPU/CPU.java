@@ -1,18 +1,33 @@
 package org.lpc.computer.CPU;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.lpc.Logger;
 import org.lpc.computer.Motherboard;
+import org.lpc.computer.Recorder;
+import org.lpc.computer.Replayer;
 import org.lpc.computer.RAM.RAM;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.function.IntSupplier;
 
 import static org.lpc.Logger.*;
 
 /**
- * 32-bit CPU
- * 32-bit registers
+ * 32-bit CPU with an optional 64-bit mode
+ * <p>
+ * Registers are stored 64 bits wide. In 32-bit mode (the default) every result is a 32-bit value kept sign-extended,
+ * so 32-bit programs behave exactly as before. A program assembled with {@code .bits 64} runs in 64-bit mode:
+ * arithmetic and logic work on the full registers, loads, stores and stack slots are 8 bytes and addresses
+ * are 64-bit, which reaches a heap beyond 2GB. IP stays 32-bit, programs always live in the low memory.
+ * </p>
+ * <p>
+ * The FPU has eight registers F0-F7 holding doubles. Its operations are plain Java double arithmetic, which is
+ * IEEE 754 with round to nearest, so NaN, infinities and signed zeros behave as specified.
+ * 32-bit floats are widened when loaded and rounded when stored.
+ * </p>
  */
 
 @Getter @Setter
@@ -20,16 +35,35 @@ public class CPU implements Opcodes, Registers{
     // ----------------- Registers -----------------
     // Where the values of the registers are stored
     int IP_VALUE;
-    int EAX_VALUE, EBX_VALUE, ECX_VALUE, EDX_VALUE;
-    int ESP_VALUE, EBP_VALUE;
-    int ESI_VALUE, EDI_VALUE;
-    boolean ZF_VALUE;
+    long EAX_VALUE, EBX_VALUE, ECX_VALUE, EDX_VALUE;
+    long ESP_VALUE, EBP_VALUE;
+    long ESI_VALUE, EDI_VALUE;
+    boolean ZF_VALUE, SF_VALUE, CF_VALUE, OF_VALUE;
+    double[] F_VALUES = new double[FP_REGISTER_COUNT]; // F0-F7
+
+    long instructionCount; // Instructions retired since reset
+    long branchCount;      // Taken jumps, calls and returns since reset, see RDPMC
+
+    Encoding encoding = Encoding.FIXED; // Of the loaded program, set by the assembler
+    Mode mode = Mode.BITS_32;           // Of the loaded program, set by the assembler
+    @Getter(AccessLevel.NONE)
+    private final Instruction decoded = new Instruction();
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private Instruction[] verifiedCode; // Predecoded program while in verified mode, see enableVerifiedMode()
 
     // -------------------- CPU --------------------
 
     Motherboard motherboard;
     RAM ram;
     Assembler assembler;
+    HostCalls hostCalls; // The motherboard's, see HCALL
+
+    CPU checkpoint; // Register state saved by checkpoint()
+
+    Debugger debugger; // Non-null while a debugger is attached, see attachDebugger()
+    TimingModel timingModel; // Non-null while performance is being estimated, see attachTimingModel()
+    Recorder recorder; // Non-null while the run is being recorded
+    Replayer replayer; // Non-null while a recording is being replayed
 
     public CPU(Motherboard motherboard){
         this.motherboard = motherboard;
@@ -38,197 +72,649 @@ public class CPU implements Opcodes, Registers{
 
     public void init(){
         this.ram = motherboard.getRam();
+        this.hostCalls = motherboard.getHostCalls();
         this.assembler = new Assembler(this);
+        restart();
+    }
+
+    // Clears the registers and points IP and ESP at the start of the program and stack
+    public void restart(){
+        reset();
         ESP_VALUE = ram.getStackEnd();
         IP_VALUE = ram.getProgramStart();
     }
 
+    /**
+     * Creates a CPU for the child machine with the same register state and symbols as this one.
+     * The child's RAM has to be set on its motherboard already.
+     */
+    public CPU fork(Motherboard child){
+        CPU copy = new CPU(child);
+        copy.init();
+        copy.copyRegistersFrom(this);
+        copy.checkpoint();
+        copy.assembler.copySymbolsFrom(assembler);
+        copy.encoding = encoding;
+        copy.mode = mode;
+        return copy;
+    }
+
+    public void copyRegistersFrom(CPU other){
+        setRegisterState(other.getRegisterState());
+    }
+
+    // The complete architectural state and the CPU's counters as one array, used for copying, checkpoints and recordings
+    public long[] getRegisterState(){
+        return new long[] {
+                IP_VALUE, EAX_VALUE, EBX_VALUE, ECX_VALUE, EDX_VALUE,
+                ESP_VALUE, EBP_VALUE, ESI_VALUE, EDI_VALUE,
+                ZF_VALUE ? 1 : 0, SF_VALUE ? 1 : 0, CF_VALUE ? 1 : 0, OF_VALUE ? 1 : 0,
+                instructionCount, branchCount,
+                // FP registers as raw bits, so NaN payloads survive a copy
+                Double.doubleToRawLongBits(F_VALUES[0]), Double.doubleToRawLongBits(F_VALUES[1]),
+                Double.doubleToRawLongBits(F_VALUES[2]), Double.doubleToRawLongBits(F_VALUES[3]),
+                Double.doubleToRawLongBits(F_VALUES[4]), Double.doubleToRawLongBits(F_VALUES[5]),
+                Double.doubleToRawLongBits(F_VALUES[6]), Double.doubleToRawLongBits(F_VALUES[7])
+        };
+    }
+
+    public void setRegisterState(long[] state){
+        int i = 0;
+        this.IP_VALUE = (int) state[i++];
+        this.EAX_VALUE = state[i++];
+        this.EBX_VALUE = state[i++];
+        this.ECX_VALUE = state[i++];
+        this.EDX_VALUE = state[i++];
+        this.ESP_VALUE = state[i++];
+        this.EBP_VALUE = state[i++];
+        this.ESI_VALUE = state[i++];
+        this.EDI_VALUE = state[i++];
+        this.ZF_VALUE = state[i++] != 0;
+        this.SF_VALUE = state[i++] != 0;
+        this.CF_VALUE = state[i++] != 0;
+        this.OF_VALUE = state[i++] != 0;
+        this.instructionCount = state[i++];
+        this.branchCount = state[i++];
+        for (int f = 0; f < FP_REGISTER_COUNT; f++) {
+            this.F_VALUES[f] = Double.longBitsToDouble(state[i++]);
+        }
+    }
+
     public void loadProgram(String programFile){
+        loadProgram(programFile, Encoding.FIXED);
+    }
+
+    public void loadProgram(String programFile, Encoding encoding){
         File file = new File(programFile);
         try {
-            assembler.assemble(file);
+            assembler.assemble(file, encoding);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    public void run() {
-        while (IP_VALUE < ram.getProgramEnd()) {
-            byte opcode = fetch(0);
-            System.out.println("IP: " + IP_VALUE + " Opcode: " + getOpcodeName(opcode));
-            int next = decodeAndExecute(opcode);
-            IP_VALUE += next;
+    public enum StopReason {
+        HALTED,     // Ran past the end of the program
+        BREAKPOINT, // About to execute an instruction with a breakpoint
+        WATCHPOINT, // The last instruction accessed a watched address
+        STEP        // Executed the requested number of instructions (or the quantum of run(long))
+    }
+
+    /**
+     * Runs until the program ends or, with a debugger attached, until a breakpoint or watchpoint is hit.
+     * Without a debugger or timing model this is a plain fetch-execute loop with no extra checks at all.
+     */
+    public StopReason run() {
+        if (debugger != null || timingModel != null) {
+            StopReason reason = runInstrumented(Long.MAX_VALUE);
+            if (reason != StopReason.HALTED) return reason;
+        } else {
+            while (IP_VALUE < ram.getProgramEnd()) {
+                executeNext();
+            }
         }
         logLnColor(ANSI_GREEN, "Program execution complete. \n");
+        return StopReason.HALTED;
+    }
+
+    /**
+     * Runs at most maxInstructions and returns, so a scheduler can give every machine a time slice.
+     * Returns STEP when the quantum was used up, the program can be continued with another call.
+     */
+    public StopReason run(long maxInstructions) {
+        if (debugger != null || timingModel != null) {
+            return runInstrumented(maxInstructions);
+        }
+        int end = ram.getProgramEnd();
+        for (long executed = 0; executed < maxInstructions; executed++) {
+            if (IP_VALUE >= end) {
+                return StopReason.HALTED;
+            }
+            executeNext();
+        }
+        return IP_VALUE >= end ? StopReason.HALTED : StopReason.STEP;
     }
 
-    private byte fetch(int index){
-        return ram.read(IP_VALUE + index);
+    // Returns the instruction it executed
+    private Instruction executeNext() {
+        Instruction ins;
+        if (verifiedCode != null) {
+            ins = verifiedInstruction(IP_VALUE);
+        } else {
+            ins = decoded;
+            if (encoding == Encoding.COMPACT) {
+                decoded.decodeCompact(ram, IP_VALUE);
+            } else {
+                decoded.decodeFixed(ram, IP_VALUE);
+            }
+        }
+        if (isEnabled(Level.TRACE)) { // Checked first, the lambda would otherwise be allocated for every instruction
+            trace(() -> "IP: " + IP_VALUE + " Opcode: " + getOpcodeName(ins.opcode));
+        }
+        int next = execute(ins); // Not folded into +=, jumps set IP_VALUE themselves
+        IP_VALUE += next;
+        instructionCount++;
+        return ins;
     }
 
-    // Fetches the next word (4 bytes) from the program memory
-    // Used for instructions that require a 32-bit value
-    // The word will always be stored 4 bytes after the opcode
-    private int fetchWord(){
-        return ram.readWord(IP_VALUE + 4);
+    private Instruction verifiedInstruction(int ip) {
+        int offset = ip - ram.getProgramStart();
+        // Jump targets are verified, only a RET to a corrupted return address can land elsewhere
+        Instruction ins = offset >= 0 && offset < verifiedCode.length ? verifiedCode[offset] : null;
+        if (ins == null) {
+            throw new IllegalStateException("IP " + ip + " is not an instruction of the verified program");
+        }
+        return ins;
+    }
+
+    // Executes at most maxInstructions, checking breakpoints before and watchpoints after each one
+    // and feeding the timing model
+    StopReason runInstrumented(long maxInstructions) {
+        for (long executed = 0; executed < maxInstructions; executed++) {
+            int ip = IP_VALUE;
+            if (ip >= ram.getProgramEnd()) {
+                return StopReason.HALTED;
+            }
+            if (debugger != null) {
+                if (debugger.isBreakpoint(ip) && !debugger.resumingFrom(ip)) {
+                    debugger.stopped(ip);
+                    return StopReason.BREAKPOINT;
+                }
+                debugger.stopped(-1);
+            }
+
+            if (timingModel != null) {
+                timingModel.beforeInstruction(ip);
+                Instruction ins = executeNext();
+                timingModel.afterInstruction(ins.opcode, ip, IP_VALUE, ins.length);
+            } else {
+                executeNext();
+            }
+
+            if (debugger != null && debugger.takeWatchHit()) {
+                return StopReason.WATCHPOINT;
+            }
+        }
+        return IP_VALUE >= ram.getProgramEnd() ? StopReason.HALTED : StopReason.STEP;
+    }
+
+    // ------------------------ Verified mode ------------------------
+
+    /**
+     * Verifies the loaded program (see {@link Verifier}) and, if it passes, runs it from now on without fetching
+     * and decoding: every instruction is decoded once up front and the program region is write-protected.
+     * Loading a program, {@link #reset()}, {@link #restart()} and {@link #restore()} go back to the normal mode.
+     *
+     * @return the verification result, the mode only changes if it is valid
+     */
+    public Verifier.Result enableVerifiedMode() {
+        Verifier verifier = new Verifier(this);
+        Verifier.Result result = verifier.verify();
+        if (result.isValid()) {
+            verifiedCode = verifier.predecode();
+            ram.protect(ram.getProgramStart(), (long) ram.getProgramStart() + ram.getProgramSize());
+        }
+        return result;
     }
 
-    // Returns the pointer increase needed to get the next instruction
-    // Used for instructions that require a 32-bit value (they are 8 bytes long)
-    private int decodeAndExecute(byte opcode) {
+    public void disableVerifiedMode() {
+        if (verifiedCode != null) {
+            verifiedCode = null;
+            ram.unprotect();
+        }
+    }
+
+    public boolean isVerifiedMode() {
+        return verifiedCode != null;
+    }
+
+    // ------------------------ Debugging ------------------------
+
+    public Debugger attachDebugger() {
+        if (debugger == null) {
+            debugger = new Debugger(this);
+        }
+        return debugger;
+    }
+
+    public void detachDebugger() {
+        if (debugger != null) {
+            debugger.clearWatchpoints();
+            debugger = null;
+        }
+    }
+
+    // ------------------------ Timing ------------------------
+
+    /**
+     * Estimates cycles for everything executed from now on, see {@link TimingModel}
+     */
+    public void attachTimingModel(TimingModel model) {
+        detachTimingModel();
+        timingModel = model;
+        model.attach(this);
+    }
+
+    public void detachTimingModel() {
+        if (timingModel != null) {
+            timingModel.detach();
+            timingModel = null;
+        }
+    }
+
+    /**
+     * Every nondeterministic value entering the machine (device reads, host time, ...) has to come through here,
+     * so a recording can log it and a replay can feed the logged value back at the same instruction
+     */
+    public int input(IntSupplier source){
+        if (replayer != null) {
+            return replayer.nextInput(instructionCount);
+        }
+        int value = source.getAsInt();
+        if (recorder != null) {
+            recorder.input(instructionCount, value);
+        }
+        return value;
+    }
+
+    /**
+     * Current value of a performance counter, see {@link PerfCounter}. The counters are kept up to date by
+     * execute() itself, so every way of running (plain, instrumented, verified, scheduled) sees the same values.
+     * Recordings log the value like any other input, replays don't need the same tools attached.
+     */
+    public long readCounter(long number) {
+        long value = switch (PerfCounter.of(number)) {
+            case INSTRUCTIONS -> instructionCount;
+            case CYCLES -> timingModel != null ? timingModel.getCycles() : 0;
+            case BRANCHES -> branchCount;
+            case MEMORY_ACCESSES_SINCE_FIRST_READ -> {
+                if (!ram.isAccessCounting()) {
+                    ram.setAccessCounting(true); // Counts from here on, see PerfCounter
+                }
+                yield ram.getAccessCount();
+            }
+        };
+        if (recorder == null && replayer == null) {
+            return value;
+        }
+        long low = input(() -> (int) value) & 0xFFFFFFFFL;
+        return low | (long) input(() -> (int) (value >>> 32)) << 32;
+    }
+
+    // Returns the pointer increase needed to get the next instruction, 0 if the instruction set IP itself
+    private int execute(Instruction ins) {
+        return mode == Mode.BITS_64 ? execute64(ins) : execute32(ins);
+    }
+
+    private int execute32(Instruction ins) {
+        byte opcode = ins.opcode;
         switch(opcode){
             case MOV -> {
-                byte dest = fetch(1);
-                byte src = fetch(2);
-                setRegister(dest, getRegisterValue(src));
-                return 4;
+                byte dest = ins.a;
+                byte src = ins.b;
+                setRegister(dest, reg32(src));
+                return ins.length;
             }
             case MOV_I -> {
-                byte dest = fetch(1);
-                int value = fetchWord();
+                byte dest = ins.a;
+                int value = (int) ins.imm;
                 setRegister(dest, value);
-                return 8;
+                return ins.length;
+            }
+            case RDPMC -> {
+                setRegister(ins.a, (int) readCounter(ins.imm));
+                return ins.length;
             }
             case LOAD -> {
-                byte dest = fetch(1);
-                int address = fetchWord();
+                byte dest = ins.a;
+                int address = (int) ins.imm;
                 setRegister(dest, ram.readWord(address));
-                return 8;
+                return ins.length;
             }
             case STORE -> {
-                byte src = fetch(1);
-                int address = fetchWord();
-                ram.writeWord(getRegisterValue(src), address);
-                return 8;
+                byte src = ins.a;
+                int address = (int) ins.imm;
+                ram.writeWord(reg32(src), address);
+                return ins.length;
             }
-            case ADD -> {
-                byte src = fetch(1);
-                byte src2 = fetch(2);
-                byte dest = fetch(3);
-
-                int result = getRegisterValue(src) + getRegisterValue(src2);
-                setRegister(dest, result);
-                ZF_VALUE = (result == 0);
-
-                log(dumpRegisters());
-
-                return 4;
+            case LOADX -> {
+                byte dest = ins.a;
+                setRegister(dest, ram.readWord(effectiveAddress32(ins)));
+                return ins.length;
             }
-            case SUB -> {
-                byte src = fetch(1);
-                byte src2 = fetch(2);
-                byte dest = fetch(3);
-
-                int result = getRegisterValue(src) - getRegisterValue(src2);
-                setRegister(dest, result);
-                ZF_VALUE = (result == 0);
-                return 4;
+            case STOREX -> {
+                byte src = ins.a;
+                ram.writeWord(reg32(src), effectiveAddress32(ins));
+                return ins.length;
             }
-            case MUL -> {
-                byte src = fetch(1);
-                byte src2 = fetch(2);
-                byte dest = fetch(3);
+            case ADD, SUB, MUL, DIV -> {
+                byte src = ins.a;
+                byte src2 = ins.b;
+                byte dest = ins.c;
 
-                int result = getRegisterValue(src) * getRegisterValue(src2);
-                setRegister(dest, result);
-                ZF_VALUE = (result == 0);
-                return 4;
+                setRegister(dest, arithmetic(opcode, reg32(src), reg32(src2)));
+                return ins.length;
             }
-            case DIV -> {
-                byte src = fetch(1);
-                byte src2 = fetch(2);
-                byte dest = fetch(3);
+            case ADD_I, SUB_I, MUL_I, DIV_I -> {
+                byte src = ins.a;
+                byte dest = ins.c;
 
-                int divisor = getRegisterValue(src2);
-                if (divisor == 0) {
-                    throw new ArithmeticException("Division by zero");
-                }
-                int result = getRegisterValue(src) / divisor;
-                setRegister(dest, result);
-                ZF_VALUE = (result == 0);
-                return 4;
+                // The immediate forms are 4 above their register forms
+                setRegister(dest, arithmetic((byte) (opcode - 4), reg32(src), (int) ins.imm));
+                return ins.length;
+            }
+            case CMP -> {
+                arithmetic(SUB, reg32(ins.a), reg32(ins.b));
+                return ins.length;
+            }
+            case CMP_I -> {
+                arithmetic(SUB, reg32(ins.a), (int) ins.imm);
+                return ins.length;
             }
 
             case AND -> {
-                byte src = fetch(1);
-                byte src2 = fetch(2);
-                byte dest = fetch(3);
+                byte src = ins.a;
+                byte src2 = ins.b;
+                byte dest = ins.c;
 
-                setRegister(dest, getRegisterValue(src) & getRegisterValue(src2));
-                return 4;
+                setRegister(dest, reg32(src) & reg32(src2));
+                return ins.length;
             }
             case OR -> {
-                byte src = fetch(1);
-                byte src2 = fetch(2);
-                byte dest = fetch(3);
+                byte src = ins.a;
+                byte src2 = ins.b;
+                byte dest = ins.c;
 
-                setRegister(dest, getRegisterValue(src) | getRegisterValue(src2));
-                return 4;
+                setRegister(dest, reg32(src) | reg32(src2));
+                return ins.length;
             }
             case XOR -> {
-                byte src = fetch(1);
-                byte src2 = fetch(2);
-                byte dest = fetch(3);
+                byte src = ins.a;
+                byte src2 = ins.b;
+                byte dest = ins.c;
 
-                setRegister(dest, getRegisterValue(src) ^ getRegisterValue(src2));
-                return 4;
+                setRegister(dest, reg32(src) ^ reg32(src2));
+                return ins.length;
             }
             case NOT -> {
-                byte reg = fetch(1);
-                setRegister(reg, ~getRegisterValue(reg));
-                return 4;
+                byte reg = ins.a;
+                setRegister(reg, ~reg32(reg));
+                return ins.length;
             }
-            case JMP -> {
-                int address = fetchWord();
-                stackPush(IP_VALUE);
-                IP_VALUE = address;
-                return 0;
+            case AND_I -> {
+                setRegister(ins.c, reg32(ins.a) & (int) ins.imm);
+                return ins.length;
             }
-            case JZ -> {
-                int address = fetchWord();
-                if(ZF_VALUE){
-                    stackPush(IP_VALUE);
-                    IP_VALUE = address;
-                }  else {
-                    return 8; // next instruction
-                }
+            case OR_I -> {
+                setRegister(ins.c, reg32(ins.a) | (int) ins.imm);
+                return ins.length;
+            }
+            case XOR_I -> {
+                setRegister(ins.c, reg32(ins.a) ^ (int) ins.imm);
+                return ins.length;
+            }
+            case JMP -> {
+                IP_VALUE = (int) ins.imm;
+                branchCount++;
                 return 0;
             }
-            case JNZ -> {
-                int address = fetchWord();
-                if(!ZF_VALUE){
-                    stackPush(IP_VALUE);
-                    IP_VALUE = address;
-                } else {
-                    return 8; // next instruction
+            case JZ, JNZ, JL, JLE, JG, JGE, JB, JBE, JA, JAE -> {
+                if (condition(opcode)) {
+                    IP_VALUE = (int) ins.imm;
+                    branchCount++;
+                    return 0;
                 }
-                return 0;
+                return ins.length;
             }
             case CALL -> {
-                int address = fetchWord();
-                stackPush(IP_VALUE); // Push return address onto the stack
+                int address = (int) ins.imm;
+                stackPush(IP_VALUE + ins.length); // Push return address onto the stack
                 IP_VALUE = address; // Jump to the function
+                branchCount++;
                 return 0;
             }
             case RET -> {
-                IP_VALUE = stackPop(); // Pop return address from the stack
-                return 8;         // Return 8 bytes after the call instruction
+                IP_VALUE = (int) stackPop(); // Pop return address from the stack
+                branchCount++;
+                return 0;
+            }
+            case HCALL -> {
+                hostCalls.call((int) ins.imm, this);
+                return ins.length;
             }
             case PUSH -> {
-                byte reg = fetch(1);
-                stackPush(getRegisterValue(reg));
-                return 4;
+                byte reg = ins.a;
+                stackPush(reg32(reg));
+                return ins.length;
             }
             case POP -> {
-                byte reg = fetch(1);
+                byte reg = ins.a;
                 setRegister(reg, stackPop());
-                return 4;
+                return ins.length;
+            }
+            case FLOAD, FSTORE, FLOADS, FSTORES -> {
+                fpuMemory(ins, effectiveAddress32(ins));
+                return ins.length;
+            }
+            case FMOV, FADD, FSUB, FMUL, FDIV, FSQRT, FCMP, CVTIF, CVTFI -> {
+                fpu(ins);
+                return ins.length;
             }
         }
         throw new IllegalArgumentException("Invalid opcode: " + opcode);
     }
 
-    private void setRegister(byte reg, int value){
+    // 64-bit mode: the same instructions on full registers with 8 byte memory accesses
+    private int execute64(Instruction ins) {
+        byte opcode = ins.opcode;
+        switch (opcode) {
+            case MOV -> setRegister(ins.a, getRegisterValue(ins.b));
+            case MOV_I, MOV_I64 -> setRegister(ins.a, ins.imm);
+            case RDPMC -> setRegister(ins.a, readCounter(ins.imm));
+            case LOAD -> setRegister(ins.a, ram.readDWord(ins.imm & 0xFFFFFFFFL));
+            case STORE -> ram.writeDWord(getRegisterValue(ins.a), ins.imm & 0xFFFFFFFFL);
+            case LOADX -> setRegister(ins.a, ram.readDWord(effectiveAddress64(ins)));
+            case STOREX -> ram.writeDWord(getRegisterValue(ins.a), effectiveAddress64(ins));
+            case ADD, SUB, MUL, DIV ->
+                    setRegister(ins.c, arithmetic64(opcode, getRegisterValue(ins.a), getRegisterValue(ins.b)));
+            case ADD_I, SUB_I, MUL_I, DIV_I ->
+                    setRegister(ins.c, arithmetic64((byte) (opcode - 4), getRegisterValue(ins.a), ins.imm));
+            case CMP -> arithmetic64(SUB, getRegisterValue(ins.a), getRegisterValue(ins.b));
+            case CMP_I -> arithmetic64(SUB, getRegisterValue(ins.a), ins.imm);
+            case AND -> setRegister(ins.c, getRegisterValue(ins.a) & getRegisterValue(ins.b));
+            case OR -> setRegister(ins.c, getRegisterValue(ins.a) | getRegisterValue(ins.b));
+            case XOR -> setRegister(ins.c, getRegisterValue(ins.a) ^ getRegisterValue(ins.b));
+            case NOT -> setRegister(ins.a, ~getRegisterValue(ins.a));
+            case AND_I -> setRegister(ins.c, getRegisterValue(ins.a) & ins.imm);
+            case OR_I -> setRegister(ins.c, getRegisterValue(ins.a) | ins.imm);
+            case XOR_I -> setRegister(ins.c, getRegisterValue(ins.a) ^ ins.imm);
+            case PUSH -> stackPush(getRegisterValue(ins.a));
+            case POP -> setRegister(ins.a, stackPop());
+            case FLOAD, FSTORE, FLOADS, FSTORES -> fpuMemory(ins, effectiveAddress64(ins));
+            default -> {
+                return execute32(ins); // Jumps, CALL, RET, HCALL and FP register operations don't depend on the width
+            }
+        }
+        return ins.length;
+    }
+
+    // ADD, SUB, MUL or DIV of a and b, setting the flags from the result
+    private int arithmetic(byte opcode, int a, int b) {
+        int result;
+        switch (opcode) {
+            case ADD -> {
+                result = a + b;
+                CF_VALUE = Integer.compareUnsigned(result, a) < 0;
+                OF_VALUE = ((a ^ result) & (b ^ result)) < 0;
+            }
+            case SUB -> {
+                result = a - b;
+                CF_VALUE = Integer.compareUnsigned(a, b) < 0;
+                OF_VALUE = ((a ^ b) & (a ^ result)) < 0;
+            }
+            case MUL -> {
+                long wide = (long) a * b;
+                result = (int) wide;
+                CF_VALUE = OF_VALUE = wide != result;
+            }
+            case DIV -> {
+                if (b == 0) {
+                    throw new ArithmeticException("Division by zero");
+                }
+                result = a / b;
+                CF_VALUE = OF_VALUE = false;
+            }
+            default -> throw new IllegalArgumentException("Not an arithmetic opcode: " + opcode);
+        }
+        ZF_VALUE = (result == 0);
+        SF_VALUE = (result < 0);
+
+        if (opcode == ADD) {
+            debug(this::dumpRegisters);
+        }
+        return result;
+    }
+
+    private long arithmetic64(byte opcode, long a, long b) {
+        long result;
+        switch (opcode) {
+            case ADD -> {
+                result = a + b;
+                CF_VALUE = Long.compareUnsigned(result, a) < 0;
+                OF_VALUE = ((a ^ result) & (b ^ result)) < 0;
+            }
+            case SUB -> {
+                result = a - b;
+                CF_VALUE = Long.compareUnsigned(a, b) < 0;
+                OF_VALUE = ((a ^ b) & (a ^ result)) < 0;
+            }
+            case MUL -> {
+                result = a * b;
+                CF_VALUE = OF_VALUE = Math.multiplyHigh(a, b) != (result >> 63);
+            }
+            case DIV -> {
+                if (b == 0) {
+                    throw new ArithmeticException("Division by zero");
+                }
+                result = a / b;
+                CF_VALUE = OF_VALUE = false;
+            }
+            default -> throw new IllegalArgumentException("Not an arithmetic opcode: " + opcode);
+        }
+        ZF_VALUE = (result == 0);
+        SF_VALUE = (result < 0);
+        return result;
+    }
+
+    // ----------------------------- FPU -----------------------------
+
+    private void fpuMemory(Instruction ins, long address) {
+        switch (ins.opcode) {
+            case FLOAD -> F_VALUES[fp(ins.a)] = Double.longBitsToDouble(ram.readDWord(address));
+            case FSTORE -> ram.writeDWord(Double.doubleToRawLongBits(F_VALUES[fp(ins.a)]), address);
+            case FLOADS -> F_VALUES[fp(ins.a)] = Float.intBitsToFloat(ram.readWord(address));
+            case FSTORES -> ram.writeWord(Float.floatToRawIntBits((float) F_VALUES[fp(ins.a)]), address);
+            default -> throw new IllegalArgumentException("Not an FP memory opcode: " + ins.opcode);
+        }
+    }
+
+    private void fpu(Instruction ins) {
+        double[] f = F_VALUES;
+        switch (ins.opcode) {
+            case FMOV -> f[fp(ins.a)] = f[fp(ins.b)];
+            case FADD -> f[fp(ins.c)] = f[fp(ins.a)] + f[fp(ins.b)];
+            case FSUB -> f[fp(ins.c)] = f[fp(ins.a)] - f[fp(ins.b)];
+            case FMUL -> f[fp(ins.c)] = f[fp(ins.a)] * f[fp(ins.b)];
+            case FDIV -> f[fp(ins.c)] = f[fp(ins.a)] / f[fp(ins.b)]; // x / 0 is an infinity or NaN, not an error
+            case FSQRT -> f[fp(ins.a)] = Math.sqrt(f[fp(ins.b)]);
+            case FCMP -> {
+                // Unsigned style flags, so JB / JBE / JA / JAE / JE compare floats
+                double a = f[fp(ins.a)];
+                double b = f[fp(ins.b)];
+                boolean unordered = Double.isNaN(a) || Double.isNaN(b);
+                ZF_VALUE = unordered || a == b;
+                CF_VALUE = unordered || a < b;
+                SF_VALUE = OF_VALUE = false;
+            }
+            case CVTIF -> f[fp(ins.a)] = mode == Mode.BITS_64 ? getRegisterValue(ins.b) : reg32(ins.b);
+            // Java's casts truncate toward zero, saturate out of range values and turn NaN into 0
+            case CVTFI -> setRegister(ins.a, mode == Mode.BITS_64 ? (long) f[fp(ins.b)] : (int) f[fp(ins.b)]);
+            default -> throw new IllegalArgumentException("Not an FP opcode: " + ins.opcode);
+        }
+    }
+
+    // Index into F_VALUES
+    private static int fp(byte reg) {
+        int index = reg - F0;
+        if (index < 0 || index >= FP_REGISTER_COUNT) {
+            throw new IllegalArgumentException("Invalid FP register: " + reg);
+        }
+        return index;
+    }
+
+    private boolean condition(byte opcode) {
+        return switch (opcode) {
+            case JZ -> ZF_VALUE;
+            case JNZ -> !ZF_VALUE;
+            case JL -> SF_VALUE != OF_VALUE;
+            case JLE -> ZF_VALUE || SF_VALUE != OF_VALUE;
+            case JG -> !ZF_VALUE && SF_VALUE == OF_VALUE;
+            case JGE -> SF_VALUE == OF_VALUE;
+            case JB -> CF_VALUE;
+            case JBE -> CF_VALUE || ZF_VALUE;
+            case JA -> !CF_VALUE && !ZF_VALUE;
+            case JAE -> !CF_VALUE;
+            default -> throw new IllegalArgumentException("Not a conditional jump: " + opcode);
+        };
+    }
+
+    // base + index * scale + offset of a LOADX / STOREX
+    private int effectiveAddress32(Instruction ins) {
+        byte base = ins.b;
+        byte index = ins.c;
+        int address = (int) ins.imm;
+
+        if (base != NO_REGISTER) {
+            address += reg32(base);
+        }
+        if ((index & 0x3F) != NO_INDEX) {
+            address += reg32((byte) (index & 0x3F)) << ((index >> 6) & 3);
+        }
+        return address;
+    }
+
+    private long effectiveAddress64(Instruction ins) {
+        long address = ins.imm;
+        if (ins.b != NO_REGISTER) {
+            address += getRegisterValue(ins.b);
+        }
+        if ((ins.c & 0x3F) != NO_INDEX) {
+            address += getRegisterValue((byte) (ins.c & 0x3F)) << ((ins.c >> 6) & 3);
+        }
+        return address;
+    }
+
+    private void setRegister(byte reg, long value){
         switch(reg){
             case EAX -> EAX_VALUE = value;
             case EBX -> EBX_VALUE = value;
@@ -238,14 +724,22 @@ public class CPU implements Opcodes, Registers{
             case EBP -> EBP_VALUE = value;
             case ESI -> ESI_VALUE = value;
             case EDI -> EDI_VALUE = value;
-            case IP -> IP_VALUE = value;
+            case IP -> IP_VALUE = (int) value;
             case ZF -> ZF_VALUE = (value != 0);
+            case SF -> SF_VALUE = (value != 0);
+            case CF -> CF_VALUE = (value != 0);
+            case OF -> OF_VALUE = (value != 0);
 
-            default -> System.err.println("Invalid register: " + reg);
+            default -> logErr(() -> "Invalid register: " + reg);
         }
     }
 
-    private int getRegisterValue(byte reg){
+    // The low 32 bits of a register, for 32-bit mode
+    private int reg32(byte reg){
+        return (int) getRegisterValue(reg);
+    }
+
+    private long getRegisterValue(byte reg){
         switch(reg){
             case EAX -> {
                 return EAX_VALUE;
@@ -277,8 +771,17 @@ public class CPU implements Opcodes, Registers{
             case ZF -> {
                 return ZF_VALUE ? 1 : 0;
             }
+            case SF -> {
+                return SF_VALUE ? 1 : 0;
+            }
+            case CF -> {
+                return CF_VALUE ? 1 : 0;
+            }
+            case OF -> {
+                return OF_VALUE ? 1 : 0;
+            }
             default -> {
-                System.err.println("Invalid register: " + reg);
+                logErr(() -> "Invalid register: " + reg);
                 return -1;
             }
         }
@@ -288,55 +791,119 @@ public class CPU implements Opcodes, Registers{
         return switch(opcode){
             case MOV -> "MOV";
             case MOV_I -> "MOV_I";
+            case RDPMC -> "RDPMC";
+            case MOV_I64 -> "MOV_I64";
             case LOAD -> "LOAD";
             case STORE -> "STORE";
+            case LOADX -> "LOADX";
+            case STOREX -> "STOREX";
             case ADD -> "ADD";
             case SUB -> "SUB";
             case MUL -> "MUL";
             case DIV -> "DIV";
+            case ADD_I -> "ADD_I";
+            case SUB_I -> "SUB_I";
+            case MUL_I -> "MUL_I";
+            case DIV_I -> "DIV_I";
+            case CMP -> "CMP";
+            case CMP_I -> "CMP_I";
             case AND -> "AND";
             case OR -> "OR";
             case XOR -> "XOR";
             case NOT -> "NOT";
+            case AND_I -> "AND_I";
+            case OR_I -> "OR_I";
+            case XOR_I -> "XOR_I";
             case JMP -> "JMP";
             case JZ -> "JZ";
             case JNZ -> "JNZ";
+            case JL -> "JL";
+            case JLE -> "JLE";
+            case JG -> "JG";
+            case JGE -> "JGE";
+            case JB -> "JB";
+            case JBE -> "JBE";
+            case JA -> "JA";
+            case JAE -> "JAE";
             case CALL -> "CALL";
             case RET -> "RET";
+            case HCALL -> "HCALL";
             case PUSH -> "PUSH";
             case POP -> "POP";
+            case FLOAD -> "FLOAD";
+            case FSTORE -> "FSTORE";
+            case FLOADS -> "FLOADS";
+            case FSTORES -> "FSTORES";
+            case FMOV -> "FMOV";
+            case FADD -> "FADD";
+            case FSUB -> "FSUB";
+            case FMUL -> "FMUL";
+            case FDIV -> "FDIV";
+            case FSQRT -> "FSQRT";
+            case FCMP -> "FCMP";
+            case CVTIF -> "CVTIF";
+            case CVTFI -> "CVTFI";
             default -> "Invalid opcode: " + opcode;
         };
     }
 
     // ------------------------ Stack Operations ------------------------
 
-    public void stackPush(int value){
-        ESP_VALUE -= 4;
+    // Stack slots are 4 bytes in 32-bit mode and 8 bytes in 64-bit mode
+
+    public void stackPush(long value){
+        boolean wide = mode == Mode.BITS_64;
+        ESP_VALUE -= wide ? 8 : 4;
 
         if(ESP_VALUE < ram.getStackStart()){
             throw new IllegalStateException("Stack Overflow");
         }
-        ram.writeWord(value, ESP_VALUE);
+        if (wide) {
+            ram.writeDWord(value, ESP_VALUE);
+        } else {
+            ram.writeWord((int) value, ESP_VALUE);
+        }
     }
 
-    public int stackPop(){
+    public long stackPop(){
         if(ESP_VALUE >= ram.getStackEnd()){
             throw new IllegalStateException("Stack Underflow");
         }
-        int value = ram.readWord(ESP_VALUE);
-        ESP_VALUE += 4;
+        boolean wide = mode == Mode.BITS_64;
+        long value = wide ? ram.readDWord(ESP_VALUE) : ram.readWord(ESP_VALUE);
+        ESP_VALUE += wide ? 8 : 4;
         return value;
     }
 
     // ------------------------ Reset ------------------------
 
     public void reset(){
+        disableVerifiedMode();
         this.IP_VALUE = 0;
         this.EAX_VALUE = this.EBX_VALUE = this.ECX_VALUE = this.EDX_VALUE = 0;
         this.ESP_VALUE = this.EBP_VALUE  = 0;
         this.ESI_VALUE = this.EDI_VALUE = 0;
-        this.ZF_VALUE = false;
+        this.ZF_VALUE = this.SF_VALUE = this.CF_VALUE = this.OF_VALUE = false;
+        Arrays.fill(this.F_VALUES, 0);
+        this.instructionCount = 0;
+        this.branchCount = 0;
+    }
+
+    public void checkpoint(){
+        if (checkpoint == null) {
+            checkpoint = new CPU(motherboard);
+        }
+        checkpoint.copyRegistersFrom(this);
+    }
+
+    // Goes back to the registers of the last checkpoint, or restarts if there is none
+    public void restore(){
+        disableVerifiedMode();
+        if (checkpoint == null) {
+            restart();
+        } else {
+            copyRegistersFrom(checkpoint);
+        }
     }
 
     // ----------------------------- Debugging -----------------------------
@@ -354,9 +921,14 @@ public class CPU implements Opcodes, Registers{
                 EBP=%d,
                 ESI=%d,
                 EDI=%d,
-                ZF=%b
+                ZF=%b,
+                SF=%b,
+                CF=%b,
+                OF=%b,
+                F=%s
             }
-            """.formatted(IP_VALUE, EAX_VALUE, EBX_VALUE, ECX_VALUE, EDX_VALUE, ESP_VALUE, EBP_VALUE, ESI_VALUE, EDI_VALUE, ZF_VALUE);
+            """.formatted(IP_VALUE, EAX_VALUE, EBX_VALUE, ECX_VALUE, EDX_VALUE, ESP_VALUE, EBP_VALUE, ESI_VALUE, EDI_VALUE,
+                ZF_VALUE, SF_VALUE, CF_VALUE, OF_VALUE, Arrays.toString(F_VALUES));
     }
 
     public String dumpRegisters(){
@@ -0,0 +1,203 @@
+package org.lpc.computer.CPU;
+
+import org.lpc.computer.RAM.RAM;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.lpc.computer.CPU.Opcodes.*;
+
+/**
+ * Rewrites an assembled program from the fixed into the compact encoding, and reports the size of both
+ * <p>
+ * Jump and call targets are moved to the new instruction addresses. A target's varint length depends on the
+ * address it points to, so the layout is recomputed until no instruction changes size (sizes only grow, so this ends).
+ * Other immediates are code addresses only where the caller says so (a label used as a value, e.g. {@code MOV EAX, handler}).
+ * </p>
+ */
+public class CompactEncoder {
+    public record OpcodeStats(String name, int count, int fixedBytes, int compactBytes) {
+    }
+
+    public record Report(int instructions, int fixedBytes, int compactBytes, List<OpcodeStats> opcodes) {
+        public double getRatio() {
+            return fixedBytes == 0 ? 0 : (double) compactBytes / fixedBytes;
+        }
+
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Encoding size comparison:\n");
+            sb.append("  instructions: ").append(instructions).append('\n');
+            sb.append("  fixed:        ").append(fixedBytes).append(" bytes\n");
+            sb.append(String.format("  compact:      %d bytes (%.1f%% of fixed)%n", compactBytes, getRatio() * 100));
+            sb.append("  per opcode:\n");
+            for (OpcodeStats s : opcodes) {
+                sb.append(String.format("    %-8s count: %-8d fixed: %-10d compact: %d%n",
+                        s.name(), s.count(), s.fixedBytes(), s.compactBytes()));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final CPU cpu;
+    private final RAM ram;
+
+    private final List<Instruction> instructions = new ArrayList<>();
+    private final List<Integer> fixedAddresses = new ArrayList<>();
+    private final Map<Integer, Integer> addressMap = new HashMap<>(); // Fixed address -> compact address
+    private Set<Integer> addressOperands = Set.of();
+    private int[] lengths;
+
+    public CompactEncoder(CPU cpu) {
+        this.cpu = cpu;
+        this.ram = cpu.getRam();
+    }
+
+    /**
+     * Size comparison for the fixed program in [start, end) without changing it
+     */
+    public Report compare(int start, int end) {
+        decode(start, end);
+        layout(start);
+        return report();
+    }
+
+    public Report compare() {
+        if (cpu.getEncoding() != Encoding.FIXED) {
+            throw new IllegalStateException("The loaded program is already " + cpu.getEncoding());
+        }
+        return compare(ram.getProgramStart(), ram.getProgramEnd());
+    }
+
+    /**
+     * Replaces the fixed program in [start, end) with its compact encoding and clears the bytes it no longer uses
+     *
+     * @return compact address of every fixed instruction address (and of the end of the program)
+     */
+    public Map<Integer, Integer> encode(int start, int end) {
+        return encode(start, end, Set.of());
+    }
+
+    /**
+     * @param addressOperands fixed addresses of the instructions besides jumps whose immediate is a code address
+     */
+    public Map<Integer, Integer> encode(int start, int end, Set<Integer> addressOperands) {
+        this.addressOperands = addressOperands;
+        decode(start, end);
+        int compactEnd = layout(start);
+
+        byte[] code = new byte[compactEnd - start];
+        int pos = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            pos += encode(i, code, pos);
+        }
+        ram.writeBlock(start, code, 0, code.length);
+
+        int fixedEnd = fixedAddresses.isEmpty() ? start : end(instructions.size() - 1);
+        if (fixedEnd > compactEnd) {
+            ram.writeBlock(compactEnd, new byte[fixedEnd - compactEnd], 0, fixedEnd - compactEnd);
+        }
+        return addressMap;
+    }
+
+    // ----------------------------- Layout -----------------------------
+
+    private void decode(int start, int end) {
+        instructions.clear();
+        fixedAddresses.clear();
+
+        int address = start;
+        while (address < end) {
+            Instruction ins = new Instruction();
+            ins.decodeFixed(ram, address);
+            instructions.add(ins);
+            fixedAddresses.add(address);
+            address += ins.length;
+        }
+        lengths = new int[instructions.size()];
+    }
+
+    // Assigns compact addresses until the sizes are stable, returns the compact end address
+    private int layout(int start) {
+        byte[] scratch = new byte[16];
+        boolean changed = true;
+        int address = start;
+
+        while (changed) {
+            changed = false;
+
+            address = start;
+            addressMap.clear();
+            for (int i = 0; i < instructions.size(); i++) {
+                addressMap.put(fixedAddresses.get(i), address);
+                address += lengths[i];
+            }
+            if (!instructions.isEmpty()) {
+                addressMap.put(end(instructions.size() - 1), address);
+            }
+
+            for (int i = 0; i < instructions.size(); i++) {
+                int length = encode(i, scratch, 0);
+                if (length != lengths[i]) {
+                    lengths[i] = length;
+                    changed = true;
+                }
+            }
+        }
+        return address;
+    }
+
+    // Encodes instruction i with its jump target (or code address operand) moved to the compact layout
+    private int encode(int i, byte[] out, int pos) {
+        Instruction ins = instructions.get(i);
+        boolean jump = Opcodes.isJump(ins.opcode);
+        if (!jump && !addressOperands.contains(fixedAddresses.get(i))) {
+            return ins.encodeCompact(out, pos);
+        }
+
+        Integer target = addressMap.get((int) ins.imm);
+        if (target == null) {
+            throw new IllegalArgumentException((jump ? "Jump target" : "Code address") + " is not an instruction: "
+                    + ins.imm + " (at " + fixedAddresses.get(i) + ")");
+        }
+        long fixedTarget = ins.imm;
+        ins.imm = target;
+        int length = ins.encodeCompact(out, pos);
+        ins.imm = fixedTarget;
+        return length;
+    }
+
+    private int end(int i) {
+        return fixedAddresses.get(i) + instructions.get(i).length;
+    }
+
+    // ----------------------------- Reporting -----------------------------
+
+    private Report report() {
+        Map<Byte, int[]> perOpcode = new TreeMap<>();
+        int fixedBytes = 0;
+        int compactBytes = 0;
+
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction ins = instructions.get(i);
+            int[] stats = perOpcode.computeIfAbsent(ins.opcode, k -> new int[3]);
+            stats[0]++;
+            stats[1] += ins.length;
+            stats[2] += lengths[i];
+            fixedBytes += ins.length;
+            compactBytes += lengths[i];
+        }
+
+        List<OpcodeStats> opcodes = new ArrayList<>();
+        perOpcode.forEach((opcode, s) -> opcodes.add(new OpcodeStats(cpu.getOpcodeName(opcode), s[0], s[1], s[2])));
+        return new Report(instructions.size(), fixedBytes, compactBytes, opcodes);
+    }
+
+    public Report getReport() {
+        return report();
+    }
+}
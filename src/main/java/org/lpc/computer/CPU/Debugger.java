@@ -0,0 +1,167 @@
+package org.lpc.computer.CPU;
+
+import lombok.Getter;
+import org.lpc.computer.RAM.MemoryWatcher;
+import org.lpc.computer.RAM.RAM;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Breakpoints, watchpoints and single stepping for a CPU, see {@link CPU#attachDebugger()}
+ * <p>
+ * Breakpoints are one bit per byte over the program region. Watchpoints flag whole pages in RAM;
+ * only accesses to flagged pages leave RAM's fast path and get matched against the exact ranges here.
+ * While no debugger is attached the CPU runs its plain loop without any of these checks.
+ * </p>
+ */
+public class Debugger implements MemoryWatcher {
+    public enum Access {
+        READ, WRITE, READ_WRITE
+    }
+
+    public record Watchpoint(long start, long end, Access access) {
+        boolean matches(long address, boolean write) {
+            return address >= start && address < end
+                    && (access == Access.READ_WRITE || (access == Access.WRITE) == write);
+        }
+    }
+
+    public record WatchHit(Watchpoint watchpoint, long address, boolean write, int instructionAddress) {
+    }
+
+    private final CPU cpu;
+    private final RAM ram;
+
+    private final long[] breakpoints; // Bit per byte of the program region, compact instructions can start anywhere
+    private final List<Watchpoint> watchpoints = new ArrayList<>();
+
+    private int stoppedAt = -1; // Breakpoint address we stopped at, skipped when resuming
+    @Getter
+    private WatchHit lastWatchHit;
+    private boolean watchHitPending;
+
+    Debugger(CPU cpu) {
+        this.cpu = cpu;
+        this.ram = cpu.getRam();
+        this.breakpoints = new long[(ram.getProgramSize() + 63) / 64];
+    }
+
+    // ----------------------------- Breakpoints -----------------------------
+
+    public void addBreakpoint(int address) {
+        int offset = programOffset(address);
+        breakpoints[offset >>> 6] |= 1L << offset;
+    }
+
+    public void removeBreakpoint(int address) {
+        int offset = programOffset(address);
+        breakpoints[offset >>> 6] &= ~(1L << offset);
+    }
+
+    public void clearBreakpoints() {
+        Arrays.fill(breakpoints, 0);
+    }
+
+    boolean isBreakpoint(int address) {
+        int offset = address - ram.getProgramStart();
+        return offset >= 0 && (offset >>> 6) < breakpoints.length && (breakpoints[offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    private int programOffset(int address) {
+        boolean aligned = cpu.getEncoding() == Encoding.COMPACT || (address & 3) == 0;
+        if (address < ram.getProgramStart() || address >= ram.getProgramStart() + ram.getProgramSize() || !aligned) {
+            throw new IllegalArgumentException("Breakpoint must be on an instruction in the program region: " + address);
+        }
+        return address - ram.getProgramStart();
+    }
+
+    // ----------------------------- Watchpoints -----------------------------
+
+    /**
+     * Stops execution after any instruction that accesses [start, end) the given way
+     */
+    public Watchpoint addWatchpoint(long start, long end, Access access) {
+        if (start < 0 || end > ram.getMemorySize() || start >= end) {
+            throw new IllegalArgumentException("Invalid watch range: " + start + " - " + end);
+        }
+        Watchpoint watchpoint = new Watchpoint(start, end, access);
+        watchpoints.add(watchpoint);
+        updateWatchFlags();
+        return watchpoint;
+    }
+
+    public void removeWatchpoint(Watchpoint watchpoint) {
+        watchpoints.remove(watchpoint);
+        updateWatchFlags();
+    }
+
+    public void clearWatchpoints() {
+        watchpoints.clear();
+        updateWatchFlags();
+    }
+
+    private void updateWatchFlags() {
+        if (watchpoints.isEmpty()) {
+            ram.setWatchFlags(null, null);
+            return;
+        }
+
+        byte[] flags = new byte[ram.getPageCount()];
+        for (Watchpoint w : watchpoints) {
+            byte flag = switch (w.access()) {
+                case READ -> RAM.WATCH_READ;
+                case WRITE -> RAM.WATCH_WRITE;
+                case READ_WRITE -> RAM.WATCH_READ | RAM.WATCH_WRITE;
+            };
+            for (int page = (int) (w.start() >>> RAM.PAGE_SHIFT); page <= (int) ((w.end() - 1) >>> RAM.PAGE_SHIFT); page++) {
+                flags[page] |= flag;
+            }
+        }
+        ram.setWatchFlags(flags, this);
+    }
+
+    @Override
+    public void onWatchedAccess(long address, boolean write) {
+        if (watchHitPending) return; // Report the first hit of an instruction only
+        for (Watchpoint w : watchpoints) {
+            if (w.matches(address, write)) {
+                lastWatchHit = new WatchHit(w, address, write, cpu.getIP_VALUE());
+                watchHitPending = true;
+                return;
+            }
+        }
+    }
+
+    boolean takeWatchHit() {
+        boolean hit = watchHitPending;
+        watchHitPending = false;
+        return hit;
+    }
+
+    // ----------------------------- Execution -----------------------------
+
+    void stopped(int address) {
+        stoppedAt = address;
+    }
+
+    boolean resumingFrom(int address) {
+        return stoppedAt == address;
+    }
+
+    /**
+     * Executes a single instruction, even if it has a breakpoint
+     */
+    public CPU.StopReason step() {
+        stoppedAt = cpu.getIP_VALUE();
+        return cpu.runInstrumented(1);
+    }
+
+    /**
+     * Continues until the next breakpoint, watchpoint or the end of the program
+     */
+    public CPU.StopReason resume() {
+        return cpu.run();
+    }
+}
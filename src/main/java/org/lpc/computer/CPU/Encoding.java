@@ -0,0 +1,10 @@
+package org.lpc.computer.CPU;
+
+/**
+ * How a program's instructions are laid out in memory, chosen per program when it is assembled
+ * (with {@link CPU#loadProgram(String, Encoding)} or an {@code .encoding compact} line in the source)
+ */
+public enum Encoding {
+    FIXED,  // 4 or 8 bytes per instruction, 12 for MOV_I64, see Opcodes
+    COMPACT // 1 to 12 bytes: register operands in nibbles, immediates as varints (up to 10 bytes for MOV_I64), see Instruction
+}
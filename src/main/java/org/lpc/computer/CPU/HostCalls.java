@@ -0,0 +1,180 @@
+package org.lpc.computer.CPU;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.lpc.computer.RAM.RAM;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Registry of host functions the guest calls with {@code HCALL n}
+ * <p>
+ * A host function gets the CPU and RAM directly: arguments are in EAX, EBX, ECX and EDX, the result goes in EAX,
+ * and memory is read and written in place. Dispatch is an array lookup, so a host call costs about as much as
+ * a CALL/RET pair plus whatever the function itself does. Call counts are always kept, host time only while
+ * {@link #setTimed timed} since reading the clock would cost more than the dispatch.
+ * </p>
+ * <p>
+ * Functions have to be deterministic, only depending on registers and RAM, or go through {@link CPU#input}
+ * for anything else, otherwise recordings won't replay.
+ * </p>
+ * <p>
+ * Every machine starts with {@link #HASH}, {@link #SORT} and {@link #FORMAT}; register more on
+ * {@code motherboard.getHostCalls()} before running. Forks get the same functions with fresh statistics.
+ * </p>
+ */
+public class HostCalls {
+    @FunctionalInterface
+    public interface HostFunction {
+        void call(CPU cpu, RAM ram);
+    }
+
+    public static final int HASH = 0;   // EAX = FNV-1a hash of the EBX bytes at EAX
+    public static final int SORT = 1;   // Sorts EBX signed words (8 bytes in 64-bit mode) at EAX ascending
+    public static final int FORMAT = 2; // Writes EBX in decimal ASCII at EAX, EAX = number of bytes written
+
+    private HostFunction[] functions = new HostFunction[8];
+    private String[] names = new String[8];
+    private long[] calls = new long[8];
+    private long[] nanos = new long[8];
+
+    @Getter @Setter
+    private boolean timed;
+
+    public HostCalls() {
+        register(HASH, "hash", HostCalls::hash);
+        register(SORT, "sort", HostCalls::sort);
+        register(FORMAT, "format", HostCalls::format);
+    }
+
+    /**
+     * Same functions, fresh statistics
+     */
+    public HostCalls copy() {
+        HostCalls copy = new HostCalls();
+        copy.functions = functions.clone();
+        copy.names = names.clone();
+        copy.calls = new long[calls.length];
+        copy.nanos = new long[nanos.length];
+        copy.timed = timed;
+        return copy;
+    }
+
+    public void register(int number, String name, HostFunction function) {
+        if (number < 0 || number > 0xFFFF) {
+            throw new IllegalArgumentException("Host call number out of range: " + number);
+        }
+        if (number < functions.length && functions[number] != null) {
+            throw new IllegalArgumentException("Host call " + number + " is already registered as " + names[number]);
+        }
+        if (number(name) >= 0) {
+            throw new IllegalArgumentException("Host call name already used: " + name);
+        }
+        if (number >= functions.length) {
+            int length = Math.max(number + 1, functions.length * 2);
+            functions = Arrays.copyOf(functions, length);
+            names = Arrays.copyOf(names, length);
+            calls = Arrays.copyOf(calls, length);
+            nanos = Arrays.copyOf(nanos, length);
+        }
+        functions[number] = function;
+        names[number] = name;
+    }
+
+    /**
+     * Number of the function registered under name, -1 if there is none
+     */
+    public int number(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (name.equalsIgnoreCase(names[i])) return i;
+        }
+        return -1;
+    }
+
+    public boolean isRegistered(int number) {
+        return number >= 0 && number < functions.length && functions[number] != null;
+    }
+
+    void call(int number, CPU cpu) {
+        HostFunction function = number >= 0 && number < functions.length ? functions[number] : null;
+        if (function == null) {
+            throw new IllegalArgumentException("No host function registered as " + number);
+        }
+        calls[number]++;
+        if (timed) {
+            long start = System.nanoTime();
+            function.call(cpu, cpu.getRam());
+            nanos[number] += System.nanoTime() - start;
+        } else {
+            function.call(cpu, cpu.getRam());
+        }
+    }
+
+    public long getCalls(int number) {
+        return number < calls.length ? calls[number] : 0;
+    }
+
+    public long getNanos(int number) {
+        return number < nanos.length ? nanos[number] : 0;
+    }
+
+    public void resetStatistics() {
+        Arrays.fill(calls, 0);
+        Arrays.fill(nanos, 0);
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Host calls:\n");
+        for (int i = 0; i < functions.length; i++) {
+            if (functions[i] == null || calls[i] == 0) continue;
+            sb.append(String.format("  %-4d %-16s calls: %-10d", i, names[i], calls[i]));
+            if (timed) {
+                sb.append(String.format(" time: %-10.3f ms avg: %.1f ns", nanos[i] / 1e6, (double) nanos[i] / calls[i]));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // ----------------------------- Built-in functions -----------------------------
+
+    private static void hash(CPU cpu, RAM ram) {
+        long address = cpu.getEAX_VALUE();
+        long length = cpu.getEBX_VALUE();
+        int hash = 0x811C9DC5;
+        for (long i = 0; i < length; i++) {
+            hash ^= ram.read(address + i) & 0xFF;
+            hash *= 0x01000193;
+        }
+        cpu.setEAX_VALUE(hash);
+    }
+
+    private static void sort(CPU cpu, RAM ram) {
+        long address = cpu.getEAX_VALUE();
+        int count = (int) cpu.getEBX_VALUE();
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative sort length: " + count);
+        }
+
+        if (cpu.getMode() == Mode.BITS_64) {
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) values[i] = ram.readDWord(address + 8L * i);
+            Arrays.sort(values);
+            for (int i = 0; i < count; i++) ram.writeDWord(values[i], address + 8L * i);
+        } else {
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) values[i] = ram.readWord(address + 4L * i);
+            Arrays.sort(values);
+            for (int i = 0; i < count; i++) ram.writeWord(values[i], address + 4L * i);
+        }
+    }
+
+    private static void format(CPU cpu, RAM ram) {
+        long value = cpu.getMode() == Mode.BITS_64 ? cpu.getEBX_VALUE() : (int) cpu.getEBX_VALUE();
+        byte[] text = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+        ram.writeBlock(cpu.getEAX_VALUE(), text, 0, text.length);
+        cpu.setEAX_VALUE(text.length);
+    }
+}
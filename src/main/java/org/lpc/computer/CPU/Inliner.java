@@ -0,0 +1,336 @@
+package org.lpc.computer.CPU;
+
+import org.lpc.computer.RAM.RAM;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.lpc.computer.CPU.Opcodes.*;
+import static org.lpc.computer.CPU.Registers.*;
+
+/**
+ * Inlines small leaf functions at their call sites in an assembled fixed program, removing the CALL and RET
+ * <p>
+ * A function can be inlined when everything reachable from its entry (up to the RETs) is at most
+ * {@code maxInstructions} instructions, makes no calls, doesn't use ESP or IP other than through balanced
+ * PUSH/POP, and returns with the stack as it found it. The body is copied over the CALL: internal jumps go to
+ * the copy, the last RET is dropped and any other RET becomes a JMP behind the copy. The function itself stays
+ * where it is for the calls that weren't inlined.
+ * </p>
+ * <p>
+ * With a profile (CALL address -> times executed, e.g. {@link TimingModel#getCallSites()} of a run of the same
+ * fixed program) only the call sites executed at least {@code minCalls} times are inlined. Jump and call targets are
+ * moved to the new addresses, as are the immediates the caller marks as code addresses (a label used as a value).
+ * </p>
+ */
+public class Inliner {
+    public static final int DEFAULT_MAX_INSTRUCTIONS = 8;
+
+    /**
+     * @param profile  executions per CALL address, null to inline every eligible call site
+     * @param minCalls executions a call site needs in the profile
+     */
+    public record Options(int maxInstructions, Map<Integer, Long> profile, long minCalls) {
+        public static Options defaults() {
+            return new Options(DEFAULT_MAX_INSTRUCTIONS, null, 0);
+        }
+
+        // Only the call sites the profiled run executed at least minCalls times
+        public static Options profiled(Map<Integer, Long> profile, long minCalls) {
+            return new Options(DEFAULT_MAX_INSTRUCTIONS, profile, minCalls);
+        }
+    }
+
+    /**
+     * @param savedPerCall dispatched instructions one execution saves: 2 (CALL and RET), 1 if it may leave through a RET that became a JMP
+     * @param calls        executions in the profile, -1 without one
+     */
+    public record Site(int address, String function, int instructions, int savedPerCall, long calls) {
+    }
+
+    public record Report(int callSites, List<Site> inlined, List<String> rejected, int bytesBefore, int bytesAfter,
+                         boolean profiled) {
+        /**
+         * Dispatched instructions the profiled run would at least have saved, -1 without a profile
+         */
+        public long getSavedInstructions() {
+            if (!profiled) return -1;
+            long saved = 0;
+            for (Site site : inlined) {
+                saved += site.calls() * site.savedPerCall();
+            }
+            return saved;
+        }
+
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Inlining:\n");
+            sb.append("  call sites: ").append(callSites).append(", inlined: ").append(inlined.size()).append('\n');
+            sb.append(String.format("  code:       %d -> %d bytes (%+d)%n", bytesBefore, bytesAfter, bytesAfter - bytesBefore));
+            if (getSavedInstructions() >= 0) {
+                sb.append("  saved:      ").append(getSavedInstructions()).append(" dispatched instructions (at least) in the profiled run\n");
+            }
+            for (Site s : inlined) {
+                sb.append(String.format("    @%-6d %-20s instructions: %-4d saved per call: %d%s%n", s.address(), s.function(),
+                        s.instructions(), s.savedPerCall(), s.calls() >= 0 ? "  calls: " + s.calls() : ""));
+            }
+            rejected.forEach(r -> sb.append("    not inlined: ").append(r).append('\n'));
+            return sb.toString();
+        }
+    }
+
+    // A function that can be inlined: its instructions by address, which is also their fall-through order
+    private record Body(TreeMap<Integer, Instruction> instructions, int savedPerCall) {
+    }
+
+    // One instruction of the rewritten program: copied from original (with its target moved) or a JMP for a RET
+    private record Emitted(int original, Instruction ins, Map<Integer, Integer> targets, int retTarget) {
+    }
+
+    private final RAM ram;
+    private final Options options;
+
+    private final TreeMap<Integer, Instruction> program = new TreeMap<>();
+    private final Map<Integer, Body> bodies = new HashMap<>();
+    private final List<String> rejected = new ArrayList<>();
+    private Report report;
+
+    public Inliner(CPU cpu, Options options) {
+        if (options.maxInstructions() <= 0) {
+            throw new IllegalArgumentException("Invalid inlining threshold: " + options.maxInstructions());
+        }
+        this.ram = cpu.getRam();
+        this.options = options;
+    }
+
+    /**
+     * Rewrites the fixed program in [start, end) (exclusive end), see {@link #getReport()} for what changed
+     *
+     * @param names           function names by address, for the report
+     * @param addressOperands addresses of the instructions besides jumps whose immediate is a code address,
+     *                        replaced by the addresses of those instructions and their copies in the new program
+     * @return new address of every old instruction address (and of the end of the program)
+     */
+    public Map<Integer, Integer> inline(int start, int end, Map<Integer, String> names, Set<Integer> addressOperands) {
+        decode(start, end);
+        bodies.clear();
+        rejected.clear();
+        List<Site> inlined = new ArrayList<>();
+
+        // The first instruction is the CALL start the program begins with, start isn't a leaf anyway
+        List<Integer> sites = new ArrayList<>();
+        program.forEach((address, ins) -> {
+            if (ins.opcode == CALL && address != start) sites.add(address);
+        });
+
+        Map<Integer, Body> chosen = new HashMap<>();
+        for (int site : sites) {
+            int target = (int) program.get(site).imm;
+            String name = names.getOrDefault(target, "@" + target);
+            long calls = options.profile() == null ? -1 : options.profile().getOrDefault(site, 0L);
+            if (calls >= 0 && calls < options.minCalls()) continue;
+
+            if (!bodies.containsKey(target)) {
+                bodies.put(target, analyze(target, name, end)); // null if it can't be inlined
+            }
+            Body body = bodies.get(target);
+            if (body == null) continue;
+            chosen.put(site, body);
+            inlined.add(new Site(site, name, body.instructions().size(), body.savedPerCall(), calls));
+        }
+        Map<Integer, Integer> moved = rewrite(start, end, chosen, addressOperands);
+        report = new Report(sites.size(), List.copyOf(inlined), List.copyOf(rejected), end - start, moved.get(end) - start,
+                options.profile() != null);
+        return moved;
+    }
+
+    public Report getReport() {
+        return report;
+    }
+
+    private void decode(int start, int end) {
+        program.clear();
+        int address = start;
+        while (address < end) {
+            Instruction ins = new Instruction();
+            ins.decodeFixed(ram, address);
+            program.put(address, ins);
+            address += ins.length;
+        }
+    }
+
+    // ----------------------------- Analysis -----------------------------
+
+    // The body of the function at entry, or null (and why in rejected) if it can't be inlined
+    private Body analyze(int entry, String name, int end) {
+        TreeMap<Integer, Instruction> body = new TreeMap<>();
+        Map<Integer, Integer> depth = new HashMap<>(); // Stack depth before each instruction
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(entry);
+        depth.put(entry, 0);
+
+        while (!work.isEmpty()) {
+            int address = work.pop();
+            if (body.containsKey(address)) continue;
+            Instruction ins = program.get(address);
+            if (ins == null) {
+                return reject(name, "runs off the program at " + address);
+            }
+            body.put(address, ins);
+            if (body.size() > options.maxInstructions()) {
+                return reject(name, "more than " + options.maxInstructions() + " instructions");
+            }
+
+            if (ins.opcode == CALL) return reject(name, "not a leaf, calls " + ins.imm);
+            if (usesStackOrIp(ins)) return reject(name, "uses ESP or IP at " + address);
+
+            int after = depth.get(address) + (ins.opcode == PUSH ? 1 : ins.opcode == POP ? -1 : 0);
+            if (after < 0) return reject(name, "pops its caller's stack at " + address);
+            if (ins.opcode == RET) {
+                if (after != 0) return reject(name, "returns with " + after + " values left on the stack");
+                continue;
+            }
+
+            List<Integer> next = new ArrayList<>(2);
+            if (ins.opcode != JMP) next.add(address + ins.length);
+            if (ins.opcode == JMP || Opcodes.isConditionalJump(ins.opcode)) next.add((int) ins.imm);
+            for (int successor : next) {
+                if (successor >= end) return reject(name, "runs off the program at " + successor);
+                Integer known = depth.putIfAbsent(successor, after);
+                if (known != null && known != after) {
+                    return reject(name, "stack depth differs between paths at " + successor);
+                }
+                work.push(successor);
+            }
+        }
+
+        // Copied in address order, so every fall-through still reaches the next copied instruction
+        int rets = 0;
+        for (Instruction ins : body.values()) {
+            if (ins.opcode == RET) rets++;
+        }
+        boolean endsInOnlyRet = rets == 1 && body.lastEntry().getValue().opcode == RET;
+        return new Body(body, endsInOnlyRet ? 2 : 1);
+    }
+
+    private Body reject(String name, String reason) {
+        rejected.add(name + ": " + reason);
+        return null;
+    }
+
+    private static boolean usesStackOrIp(Instruction ins) {
+        for (byte register : registers(ins)) {
+            if (register == ESP || register == IP) return true;
+        }
+        return false;
+    }
+
+    // The integer registers an instruction reads or writes (PUSH and POP use ESP implicitly, that is allowed)
+    private static byte[] registers(Instruction ins) {
+        return switch (ins.opcode) {
+            case MOV, CMP -> new byte[]{ins.a, ins.b};
+            case MOV_I, MOV_I64, RDPMC, CMP_I, NOT, PUSH, POP, LOAD, STORE, CVTFI -> new byte[]{ins.a};
+            case LOADX, STOREX -> new byte[]{ins.a, ins.b, (byte) (ins.c & 0x3F)};
+            case FLOAD, FSTORE, FLOADS, FSTORES -> new byte[]{ins.b, (byte) (ins.c & 0x3F)};
+            case ADD, SUB, MUL, DIV, AND, OR, XOR -> new byte[]{ins.a, ins.b, ins.c};
+            case ADD_I, SUB_I, MUL_I, DIV_I, AND_I, OR_I, XOR_I -> new byte[]{ins.a, ins.c};
+            case CVTIF -> new byte[]{ins.b};
+            default -> new byte[0];
+        };
+    }
+
+    // ----------------------------- Rewriting -----------------------------
+
+    private Map<Integer, Integer> rewrite(int start, int end, Map<Integer, Body> chosen, Set<Integer> addressOperands) {
+        // Lay out the new program, original instructions map to their new address
+        List<Emitted> emitted = new ArrayList<>();
+        Map<Integer, Integer> moved = new HashMap<>();
+        int address = start;
+        for (Map.Entry<Integer, Instruction> entry : program.entrySet()) {
+            int original = entry.getKey();
+            moved.put(original, address);
+            Body body = chosen.get(original);
+            if (body == null) {
+                emitted.add(new Emitted(original, entry.getValue(), null, 0));
+                address += entry.getValue().length;
+                continue;
+            }
+
+            // The copy, its internal jumps go to the copied instructions
+            Map<Integer, Integer> copy = new HashMap<>();
+            int copyAddress = address;
+            int last = body.instructions().lastKey();
+            for (Map.Entry<Integer, Instruction> b : body.instructions().entrySet()) {
+                Instruction ins = b.getValue();
+                if (ins.opcode == RET && b.getKey() == last) continue; // Falls through to behind the call
+                copy.put(b.getKey(), copyAddress);
+                copyAddress += ins.opcode == RET ? 8 : ins.length; // A RET becomes an 8 byte JMP
+            }
+            if (!copy.containsKey(last)) {
+                copy.put(last, copyAddress); // Jumps to the dropped RET go behind the copy
+            }
+            for (Map.Entry<Integer, Instruction> b : body.instructions().entrySet()) {
+                if (b.getKey() != last || b.getValue().opcode != RET) {
+                    emitted.add(new Emitted(b.getKey(), b.getValue(), copy, original + 8));
+                }
+            }
+            address = copyAddress;
+        }
+        moved.put(end, address);
+
+        if (address > ram.getProgramStart() + ram.getProgramSize()) {
+            throw new IllegalArgumentException("Inlined program doesn't fit the program region: "
+                    + (address - ram.getProgramStart()) + " > " + ram.getProgramSize() + " bytes");
+        }
+
+        // Encode with the moved targets, instructions are copied from their original bytes
+        byte[] code = new byte[address - start];
+        Set<Integer> operands = new HashSet<>();
+        int pos = 0;
+        for (Emitted e : emitted) {
+            if (e.ins().opcode == RET && e.targets() != null) {
+                code[pos] = JMP;
+                writeInt(code, pos + 4, moved.get(e.retTarget()));
+                pos += 8;
+                continue;
+            }
+            for (int i = 0; i < e.ins().length; i++) {
+                code[pos + i] = ram.peek(e.original() + i);
+            }
+            if (Opcodes.isJump(e.ins().opcode)) {
+                int target = (int) e.ins().imm;
+                Integer newTarget = e.targets() != null && e.targets().containsKey(target)
+                        ? e.targets().get(target) : moved.get(target);
+                writeInt(code, pos + 4, newTarget != null ? newTarget : target);
+            } else if (addressOperands.contains(e.original())) {
+                // A label used as a value names the function, also in a copy: the original's new address
+                Integer newAddress = moved.get((int) e.ins().imm);
+                if (newAddress == null) {
+                    throw new IllegalArgumentException("Code address is not an instruction: " + e.ins().imm
+                            + " (at " + e.original() + ")");
+                }
+                writeInt(code, pos + 4, newAddress);
+                operands.add(start + pos);
+            }
+            pos += e.ins().length;
+        }
+        addressOperands.clear();
+        addressOperands.addAll(operands);
+
+        ram.writeBlock(start, code, 0, code.length);
+        return moved;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte) (value >>> (i * 8));
+        }
+    }
+}
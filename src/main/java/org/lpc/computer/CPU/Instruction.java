@@ -0,0 +1,221 @@
+package org.lpc.computer.CPU;
+
+import org.lpc.computer.RAM.RAM;
+
+import static org.lpc.computer.CPU.Opcodes.*;
+import static org.lpc.computer.CPU.Registers.*;
+
+/**
+ * One decoded instruction, the common form between the fixed and the compact encoding
+ * <p>
+ * Operands keep the meaning they have in the fixed layout (a, b and c are bytes 1-3, imm the trailing word
+ * sign-extended, or the 64-bit value of MOV_I64),
+ * so the CPU executes both encodings with the same code. One instance is reused for every instruction.
+ * </p>
+ * <p>
+ * Compact layout: the opcode byte, then the register operands packed two per byte (high nibble first,
+ * see {@link #REGISTERS}, FP registers are their number), then the immediate as a varint:
+ * zigzag for values, plain unsigned for addresses.
+ * </p>
+ */
+final class Instruction {
+    // Registers by their nibble in the compact encoding, 0xF means no register
+    static final byte[] REGISTERS = {EAX, EBX, ECX, EDX, ESI, EDI, ESP, EBP, IP, ZF, SF, CF, OF};
+    private static final int NONE = 0xF;
+
+    byte opcode;
+    byte a, b, c;
+    long imm;
+    int length;
+
+    // ----------------------------- Fixed -----------------------------
+
+    void decodeFixed(RAM ram, int ip) {
+        int word = ram.fetchWord(ip);
+        opcode = (byte) word;
+        a = (byte) (word >> 8);
+        b = (byte) (word >> 16);
+        c = (byte) (word >> 24);
+
+        if (opcode == MOV_I64) {
+            imm = (ram.fetchWord(ip + 4) & 0xFFFFFFFFL) | ((long) ram.fetchWord(ip + 8) << 32);
+            length = 12;
+        } else if (hasImmediate(opcode)) {
+            imm = ram.fetchWord(ip + 4);
+            length = 8;
+        } else {
+            imm = 0;
+            length = 4;
+        }
+    }
+
+    // ----------------------------- Compact -----------------------------
+
+    void decodeCompact(RAM ram, int ip) {
+        int p = ip;
+        opcode = ram.fetch(p++);
+        a = b = c = 0;
+
+        switch (opcode) {
+            case MOV, CMP -> {
+                int regs = ram.fetch(p++);
+                a = register(regs >> 4);
+                b = register(regs);
+            }
+            case MOV_I, MOV_I64, RDPMC, LOAD, STORE, CMP_I, NOT, PUSH, POP -> a = register(ram.fetch(p++) >> 4);
+            case LOADX, STOREX -> {
+                int regs = ram.fetch(p++);
+                int index = ram.fetch(p++);
+                a = register(regs >> 4);
+                b = (regs & NONE) == NONE ? NO_REGISTER : register(regs);
+                c = ((index >> 4) & NONE) == NONE ? NO_INDEX : (byte) ((index & 3) << 6 | register(index >> 4));
+            }
+            case ADD, SUB, MUL, DIV, AND, OR, XOR -> {
+                int regs = ram.fetch(p++);
+                a = register(regs >> 4);
+                b = register(regs);
+                c = register(ram.fetch(p++) >> 4);
+            }
+            case ADD_I, SUB_I, MUL_I, DIV_I, AND_I, OR_I, XOR_I -> {
+                int regs = ram.fetch(p++);
+                a = register(regs >> 4);
+                c = register(regs);
+            }
+            case FLOAD, FSTORE, FLOADS, FSTORES -> {
+                int regs = ram.fetch(p++);
+                int index = ram.fetch(p++);
+                a = fpRegister(regs >> 4);
+                b = (regs & NONE) == NONE ? NO_REGISTER : register(regs);
+                c = ((index >> 4) & NONE) == NONE ? NO_INDEX : (byte) ((index & 3) << 6 | register(index >> 4));
+            }
+            case FMOV, FSQRT, FCMP -> {
+                int regs = ram.fetch(p++);
+                a = fpRegister(regs >> 4);
+                b = fpRegister(regs);
+            }
+            case FADD, FSUB, FMUL, FDIV -> {
+                int regs = ram.fetch(p++);
+                a = fpRegister(regs >> 4);
+                b = fpRegister(regs);
+                c = fpRegister(ram.fetch(p++) >> 4);
+            }
+            case CVTIF -> {
+                int regs = ram.fetch(p++);
+                a = fpRegister(regs >> 4);
+                b = register(regs);
+            }
+            case CVTFI -> {
+                int regs = ram.fetch(p++);
+                a = register(regs >> 4);
+                b = fpRegister(regs);
+            }
+            default -> {
+                // Jumps, CALL, RET and HCALL have no register operands
+            }
+        }
+
+        imm = 0;
+        if (hasImmediate(opcode)) {
+            long value = 0;
+            int shift = 0;
+            byte next;
+            do {
+                next = ram.fetch(p++);
+                value |= (long) (next & 0x7F) << shift;
+                shift += 7;
+            } while (next < 0 && shift < 70);
+            // Addresses are 32-bit and sign-extended like in the fixed encoding
+            imm = isAddress(opcode) ? (int) value : (value >>> 1) ^ -(value & 1);
+        }
+        length = p - ip;
+    }
+
+    /**
+     * Writes this instruction in the compact encoding at out[pos], returns the number of bytes written (at most 12)
+     */
+    int encodeCompact(byte[] out, int pos) {
+        int start = pos;
+        out[pos++] = opcode;
+
+        switch (opcode) {
+            case MOV, CMP -> out[pos++] = nibbles(index(a), index(b));
+            case MOV_I, MOV_I64, RDPMC, LOAD, STORE, CMP_I, NOT, PUSH, POP -> out[pos++] = nibbles(index(a), NONE);
+            case LOADX, STOREX -> {
+                out[pos++] = nibbles(index(a), b == NO_REGISTER ? NONE : index(b));
+                out[pos++] = (c & 0x3F) == NO_INDEX ? nibbles(NONE, 0) : nibbles(index((byte) (c & 0x3F)), (c >> 6) & 3);
+            }
+            case ADD, SUB, MUL, DIV, AND, OR, XOR -> {
+                out[pos++] = nibbles(index(a), index(b));
+                out[pos++] = nibbles(index(c), NONE);
+            }
+            case ADD_I, SUB_I, MUL_I, DIV_I, AND_I, OR_I, XOR_I -> out[pos++] = nibbles(index(a), index(c));
+            case FLOAD, FSTORE, FLOADS, FSTORES -> {
+                out[pos++] = nibbles(fpIndex(a), b == NO_REGISTER ? NONE : index(b));
+                out[pos++] = (c & 0x3F) == NO_INDEX ? nibbles(NONE, 0) : nibbles(index((byte) (c & 0x3F)), (c >> 6) & 3);
+            }
+            case FMOV, FSQRT, FCMP -> out[pos++] = nibbles(fpIndex(a), fpIndex(b));
+            case FADD, FSUB, FMUL, FDIV -> {
+                out[pos++] = nibbles(fpIndex(a), fpIndex(b));
+                out[pos++] = nibbles(fpIndex(c), NONE);
+            }
+            case CVTIF -> out[pos++] = nibbles(fpIndex(a), index(b));
+            case CVTFI -> out[pos++] = nibbles(index(a), fpIndex(b));
+            case JMP, JZ, JNZ, JL, JLE, JG, JGE, JB, JBE, JA, JAE, CALL, RET, HCALL -> {
+            }
+            default -> throw new IllegalArgumentException("Invalid opcode: " + opcode);
+        }
+
+        if (hasImmediate(opcode)) {
+            long value = isAddress(opcode) ? imm & 0xFFFFFFFFL : (imm << 1) ^ (imm >> 63);
+            while ((value & ~0x7FL) != 0) {
+                out[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[pos++] = (byte) value;
+        }
+        return pos - start;
+    }
+
+    private static byte nibbles(int high, int low) {
+        return (byte) (high << 4 | low);
+    }
+
+    private static byte register(int nibble) {
+        nibble &= NONE;
+        if (nibble >= REGISTERS.length) {
+            throw new IllegalArgumentException("Invalid compact register: " + nibble);
+        }
+        return REGISTERS[nibble];
+    }
+
+    private static int index(byte register) {
+        for (int i = 0; i < REGISTERS.length; i++) {
+            if (REGISTERS[i] == register) return i;
+        }
+        throw new IllegalArgumentException("Invalid register: " + register);
+    }
+
+    private static byte fpRegister(int nibble) {
+        nibble &= NONE;
+        if (nibble >= FP_REGISTER_COUNT) {
+            throw new IllegalArgumentException("Invalid compact FP register: " + nibble);
+        }
+        return (byte) (F0 + nibble);
+    }
+
+    private static int fpIndex(byte register) {
+        int index = register - F0;
+        if (index < 0 || index >= FP_REGISTER_COUNT) {
+            throw new IllegalArgumentException("Invalid FP register: " + register);
+        }
+        return index;
+    }
+
+    // Immediates that are memory or code addresses, encoded unsigned instead of zigzag
+    private static boolean isAddress(byte opcode) {
+        return switch (opcode) {
+            case LOAD, STORE, JMP, JZ, JNZ, JL, JLE, JG, JGE, JB, JBE, JA, JAE, CALL -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,210 @@
+package org.lpc.computer.CPU;
+
+import lombok.Getter;
+import org.lpc.computer.RAM.RAM;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.lpc.Logger.log;
+import static org.lpc.computer.CPU.Opcodes.CALL;
+
+/**
+ * Linking loader: places relocatable modules one after another in the program and data regions and patches
+ * their addresses, so a library is assembled once ({@link Assembler#assembleObject}) and linked into any program
+ * <p>
+ * The code of all modules follows the {@code CALL start} at the program start, in the given order except for the
+ * module defining {@code start}, which goes last. The data of each module starts at the next multiple of 8 in the data region. Calls and jumps to a label a module doesn't define go to the module
+ * that does, exactly one module has to define {@code start}. A label several modules define stays private to each
+ * of them and can't be referenced from outside. Data is only addressed by the code of its own module.
+ * </p>
+ * <pre>
+ * Assembler assembler = cpu.getAssembler();
+ * ObjectModule lib = assembler.assembleObject(new File("lib.asm"));
+ * ObjectModule main = assembler.assembleObject(new File("main.asm"));
+ * new Linker(cpu).link(List.of(main, lib), Encoding.FIXED);
+ * </pre>
+ */
+public class Linker {
+    /**
+     * Where a module was loaded, the code address is the fixed one also for compact programs
+     */
+    public record Placement(ObjectModule module, int codeAddress, int dataAddress) {
+    }
+
+    private final CPU cpu;
+    private final RAM ram;
+
+    @Getter
+    private final List<Placement> placements = new ArrayList<>();
+    // Linked addresses of the labels only one module defines
+    @Getter
+    private final Map<String, Integer> functions = new HashMap<>();
+    @Getter
+    private final Map<String, Integer> dataLabels = new HashMap<>();
+    private final Map<String, String> ambiguous = new HashMap<>(); // Label -> modules defining it
+    private final Set<Integer> addressOperands = new HashSet<>();  // Non-jump instructions with a code address, for compacting
+
+    public Linker(CPU cpu) {
+        this.cpu = cpu;
+        this.ram = cpu.getRam();
+    }
+
+    public void link(ObjectModule... modules) {
+        link(List.of(modules), Encoding.FIXED);
+    }
+
+    /**
+     * Loads the modules as one program, replacing whatever was loaded before
+     */
+    public void link(List<ObjectModule> modules, Encoding encoding) {
+        if (modules.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to link");
+        }
+        Mode mode = modules.get(0).getMode();
+        for (ObjectModule module : modules) {
+            if (module.getMode() != mode) {
+                throw new IllegalArgumentException("Can't link " + module.getName() + " (" + module.getMode()
+                        + ") with " + modules.get(0).getName() + " (" + mode + ")");
+            }
+        }
+        cpu.disableVerifiedMode();
+
+        // Programs end by running past the end of the code, so the module with start goes last like in a single file
+        List<ObjectModule> ordered = new ArrayList<>(modules);
+        ordered.sort(Comparator.comparing(module -> module.getFunctions().containsKey("start")));
+        place(ordered);
+        defineSymbols();
+        Integer start = functions.get("start");
+        if (start == null) {
+            throw new IllegalArgumentException(ambiguous.containsKey("start")
+                    ? "start is defined by more than one module: " + ambiguous.get("start")
+                    : "No module defines start");
+        }
+
+        // CALL start, then the patched code of every module, written in one go
+        Placement last = placements.get(placements.size() - 1);
+        byte[] image = new byte[last.codeAddress() + last.module().getCode().length - ram.getProgramStart()];
+        ByteBuffer code = ByteBuffer.wrap(image).order(ByteOrder.LITTLE_ENDIAN);
+        code.put(0, CALL).putInt(4, start);
+        addressOperands.clear();
+        for (Placement placement : placements) {
+            relocate(placement, code);
+        }
+
+        boolean counting = ram.isAccessCounting();
+        ram.setAccessCounting(false); // Loading the program isn't the program's memory traffic, see PerfCounter
+        try {
+            ram.zeroBlock(ram.getProgramStart(), ram.getProgramSize());
+            ram.writeBlock(ram.getProgramStart(), image, 0, image.length);
+            ram.zeroBlock(ram.getDataStart(), ram.getDataSize());
+            for (Placement placement : placements) {
+                byte[] data = placement.module().getData();
+                ram.writeBlock(placement.dataAddress(), data, 0, data.length);
+            }
+            ram.setProgramEnd(ram.getProgramStart() + image.length - 1);
+
+            Assembler assembler = cpu.getAssembler();
+            assembler.setLinkedSymbols(functions, dataLabels, addressOperands, mode);
+            if (encoding == Encoding.COMPACT) {
+                Map<Integer, Integer> moved = assembler.compact();
+                functions.replaceAll((name, address) -> moved.getOrDefault(address, address));
+            }
+        } finally {
+            ram.setAccessCounting(counting);
+        }
+        cpu.setEncoding(encoding);
+        cpu.setMode(mode);
+        log("Linked " + modules.size() + " modules: " + image.length + " bytes code, start at " + functions.get("start"));
+    }
+
+    // ----------------------------- Layout -----------------------------
+
+    private void place(List<ObjectModule> modules) {
+        placements.clear();
+        long code = ram.getProgramStart() + 8L; // After CALL start
+        long data = ram.getDataStart();
+        for (ObjectModule module : modules) {
+            data = (data + 7) & -8L;
+            placements.add(new Placement(module, (int) code, (int) data));
+            code += module.getCode().length;
+            data += module.getDataSize();
+        }
+        if (code > ram.getProgramStart() + (long) ram.getProgramSize()) {
+            throw new IllegalArgumentException("Linked code doesn't fit the program region: "
+                    + (code - ram.getProgramStart()) + " > " + ram.getProgramSize() + " bytes");
+        }
+        if (data > ram.getDataEnd() + 1L) {
+            throw new IllegalArgumentException("Linked data doesn't fit the data region: "
+                    + (data - ram.getDataStart()) + " > " + ram.getDataSize() + " bytes");
+        }
+    }
+
+    private void defineSymbols() {
+        functions.clear();
+        dataLabels.clear();
+        ambiguous.clear();
+        Map<String, List<String>> definedBy = new HashMap<>();
+        for (Placement placement : placements) {
+            ObjectModule module = placement.module();
+            module.getFunctions().forEach((name, offset) -> {
+                functions.put(name, placement.codeAddress() + offset);
+                definedBy.computeIfAbsent(name, n -> new ArrayList<>()).add(module.getName());
+            });
+            module.getDataLabels().forEach((name, offset) -> {
+                dataLabels.put(name, placement.dataAddress() + offset);
+                definedBy.computeIfAbsent(name, n -> new ArrayList<>()).add(module.getName());
+            });
+        }
+        definedBy.forEach((name, modules) -> {
+            if (modules.size() > 1) {
+                functions.remove(name);
+                dataLabels.remove(name);
+                ambiguous.put(name, String.join(", ", modules));
+            }
+        });
+    }
+
+    // ----------------------------- Relocation -----------------------------
+
+    // Copies the module's code into the image and patches its address fields
+    private void relocate(Placement placement, ByteBuffer image) {
+        ObjectModule module = placement.module();
+        int base = placement.codeAddress() - ram.getProgramStart();
+        image.put(base, module.getCode());
+
+        for (ObjectModule.Relocation relocation : module.getRelocations()) {
+            int field = base + relocation.offset();
+            int address = switch (relocation.kind()) {
+                case CODE -> placement.codeAddress();
+                case DATA -> placement.dataAddress();
+                case EXTERNAL -> resolve(relocation.symbol(), module);
+            };
+            image.putInt(field, image.getInt(field) + address);
+            // The field is the immediate of an 8 byte instruction, see Assembler.processCodeLine
+            if (relocation.kind() != ObjectModule.Relocation.Kind.DATA && !Opcodes.isJump(image.get(field - 4))) {
+                addressOperands.add(ram.getProgramStart() + field - 4);
+            }
+        }
+    }
+
+    private int resolve(String symbol, ObjectModule module) {
+        Integer address = functions.get(symbol);
+        if (address != null) return address;
+        if (ambiguous.containsKey(symbol)) {
+            throw new IllegalArgumentException(module.getName() + " uses " + symbol
+                    + ", which more than one module defines: " + ambiguous.get(symbol));
+        }
+        if (dataLabels.containsKey(symbol)) {
+            throw new IllegalArgumentException(module.getName() + " jumps to the data label " + symbol);
+        }
+        throw new IllegalArgumentException(module.getName() + " uses " + symbol + ", which no module defines");
+    }
+}
@@ -0,0 +1,9 @@
+package org.lpc.computer.CPU;
+
+/**
+ * Register and data width a program runs with, chosen per program with a {@code .bits 64} line in the source
+ */
+public enum Mode {
+    BITS_32, // 32-bit arithmetic, 4 byte loads, stores and stack slots (the default)
+    BITS_64  // 64-bit registers and arithmetic, 8 byte loads, stores and stack slots, 64-bit addresses
+}
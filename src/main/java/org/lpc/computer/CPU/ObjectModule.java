@@ -0,0 +1,190 @@
+package org.lpc.computer.CPU;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A relocatable module from {@link Assembler#assembleObject}, placed and patched by the {@link Linker}
+ * <p>
+ * Code is in the fixed encoding without the leading {@code CALL start}, and every address in it is relative to the
+ * start of the module's code or data. The relocations list the 4 byte fields that hold such an address, so the
+ * module can be loaded anywhere, and the calls and jumps to labels other modules define.
+ * </p>
+ * <pre>
+ * file: int MAGIC, byte VERSION, utf name, byte mode, int code length, code, int data size, int data length, data,
+ *       int function count, per function: utf name, int offset, the same for data labels,
+ *       int relocation count, per relocation: int offset, byte kind, utf symbol ("" for CODE and DATA)
+ * </pre>
+ */
+@Getter
+public class ObjectModule {
+    public static final int MAGIC = 0x4C50434F; // "LPCO"
+    public static final byte VERSION = 1;
+
+    /**
+     * A 4 byte field at offset in the code: CODE and DATA fields get the address of the module's code or data
+     * added, EXTERNAL fields the address of the symbol
+     */
+    public record Relocation(int offset, Kind kind, String symbol) {
+        public enum Kind {
+            CODE, DATA, EXTERNAL
+        }
+    }
+
+    private final String name;
+    private final Mode mode;
+    private final byte[] code;
+    private final byte[] data;    // Initialized data, trailing zeros are left out
+    private final int dataSize;   // Including the zeros after data
+    private final Map<String, Integer> functions;  // Labels, offset in the code
+    private final Map<String, Integer> dataLabels; // Data directive and float names, offset in the data
+    private final List<Relocation> relocations;
+
+    ObjectModule(String name, Mode mode, byte[] code, byte[] data, int dataSize, Map<String, Integer> functions,
+                 Map<String, Integer> dataLabels, List<Relocation> relocations) {
+        if (data.length > dataSize) {
+            throw new IllegalArgumentException("Data is larger than the data size: " + data.length + " > " + dataSize);
+        }
+        for (Relocation relocation : relocations) {
+            if (relocation.offset() < 0 || relocation.offset() + 4 > code.length) {
+                throw new IllegalArgumentException("Relocation outside the code of " + name + ": " + relocation);
+            }
+        }
+        this.name = name;
+        this.mode = mode;
+        this.code = code;
+        this.data = data;
+        this.dataSize = dataSize;
+        this.functions = Map.copyOf(functions);
+        this.dataLabels = Map.copyOf(dataLabels);
+        this.relocations = List.copyOf(relocations);
+    }
+
+    /**
+     * The labels this module uses but doesn't define
+     */
+    public List<String> getExternals() {
+        return relocations.stream()
+                .filter(r -> r.kind() == Relocation.Kind.EXTERNAL)
+                .map(Relocation::symbol)
+                .distinct()
+                .toList();
+    }
+
+    // ----------------------------- Files -----------------------------
+
+    public void save(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(name);
+            out.writeByte(mode.ordinal());
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeInt(dataSize);
+            out.writeInt(data.length);
+            out.write(data);
+            writeSymbols(out, functions);
+            writeSymbols(out, dataLabels);
+            out.writeInt(relocations.size());
+            for (Relocation relocation : relocations) {
+                out.writeInt(relocation.offset());
+                out.writeByte(relocation.kind().ordinal());
+                out.writeUTF(relocation.symbol() != null ? relocation.symbol() : "");
+            }
+        }
+    }
+
+    public static ObjectModule load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an object module: " + file);
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported object module version " + version + ": " + file);
+            }
+            String name = in.readUTF();
+            Mode mode = readEnum(in, Mode.values(), file);
+            byte[] code = readBytes(in, file);
+            int dataSize = in.readInt();
+            byte[] data = readBytes(in, file);
+            if (dataSize < data.length) {
+                throw new IOException("Corrupt object module, data size " + dataSize + " < " + data.length + ": " + file);
+            }
+            Map<String, Integer> functions = readSymbols(in, file);
+            Map<String, Integer> dataLabels = readSymbols(in, file);
+
+            int count = readCount(in, file);
+            List<Relocation> relocations = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int offset = in.readInt();
+                if (offset < 0 || offset > code.length - 4) {
+                    throw new IOException("Corrupt object module, relocation outside the code at " + offset + ": " + file);
+                }
+                Relocation.Kind kind = readEnum(in, Relocation.Kind.values(), file);
+                String symbol = in.readUTF();
+                relocations.add(new Relocation(offset, kind, kind == Relocation.Kind.EXTERNAL ? symbol : null));
+            }
+            return new ObjectModule(name, mode, code, data, dataSize, functions, dataLabels, relocations);
+        }
+    }
+
+    // Corrupt or truncated files are IOExceptions like a wrong version, so callers can treat them all the same
+    private static <T extends Enum<T>> T readEnum(DataInputStream in, T[] values, Path file) throws IOException {
+        int ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Corrupt object module, invalid " + values[0].getDeclaringClass().getSimpleName()
+                    + " " + ordinal + ": " + file);
+        }
+        return values[ordinal];
+    }
+
+    private static int readCount(DataInputStream in, Path file) throws IOException {
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Corrupt object module, negative length " + count + ": " + file);
+        return count;
+    }
+
+    private static byte[] readBytes(DataInputStream in, Path file) throws IOException {
+        int length = readCount(in, file);
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) throw new EOFException("Truncated object module: " + file);
+        return bytes;
+    }
+
+    private static void writeSymbols(DataOutputStream out, Map<String, Integer> symbols) throws IOException {
+        out.writeInt(symbols.size());
+        for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+            out.writeUTF(symbol.getKey());
+            out.writeInt(symbol.getValue());
+        }
+    }
+
+    private static Map<String, Integer> readSymbols(DataInputStream in, Path file) throws IOException {
+        int count = readCount(in, file);
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            symbols.put(in.readUTF(), in.readInt());
+        }
+        return symbols;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + code.length + " bytes code, " + dataSize + " bytes data, "
+                + relocations.size() + " relocations, externals " + getExternals() + ")";
+    }
+}
@@ -8,9 +8,18 @@ package org.lpc.computer.CPU;
  * 0x20 - 0x2F: Logical instructions
  * 0x30 - 0x3F: Control flow instructions
  * 0x40 - 0x4F: Stack operations
- * 0x50 - 0xFE: Reserved for future use
+ * 0x50 - 0x5F: Floating point instructions
+ * 0x60 - 0xFE: Reserved for future use
  * 0xFF: -1, Invalid instruction
  * </p>
+ * <p>
+ * Immediate forms (_I) use the register layout of their register form with the immediate value in the word after it:
+ * [1 byte opcode, 1 byte src, 1 byte 0 buffer, 1 byte dst, 4 byte immediate value]
+ * </p>
+ * <p>
+ * These are the layouts of the fixed encoding. Programs can also be assembled in the compact encoding,
+ * which uses the same opcodes with variable length operands, see {@link Encoding}.
+ * </p>
  */
 public interface Opcodes {
     // Basic data transfer instructions
@@ -18,28 +27,88 @@ public interface Opcodes {
     byte MOV_I = 0x02;  // MOV dst, imm (immediate-to-register) [ 1 byte opcode, 1 byte register , 2 byte 0 buffer, 4 byte immediate value]
     byte LOAD = 0x03;   // LOAD reg, address: Loads data from memory address to register [1 byte opcode, 1 byte register, 2 byte 0 buffer, 4 byte address]
     byte STORE = 0x04;  // STORE address, reg: Stores register value at memory address [1 byte opcode, 1 byte register, 2 byte 0 buffer, 4 byte address]
+    byte LOADX = 0x05;  // LOAD reg, [base + index*scale + offset] [1 byte opcode, 1 byte register, 1 byte base, 1 byte index (scale << 6 | reg), 4 byte offset]
+    byte STOREX = 0x06; // STORE [base + index*scale + offset], reg, same layout as LOADX
+    byte MOV_I64 = 0x07; // MOV dst, imm64 (64-bit mode only) [1 byte opcode, 1 byte register, 2 byte 0 buffer, 8 byte immediate value]
+    byte RDPMC = 0x08;  // RDPMC reg, n: Reads performance counter n, see PerfCounter [1 byte opcode, 1 byte register, 2 byte 0 buffer, 4 byte n]
 
     //Arithmetic instructions [ 1 byte opcode, 1 byte src, 1 byte src, 1 byte dst]
     byte ADD = 0x10;    // ADD dst, src: Adds src to dst and stores result in dst
     byte SUB = 0x11;    // SUB dst, src: Subtracts src from dst and stores result in dst
     byte MUL = 0x12;    // MUL dst, src: Multiplies dst by src and stores result in dst
     byte DIV = 0x13;    // DIV dst, src: Divides dst by src and stores result in dst
+    byte ADD_I = 0x14;  // ADD dst, imm / ADD dst, src, imm
+    byte SUB_I = 0x15;  // SUB dst, imm / SUB dst, src, imm
+    byte MUL_I = 0x16;  // MUL dst, imm / MUL dst, src, imm
+    byte DIV_I = 0x17;  // DIV dst, imm / DIV dst, src, imm
+    byte CMP = 0x18;    // CMP a, b: Sets the flags for a - b without storing the result [1 byte opcode, 1 byte a, 1 byte b, 1 byte 0 buffer]
+    byte CMP_I = 0x19;  // CMP a, imm
 
     //Logical instructions
     byte AND = 0x20;    // AND dst, src: Bitwise AND of dst and src
     byte OR = 0x21;     // OR dst, src: Bitwise OR of dst and src
     byte XOR = 0x22;    // XOR dst, src: Bitwise XOR of dst and src
     byte NOT = 0x23;    // NOT reg: Bitwise NOT of reg
+    byte AND_I = 0x24;  // AND dst, imm
+    byte OR_I = 0x25;   // OR dst, imm
+    byte XOR_I = 0x26;  // XOR dst, imm
 
     //Control flow instructions
     byte JMP = 0x30;    // JMP address: Jump to memory address
-    byte JZ = 0x31;     // JZ address: Jump if zero flag (ZF) is set
-    byte JNZ = 0x32;    // JNZ address: Jump if zero flag (ZF) is not set
-    byte CALL = 0x33;   // CALL address: Call function at address (push IP to stack)
-    byte RET = 0x34;    // RET: Return from function (pop address from stack to IP)
+    byte JZ = 0x31;     // JZ address: Jump if zero flag (ZF) is set (alias JE)
+    byte JNZ = 0x32;    // JNZ address: Jump if zero flag (ZF) is not set (alias JNE)
+    byte CALL = 0x33;   // CALL address: Call function at address (push return address to stack)
+    byte RET = 0x34;    // RET: Return from function (pop return address from stack to IP)
+    byte JL = 0x35;     // JL address: Jump if less (signed, SF != OF)
+    byte JLE = 0x36;    // JLE address: Jump if less or equal (signed, ZF or SF != OF)
+    byte JG = 0x37;     // JG address: Jump if greater (signed, not ZF and SF == OF)
+    byte JGE = 0x38;    // JGE address: Jump if greater or equal (signed, SF == OF)
+    byte JB = 0x39;     // JB address: Jump if below (unsigned, CF)
+    byte JBE = 0x3A;    // JBE address: Jump if below or equal (unsigned, CF or ZF)
+    byte JA = 0x3B;     // JA address: Jump if above (unsigned, not CF and not ZF)
+    byte JAE = 0x3C;    // JAE address: Jump if above or equal (unsigned, not CF)
+    byte HCALL = 0x3D;  // HCALL n: Calls host function n, see HostCalls [1 byte opcode, 3 byte 0 buffer, 4 byte number]
 
     //Stack operations
     byte PUSH = 0x40;   // PUSH reg: Push register value onto the stack
     byte POP = 0x41;    // POP reg: Pop value from the stack into register
-}
 
+    // Floating point instructions, f = F0-F7, reg = integer register
+    // Loads and stores use the LOADX layout, a plain address is an offset without base and index
+    byte FLOAD = 0x50;   // FLOAD f, address: Loads a 64-bit double
+    byte FSTORE = 0x51;  // FSTORE address, f: Stores a 64-bit double
+    byte FLOADS = 0x52;  // FLOADS f, address: Loads a 32-bit float, widened to double
+    byte FSTORES = 0x53; // FSTORES address, f: Stores a 32-bit float (rounded to nearest)
+    byte FMOV = 0x54;    // FMOV dst, src [1 byte opcode, 1 byte dst, 1 byte src, 1 byte 0 buffer]
+    byte FADD = 0x55;    // FADD dst, src: same layout as ADD
+    byte FSUB = 0x56;    // FSUB dst, src
+    byte FMUL = 0x57;    // FMUL dst, src
+    byte FDIV = 0x58;    // FDIV dst, src
+    byte FSQRT = 0x59;   // FSQRT dst, src: same layout as FMOV
+    byte FCMP = 0x5A;    // FCMP a, b: ZF if equal, CF if less, ZF and CF if unordered (NaN), use JE / JB / JA ...
+    byte CVTIF = 0x5B;   // CVTIF f, reg: Converts a signed integer register to double
+    byte CVTFI = 0x5C;   // CVTFI reg, f: Converts a double to a signed integer, truncating (NaN gives 0, out of range saturates)
+
+    // Index byte of LOADX / STOREX without an index register
+    byte NO_INDEX = 0x3F;
+
+    static boolean isConditionalJump(byte opcode) {
+        return opcode == JZ || opcode == JNZ || (opcode >= JL && opcode <= JAE);
+    }
+
+    // Jumps and calls, whose immediate is always a code address
+    static boolean isJump(byte opcode) {
+        return opcode == JMP || opcode == CALL || isConditionalJump(opcode);
+    }
+
+    // Whether the instruction carries a word (immediate, address or offset), making it 8 bytes in the fixed encoding
+    // (12 for the 64-bit immediate of MOV_I64)
+    static boolean hasImmediate(byte opcode) {
+        return switch (opcode) {
+            case MOV_I, MOV_I64, RDPMC, LOAD, STORE, LOADX, STOREX, FLOAD, FSTORE, FLOADS, FSTORES, HCALL,
+                 ADD_I, SUB_I, MUL_I, DIV_I, CMP_I, AND_I, OR_I, XOR_I,
+                 JMP, JZ, JNZ, JL, JLE, JG, JGE, JB, JBE, JA, JAE, CALL -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,27 @@
+package org.lpc.computer.CPU;
+
+/**
+ * Counters a guest program can read with {@code RDPMC reg, n}, n is the ordinal (or the name in assembly)
+ * <p>
+ * The first three count from the last reset of the machine, guests measure a phase by taking the difference of two reads.
+ * Memory accesses are only counted from the first read of that counter on (which returns 0), or once a host turns it on
+ * with {@code RAM.setAccessCounting}, so machines that never read it don't pay for it on every access.
+ * Checkpoints, restores and forks keep all counters together with the state they belong to.
+ * </p>
+ */
+public enum PerfCounter {
+    INSTRUCTIONS,    // Instructions retired before the RDPMC
+    CYCLES,          // Cycles estimated by the attached TimingModel, 0 without one
+    BRANCHES,        // Taken jumps, calls and returns
+    MEMORY_ACCESSES_SINCE_FIRST_READ; // Data reads and writes (not instruction fetches) since this counter was first read,
+                                      // including those of host calls (a block write counts once per page)
+
+    private static final PerfCounter[] VALUES = values();
+
+    public static PerfCounter of(long number) {
+        if (number < 0 || number >= VALUES.length) {
+            throw new IllegalArgumentException("Invalid performance counter: " + number);
+        }
+        return VALUES[(int) number];
+    }
+}
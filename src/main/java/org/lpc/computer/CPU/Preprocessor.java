@@ -0,0 +1,231 @@
+package org.lpc.computer.CPU;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expands includes and macros before the assembler sees the source
+ * <pre>
+ * .include "lib/io.inc"          Inserts the file there, the path is relative to the including file
+ * .macro swap a, b               Defines a macro up to .endm, \a and \b stand for the arguments
+ *     PUSH \a                    and \@ for a number unique to each expansion, for labels in the body
+ *     MOV \a, \b
+ *     POP \b
+ * .endm
+ * swap EAX, EBX                  Expands it, an argument can be a register, a number, a name or a [...] operand
+ * </pre>
+ * Macros can use other macros and includes; a macro is known from its definition on, also in the files
+ * including the one that defines it. Comments and commas are gone from the lines it returns.
+ */
+class Preprocessor {
+    private static final int MAX_DEPTH = 32;              // Nested includes and expansions, catches recursive macros
+    private static final int MAX_LINES = 1_000_000;       // Lines after expanding, catches macros that multiply
+    private static final int MAX_EXPANSIONS = 1_000_000;  // Also those that expand to nothing
+    private static final int MAX_LINE_LENGTH = 65_536;    // Expanded lines, catches arguments that double per level
+    private static final Pattern PARAMETER = Pattern.compile("\\\\([A-Za-z_][A-Za-z0-9_]*|@)");
+
+    private record Macro(String name, List<String> parameters, List<String> body) {
+    }
+
+    private final Assembler assembler;
+    private final Map<String, Macro> macros = new HashMap<>();
+    private final Deque<File> includeStack = new ArrayDeque<>();
+    private int expansions;
+
+    Preprocessor(Assembler assembler) {
+        this.assembler = assembler;
+    }
+
+    /**
+     * @param directory where relative includes of the source are looked up, null for the working directory
+     */
+    List<String> process(BufferedReader reader, File directory) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        List<String> out = new ArrayList<>(lines.size());
+        expand(lines, directory, 0, out);
+        return out;
+    }
+
+    private void expand(List<String> lines, File directory, int depth, List<String> out) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Includes or macros nested deeper than " + MAX_DEPTH + " (recursive?)");
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            assembler.checkDeadline();
+            String line = assembler.prepLine(lines.get(i));
+            if (line == null) continue;
+            String[] words = line.split("\\s+", 2);
+
+            switch (words[0]) {
+                case ".include" -> include(words.length > 1 ? words[1] : "", directory, depth, out);
+                case ".macro" -> i = define(lines, i, words.length > 1 ? words[1] : "");
+                case ".endm" -> throw new IllegalArgumentException(".endm without .macro");
+                default -> {
+                    Macro macro = macros.get(words[0]);
+                    if (macro == null) {
+                        if (out.size() >= MAX_LINES) {
+                            throw new IllegalArgumentException("Source expands to more than " + MAX_LINES + " lines");
+                        }
+                        out.add(line);
+                    } else {
+                        expand(instantiate(macro, words.length > 1 ? words[1] : ""), directory, depth + 1, out);
+                    }
+                }
+            }
+        }
+    }
+
+    // ----------------------------- Includes -----------------------------
+
+    private void include(String operand, File directory, int depth, List<String> out) throws IOException {
+        if (!assembler.isIncludesAllowed()) {
+            throw new IllegalArgumentException(".include is not allowed for this source");
+        }
+        List<String> operands = Assembler.splitDataOperands(operand);
+        if (operands.size() != 1) {
+            throw new IllegalArgumentException("Usage: .include \"file\"");
+        }
+        File file = new File(new String(Assembler.parseString(operands.get(0)), StandardCharsets.UTF_8));
+        if (!file.isAbsolute() && directory != null) {
+            file = new File(directory, file.getPath());
+        }
+        File canonical = file.getCanonicalFile();
+        if (includeStack.contains(canonical)) {
+            throw new IllegalArgumentException("Recursive include of " + file);
+        }
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("Include file not found: " + file);
+        }
+
+        assembler.getDependencies().add(canonical);
+        includeStack.push(canonical);
+        try {
+            expand(Files.readAllLines(canonical.toPath()), canonical.getParentFile(), depth + 1, out);
+        } finally {
+            includeStack.pop();
+        }
+    }
+
+    // ----------------------------- Macros -----------------------------
+
+    // .macro name p1 p2 ... up to .endm, returns the index of the .endm line
+    private int define(List<String> lines, int start, String header) {
+        String[] words = header.isEmpty() ? new String[0] : header.split("\\s+");
+        if (words.length == 0 || !words[0].matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid macro definition: .macro " + header);
+        }
+        List<String> parameters = List.of(words).subList(1, words.length);
+        for (String parameter : parameters) {
+            if (!parameter.matches("[A-Za-z_][A-Za-z0-9_]*") || parameters.indexOf(parameter) != parameters.lastIndexOf(parameter)) {
+                throw new IllegalArgumentException("Invalid parameter " + parameter + " of macro " + words[0]);
+            }
+        }
+
+        List<String> body = new ArrayList<>();
+        for (int i = start + 1; i < lines.size(); i++) {
+            String line = assembler.prepLine(lines.get(i));
+            if (line == null) continue;
+            if (line.equals(".endm")) {
+                macros.put(words[0], new Macro(words[0], parameters, body));
+                return i;
+            }
+            if (line.startsWith(".macro")) {
+                throw new IllegalArgumentException("Macro definitions can't be nested: " + words[0]);
+            }
+            body.add(line);
+        }
+        throw new IllegalArgumentException("Macro " + words[0] + " has no .endm");
+    }
+
+    private List<String> instantiate(Macro macro, String operands) {
+        List<String> arguments = splitArguments(operands);
+        if (arguments.size() != macro.parameters().size()) {
+            throw new IllegalArgumentException("Macro " + macro.name() + " takes " + macro.parameters().size()
+                    + " arguments, got " + arguments.size() + ": " + operands);
+        }
+        if (expansions >= MAX_EXPANSIONS) {
+            throw new IllegalArgumentException("More than " + MAX_EXPANSIONS + " macro expansions");
+        }
+        String unique = String.valueOf(expansions++);
+
+        List<String> lines = new ArrayList<>(macro.body().size());
+        for (String line : macro.body()) {
+            String expanded = substitute(macro, line, arguments, unique);
+            if (expanded.length() > MAX_LINE_LENGTH) {
+                throw new IllegalArgumentException("Expansion of macro " + macro.name() + " is longer than "
+                        + MAX_LINE_LENGTH + " characters");
+            }
+            lines.add(expanded);
+        }
+        return lines;
+    }
+
+    // Replaces \parameter and \@ outside of strings, whose escapes look the same
+    private static String substitute(Macro macro, String line, List<String> arguments, String unique) {
+        StringBuilder sb = new StringBuilder(line.length());
+        Matcher parameter = PARAMETER.matcher(line);
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') quoted = !quoted;
+            if (c != '\\') {
+                sb.append(c);
+            } else if (quoted) {
+                sb.append(c);
+                if (i + 1 < line.length()) sb.append(line.charAt(++i));
+            } else if (parameter.find(i) && parameter.start() == i) {
+                String name = parameter.group(1);
+                int index = macro.parameters().indexOf(name);
+                if (!name.equals("@") && index < 0) {
+                    throw new IllegalArgumentException("Macro " + macro.name() + " has no parameter " + name);
+                }
+                sb.append(name.equals("@") ? unique : arguments.get(index));
+                i = parameter.end() - 1;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Whitespace separated, keeping [ ... ] operands and strings together
+    private static List<String> splitArguments(String operands) {
+        List<String> arguments = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = 0; i < operands.length(); i++) {
+            char c = operands.charAt(i);
+            if (quoted && c == '\\' && i + 1 < operands.length()) {
+                current.append(c).append(operands.charAt(++i));
+                continue;
+            }
+            if (c == '"') quoted = !quoted;
+            if (!quoted && c == '[') depth++;
+            if (!quoted && c == ']') depth--;
+            if (Character.isWhitespace(c) && depth == 0 && !quoted) {
+                if (!current.isEmpty()) arguments.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        if (!current.isEmpty()) arguments.add(current.toString());
+        return arguments;
+    }
+}
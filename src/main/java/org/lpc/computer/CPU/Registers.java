@@ -9,8 +9,9 @@ package org.lpc.computer.CPU;
  * 0x10 - 0x1F: Index registers
  * 0x20 - 0x2F: Stack Pointer
  * 0x30 - 0x3F: Base Pointer
- * 0x40 - 0x4F: Program Counter
- * 0x50 - 0xFE: Reserved for future use
+ * 0x40 - 0x4F: Flags
+ * 0x50 - 0x57: Floating point registers (64-bit doubles, only used by FP instructions)
+ * 0x58 - 0xFE: Reserved for future use
  * 0xFF: -1, Invalid register
  * </p>
  */
@@ -34,6 +35,22 @@ public interface Registers {
     // Program Counter
     byte IP = 0x30;  // Instruction Pointer
 
-    // Zero Flag
+    // Flags
     byte ZF = 0x40;  // Zero Flag
+    byte SF = 0x41;  // Sign Flag
+    byte CF = 0x42;  // Carry Flag (unsigned overflow / borrow)
+    byte OF = 0x43;  // Overflow Flag (signed overflow)
+
+    // Floating point registers
+    byte F0 = 0x50;
+    byte F1 = 0x51;
+    byte F2 = 0x52;
+    byte F3 = 0x53;
+    byte F4 = 0x54;
+    byte F5 = 0x55;
+    byte F6 = 0x56;
+    byte F7 = 0x57;
+    int FP_REGISTER_COUNT = 8;
+
+    byte NO_REGISTER = (byte) 0xFF; // Operand slot without a register
 }
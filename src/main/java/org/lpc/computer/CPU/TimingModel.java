@@ -0,0 +1,305 @@
+package org.lpc.computer.CPU;
+
+import lombok.Getter;
+import org.lpc.computer.RAM.MemoryObserver;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lpc.computer.CPU.Opcodes.*;
+
+/**
+ * Estimates how long guest code would take on a simple in-order core
+ * <p>
+ * Every instruction issues in one cycle. Instruction fetches go through an L1I, data accesses through an L1D,
+ * both backed by a unified L2 and then memory; misses add the latency of the level that served them.
+ * Conditional jumps are predicted not taken and pay a flush penalty when taken, other jumps, calls and
+ * returns pay a smaller redirect penalty. Cycles and cache misses are also attributed to the function they
+ * were spent in, following CALL/RET.
+ * </p>
+ * <p>
+ * The model only runs while attached ({@link CPU#attachTimingModel}), normal runs don't pay anything for it.
+ * </p>
+ */
+@Getter
+public class TimingModel implements MemoryObserver {
+    /**
+     * @param latency extra cycles for an access served by this level
+     */
+    public record CacheConfig(int size, int associativity, int lineSize, int latency) {
+        public CacheConfig {
+            if (lineSize <= 0 || Integer.bitCount(lineSize) != 1) {
+                throw new IllegalArgumentException("Cache line size must be a power of two: " + lineSize);
+            }
+            if (associativity <= 0) {
+                throw new IllegalArgumentException("Invalid cache associativity: " + associativity);
+            }
+            if (size <= 0 || size % ((long) lineSize * associativity) != 0) {
+                throw new IllegalArgumentException("Cache size " + size + " is not a multiple of "
+                        + associativity + " ways of " + lineSize + " byte lines");
+            }
+            if (latency < 0) {
+                throw new IllegalArgumentException("Invalid cache latency: " + latency);
+            }
+        }
+    }
+
+    /**
+     * @param branchPenalty cycles lost when a conditional jump is taken (pipeline flush)
+     * @param jumpPenalty   cycles lost on JMP, CALL and RET
+     */
+    public record Config(CacheConfig l1i, CacheConfig l1d, CacheConfig l2, int memoryLatency, int branchPenalty,
+                         int jumpPenalty) {
+        public static Config defaults() {
+            return new Config(
+                    new CacheConfig(1024, 2, 32, 0),
+                    new CacheConfig(1024, 2, 32, 0),
+                    new CacheConfig(16 * 1024, 8, 64, 10),
+                    100, 3, 1);
+        }
+    }
+
+    @Getter
+    public static class FunctionStats {
+        private final int address;
+        private long instructions;
+        private long cycles;
+        private long calls;
+        private long l1iAccesses, l1iMisses;
+        private long l1dAccesses, l1dMisses;
+        private long l2Accesses, l2Misses;
+
+        FunctionStats(int address) {
+            this.address = address;
+        }
+
+        public double getL1iMissRate() {
+            return missRate(l1iMisses, l1iAccesses);
+        }
+
+        public double getL1dMissRate() {
+            return missRate(l1dMisses, l1dAccesses);
+        }
+
+        public double getL2MissRate() {
+            return missRate(l2Misses, l2Accesses);
+        }
+    }
+
+    private final Config config;
+    private final CacheModel l1i, l1d, l2;
+
+    private long instructions;
+    private long cycles;
+    private long takenBranches;
+    private long conditionalBranches;
+
+    private final Map<Integer, FunctionStats> functions = new HashMap<>();
+    private final Map<Integer, Long> callSites = new HashMap<>(); // CALL address -> times executed, a profile for the Inliner
+    private final Deque<FunctionStats> callStack = new ArrayDeque<>();
+    private FunctionStats current;
+    private long instructionStartCycles;
+
+    private CPU cpu;
+
+    public TimingModel(Config config) {
+        this.config = config;
+        this.l1i = new CacheModel(config.l1i());
+        this.l1d = new CacheModel(config.l1d());
+        this.l2 = new CacheModel(config.l2());
+    }
+
+    public TimingModel() {
+        this(Config.defaults());
+    }
+
+    void attach(CPU cpu) {
+        this.cpu = cpu;
+        this.current = function(cpu.getIP_VALUE());
+        cpu.getRam().addObserver(this);
+    }
+
+    void detach() {
+        cpu.getRam().removeObserver(this);
+    }
+
+    public void reset() {
+        l1i.reset();
+        l1d.reset();
+        l2.reset();
+        instructions = cycles = takenBranches = conditionalBranches = 0;
+        functions.clear();
+        callSites.clear();
+        callStack.clear();
+        current = cpu != null ? function(cpu.getIP_VALUE()) : null;
+    }
+
+    // ----------------------------- Events -----------------------------
+
+    void beforeInstruction(int ip) {
+        instructionStartCycles = cycles;
+        instructions++;
+        cycles += 1 + access(true, ip);
+    }
+
+    void afterInstruction(byte opcode, int ip, int nextIp, int length) {
+        if (Opcodes.isConditionalJump(opcode)) {
+            conditionalBranches++;
+            if (nextIp != ip + length) {
+                takenBranches++;
+                cycles += config.branchPenalty();
+            }
+        } else if (opcode == JMP || opcode == CALL || opcode == RET) {
+            cycles += config.jumpPenalty();
+        }
+
+        current.instructions++;
+        current.cycles += cycles - instructionStartCycles;
+
+        if (opcode == CALL) {
+            callSites.merge(ip, 1L, Long::sum);
+            callStack.push(current);
+            current = function(nextIp);
+            current.calls++;
+        } else if (opcode == RET && !callStack.isEmpty()) {
+            current = callStack.pop();
+        }
+    }
+
+    @Override
+    public void onAccess(long address, int size, boolean write) {
+        int lineSize = config.l1d().lineSize();
+        long first = address / lineSize;
+        long last = (address + size - 1) / lineSize;
+        for (long line = first; line <= last; line++) {
+            cycles += access(false, line * lineSize);
+        }
+    }
+
+    // Stall cycles for one access going down the hierarchy, the accesses and misses also count for the current function
+    private int access(boolean instruction, long address) {
+        FunctionStats f = current;
+        if (instruction) {
+            f.l1iAccesses++;
+            if (l1i.access(address)) return config.l1i().latency();
+            f.l1iMisses++;
+        } else {
+            f.l1dAccesses++;
+            if (l1d.access(address)) return config.l1d().latency();
+            f.l1dMisses++;
+        }
+        f.l2Accesses++;
+        if (l2.access(address)) {
+            return config.l2().latency();
+        }
+        f.l2Misses++;
+        return config.l2().latency() + config.memoryLatency();
+    }
+
+    private FunctionStats function(int address) {
+        return functions.computeIfAbsent(address, FunctionStats::new);
+    }
+
+    // ----------------------------- Reporting -----------------------------
+
+    public double getCpi() {
+        return instructions == 0 ? 0 : (double) cycles / instructions;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Timing estimate:\n");
+        sb.append("  instructions: ").append(instructions).append('\n');
+        sb.append("  cycles:       ").append(cycles).append('\n');
+        sb.append(String.format("  CPI:          %.3f%n", getCpi()));
+        sb.append(String.format("  L1I miss rate: %.2f%% (%d accesses)%n", l1i.getMissRate() * 100, l1i.getAccesses()));
+        sb.append(String.format("  L1D miss rate: %.2f%% (%d accesses)%n", l1d.getMissRate() * 100, l1d.getAccesses()));
+        sb.append(String.format("  L2 miss rate:  %.2f%% (%d accesses)%n", l2.getMissRate() * 100, l2.getAccesses()));
+        sb.append("  conditional branches: ").append(conditionalBranches)
+                .append(" (taken: ").append(takenBranches).append(")\n");
+
+        Map<Integer, String> names = new HashMap<>();
+        if (cpu != null) {
+            cpu.getAssembler().getFunctionAddresses().forEach((name, address) -> names.put(address, name));
+        }
+
+        sb.append("  per function:\n");
+        functions.values().stream()
+                .sorted(Comparator.comparingLong(FunctionStats::getCycles).reversed())
+                .forEach(f -> sb.append(String.format(
+                        "    %-20s calls: %-8d instructions: %-10d cycles: %-10d CPI: %.3f  L1I: %.2f%%  L1D: %.2f%%  L2: %.2f%%%n",
+                        names.getOrDefault(f.address, "@" + f.address), f.calls, f.instructions, f.cycles,
+                        f.instructions == 0 ? 0 : (double) f.cycles / f.instructions,
+                        f.getL1iMissRate() * 100, f.getL1dMissRate() * 100, f.getL2MissRate() * 100)));
+
+        return sb.toString();
+    }
+
+    private static double missRate(long misses, long accesses) {
+        return accesses == 0 ? 0 : (double) misses / accesses;
+    }
+
+    // ----------------------------- Caches -----------------------------
+
+    /**
+     * Set associative cache with LRU replacement, only tracks tags
+     */
+    @Getter
+    public static class CacheModel {
+        private final int lineShift;
+        private final int sets;
+        private final int ways;
+        private final long[] tags;  // sets * ways, -1 = empty
+        private final long[] stamps;
+        private long clock;
+
+        private long accesses;
+        private long misses;
+
+        CacheModel(CacheConfig config) {
+            this.lineShift = Integer.numberOfTrailingZeros(config.lineSize());
+            this.ways = config.associativity();
+            this.sets = config.size() / (config.lineSize() * ways);
+            this.tags = new long[sets * ways];
+            this.stamps = new long[sets * ways];
+            reset();
+        }
+
+        void reset() {
+            Arrays.fill(tags, -1);
+            Arrays.fill(stamps, 0);
+            clock = accesses = misses = 0;
+        }
+
+        // Returns true on a hit, on a miss the line is filled replacing the least recently used way
+        boolean access(long address) {
+            accesses++;
+            long line = address >>> lineShift;
+            int base = (int) (line % sets) * ways;
+
+            int victim = base;
+            for (int i = base; i < base + ways; i++) {
+                if (tags[i] == line) {
+                    stamps[i] = ++clock;
+                    return true;
+                }
+                if (stamps[i] < stamps[victim]) {
+                    victim = i;
+                }
+            }
+
+            misses++;
+            tags[victim] = line;
+            stamps[victim] = ++clock;
+            return false;
+        }
+
+        public double getMissRate() {
+            return missRate(misses, accesses);
+        }
+    }
+}
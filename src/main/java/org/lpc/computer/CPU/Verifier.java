@@ -0,0 +1,285 @@
+package org.lpc.computer.CPU;
+
+import org.lpc.computer.RAM.RAM;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.lpc.computer.CPU.Opcodes.*;
+import static org.lpc.computer.CPU.Registers.*;
+
+/**
+ * Checks a loaded program before it runs in the CPU's verified mode, see {@link CPU#enableVerifiedMode}
+ * <p>
+ * The program region is decoded from start to end and split into basic blocks. A program passes when every
+ * instruction is valid with valid operands, every jump and call target is the start of an instruction,
+ * no instruction writes IP directly (computed jumps), and every constant memory address is inside the data region.
+ * Stores through registers can't be checked here, verified mode write-protects the program region instead.
+ * </p>
+ */
+public class Verifier {
+    /**
+     * Instructions [start, end), successors are the blocks control can continue with (empty for RET and the end)
+     */
+    public record Block(int start, int end, List<Integer> successors) {
+    }
+
+    public record Result(int instructions, List<Block> blocks, List<String> errors, List<String> warnings) {
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Verification ").append(isValid() ? "passed" : "failed").append(": ")
+                    .append(instructions).append(" instructions, ").append(blocks.size()).append(" blocks\n");
+            errors.forEach(e -> sb.append("  error: ").append(e).append('\n'));
+            warnings.forEach(w -> sb.append("  warning: ").append(w).append('\n'));
+            return sb.toString();
+        }
+    }
+
+    private final CPU cpu;
+    private final RAM ram;
+
+    private final TreeMap<Integer, Instruction> instructions = new TreeMap<>();
+    private final List<String> errors = new ArrayList<>();
+    private final List<String> warnings = new ArrayList<>();
+
+    public Verifier(CPU cpu) {
+        this.cpu = cpu;
+        this.ram = cpu.getRam();
+    }
+
+    public Result verify() {
+        instructions.clear();
+        errors.clear();
+        warnings.clear();
+
+        int start = ram.getProgramStart();
+        int end = programEnd();
+        decode(start, end);
+        instructions.forEach(this::checkInstruction);
+
+        List<Block> blocks = errors.isEmpty() ? buildBlocks(start, end) : List.of();
+        if (!blocks.isEmpty()) {
+            findUnreachable(blocks);
+        }
+        return new Result(instructions.size(), blocks, List.copyOf(errors), List.copyOf(warnings));
+    }
+
+    /**
+     * The instructions of the last verified program indexed by their offset in the program region, null between them
+     */
+    Instruction[] predecode() {
+        Instruction[] code = new Instruction[programEnd() - ram.getProgramStart()];
+        instructions.forEach((address, ins) -> code[address - ram.getProgramStart()] = ins);
+        return code;
+    }
+
+    // Exclusive end, the fixed encoding stores the last byte
+    private int programEnd() {
+        return cpu.getEncoding() == Encoding.COMPACT ? ram.getProgramEnd() : ram.getProgramEnd() + 1;
+    }
+
+    // ----------------------------- Decoding -----------------------------
+
+    private void decode(int start, int end) {
+        int address = start;
+        while (address < end) {
+            Instruction ins = new Instruction();
+            try {
+                if (cpu.getEncoding() == Encoding.COMPACT) {
+                    ins.decodeCompact(ram, address);
+                } else {
+                    ins.decodeFixed(ram, address);
+                }
+            } catch (IllegalArgumentException e) {
+                errors.add(address + ": " + e.getMessage());
+                return;
+            }
+            instructions.put(address, ins);
+            address += ins.length;
+        }
+        if (address != end) {
+            errors.add(address + ": last instruction runs past the end of the program (" + end + ")");
+        }
+    }
+
+    // ----------------------------- Instructions -----------------------------
+
+    private void checkInstruction(int address, Instruction ins) {
+        switch (ins.opcode) {
+            case MOV, CMP -> {
+                register(address, ins.a);
+                register(address, ins.b);
+            }
+            case MOV_I, MOV_I64, CMP_I, NOT, PUSH, POP -> register(address, ins.a);
+            case RDPMC -> {
+                register(address, ins.a);
+                if (ins.imm < 0 || ins.imm >= PerfCounter.values().length) {
+                    errors.add(address + ": no performance counter " + ins.imm);
+                }
+            }
+            case LOAD, STORE -> {
+                register(address, ins.a);
+                constantAddress(address, ins.imm & 0xFFFFFFFFL, wordSize());
+            }
+            case LOADX, STOREX -> {
+                register(address, ins.a);
+                indexedAddress(address, ins, wordSize());
+            }
+            case ADD, SUB, MUL, DIV, AND, OR, XOR -> {
+                register(address, ins.a);
+                register(address, ins.b);
+                register(address, ins.c);
+            }
+            case ADD_I, SUB_I, MUL_I, DIV_I, AND_I, OR_I, XOR_I -> {
+                register(address, ins.a);
+                register(address, ins.c);
+            }
+            case JMP, JZ, JNZ, JL, JLE, JG, JGE, JB, JBE, JA, JAE, CALL -> {
+                if (!instructions.containsKey((int) ins.imm)) {
+                    errors.add(address + ": " + cpu.getOpcodeName(ins.opcode) + " target " + ins.imm
+                            + " is not an instruction in the program");
+                }
+            }
+            case RET -> {
+            }
+            case HCALL -> {
+                if (cpu.getHostCalls() != null && !cpu.getHostCalls().isRegistered((int) ins.imm)) {
+                    errors.add(address + ": no host function " + ins.imm);
+                }
+            }
+            case FLOAD, FSTORE, FLOADS, FSTORES -> {
+                fpRegister(address, ins.a);
+                indexedAddress(address, ins, ins.opcode == FLOAD || ins.opcode == FSTORE ? 8 : 4);
+            }
+            case FMOV, FSQRT, FCMP -> {
+                fpRegister(address, ins.a);
+                fpRegister(address, ins.b);
+            }
+            case FADD, FSUB, FMUL, FDIV -> {
+                fpRegister(address, ins.a);
+                fpRegister(address, ins.b);
+                fpRegister(address, ins.c);
+            }
+            case CVTIF -> {
+                fpRegister(address, ins.a);
+                register(address, ins.b);
+            }
+            case CVTFI -> {
+                register(address, ins.a);
+                fpRegister(address, ins.b);
+            }
+            default -> errors.add(address + ": invalid opcode " + ins.opcode);
+        }
+
+        if (writesIp(ins)) {
+            errors.add(address + ": " + cpu.getOpcodeName(ins.opcode) + " writes IP, only jumps, CALL and RET may");
+        }
+    }
+
+    private boolean writesIp(Instruction ins) {
+        return switch (ins.opcode) {
+            case MOV, MOV_I, MOV_I64, RDPMC, LOAD, LOADX, NOT, POP, CVTFI -> ins.a == IP;
+            case ADD, SUB, MUL, DIV, AND, OR, XOR, ADD_I, SUB_I, MUL_I, DIV_I, AND_I, OR_I, XOR_I -> ins.c == IP;
+            default -> false;
+        };
+    }
+
+    private void register(int address, byte register) {
+        for (byte r : Instruction.REGISTERS) {
+            if (r == register) return;
+        }
+        errors.add(address + ": invalid register " + register);
+    }
+
+    private void fpRegister(int address, byte register) {
+        if (register < F0 || register >= F0 + FP_REGISTER_COUNT) {
+            errors.add(address + ": invalid FP register " + register);
+        }
+    }
+
+    private void indexedAddress(int address, Instruction ins, int size) {
+        if (ins.b != NO_REGISTER) register(address, ins.b);
+        if ((ins.c & 0x3F) != NO_INDEX) register(address, (byte) (ins.c & 0x3F));
+
+        // Without registers the offset is a constant address
+        if (ins.b == NO_REGISTER && (ins.c & 0x3F) == NO_INDEX) {
+            constantAddress(address, ins.imm, size);
+        }
+    }
+
+    private void constantAddress(int address, long target, int size) {
+        if (target < ram.getDataStart() || target + size > ram.getDataEnd() + 1L) {
+            errors.add(address + ": address " + target + " is outside the data region ("
+                    + ram.getDataStart() + " - " + ram.getDataEnd() + ")");
+        }
+    }
+
+    private int wordSize() {
+        return cpu.getMode() == Mode.BITS_64 ? 8 : 4;
+    }
+
+    // ----------------------------- Control flow -----------------------------
+
+    private List<Block> buildBlocks(int start, int end) {
+        TreeSet<Integer> leaders = new TreeSet<>();
+        leaders.add(start);
+        instructions.forEach((address, ins) -> {
+            if (endsBlock(ins.opcode)) {
+                leaders.add(address + ins.length);
+                if (ins.opcode != RET) leaders.add((int) ins.imm);
+            }
+        });
+        leaders.removeIf(leader -> leader >= end);
+
+        List<Block> blocks = new ArrayList<>();
+        for (int leader : leaders) {
+            Integer next = leaders.higher(leader);
+            int blockEnd = next != null ? next : end;
+
+            int last = instructions.lowerKey(blockEnd);
+            Instruction ins = instructions.get(last);
+            List<Integer> successors = new ArrayList<>();
+            if (ins.opcode != JMP && ins.opcode != RET && blockEnd < end) {
+                successors.add(blockEnd); // Falls through (CALL continues here after the RET)
+            }
+            if (endsBlock(ins.opcode) && ins.opcode != RET) {
+                successors.add((int) ins.imm);
+            }
+            blocks.add(new Block(leader, blockEnd, List.copyOf(successors)));
+        }
+        return blocks;
+    }
+
+    private static boolean endsBlock(byte opcode) {
+        return opcode == JMP || opcode == CALL || opcode == RET || Opcodes.isConditionalJump(opcode);
+    }
+
+    private void findUnreachable(List<Block> blocks) {
+        Map<Integer, Block> byStart = new TreeMap<>();
+        blocks.forEach(block -> byStart.put(block.start(), block));
+
+        TreeSet<Integer> reached = new TreeSet<>();
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(blocks.get(0).start());
+        while (!work.isEmpty()) {
+            int start = work.pop();
+            if (!reached.add(start)) continue;
+            byStart.get(start).successors().forEach(work::push);
+        }
+
+        for (Block block : blocks) {
+            if (!reached.contains(block.start())) {
+                warnings.add("unreachable code at " + block.start() + " - " + block.end());
+            }
+        }
+    }
+}
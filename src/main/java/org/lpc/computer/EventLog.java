@@ -0,0 +1,84 @@
+package org.lpc.computer;
+
+import org.lpc.computer.RAM.RAM;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format shared by {@link Recorder} and {@link Replayer}
+ * <p>
+ * The whole log is deflate compressed. It starts with a header and the initial checkpoint,
+ * followed by one event per nondeterministic input and a final END event:
+ * <pre>
+ * header:     int MAGIC, byte VERSION, varint stackSize, dataSize, programSize, heapSize, programEnd,
+ *             byte encoding, byte mode
+ * checkpoint: varint register count, zigzag varlong per register,
+ *             varint page count, per page: varint page index, PAGE_SIZE raw bytes
+ * INPUT:      byte 1, varlong instructions since the previous event, zigzag varint value
+ * END:        byte 2, varlong instructions since the previous event, long state hash
+ * </pre>
+ * </p>
+ */
+public final class EventLog {
+    public static final int MAGIC = 0x4C504352; // "LPCR"
+    public static final byte VERSION = 4;
+
+    public static final byte EVENT_INPUT = 1;
+    public static final byte EVENT_END = 2;
+
+    private EventLog() {
+    }
+
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static long readSignedVarLong(DataInput in) throws IOException {
+        long raw = readVarLong(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    /**
+     * Hash over the registers and every allocated page, used to check that a replay ended in the recorded state
+     */
+    public static long stateHash(Motherboard motherboard) {
+        CRC32 crc = new CRC32();
+        for (long register : motherboard.getCpu().getRegisterState()) {
+            for (int i = 0; i < 8; i++) {
+                crc.update((int) (register >>> (i * 8)));
+            }
+        }
+
+        RAM ram = motherboard.getRam();
+        for (int index = 0; index < ram.getPageCount(); index++) {
+            byte[] page = ram.getPage(index);
+            if (page == null) continue;
+            crc.update(index);
+            crc.update(index >>> 8);
+            crc.update(index >>> 16);
+            crc.update(page);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,76 @@
+package org.lpc.computer;
+
+import lombok.Getter;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of ready-to-run machines forked from a template
+ * <p>
+ * The template is booted (and usually has its program loaded) once. Machines are forked from it copy-on-write,
+ * and a released machine is restored to the template state by undoing only the RAM pages it wrote,
+ * so handing out a machine for the next job costs about as much as the previous job dirtied.
+ * </p>
+ */
+@Getter
+public class MachinePool {
+    private final Motherboard template;
+    private final int maxIdle;
+
+    private final ConcurrentLinkedDeque<Motherboard> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+
+    /**
+     * @param template booted machine to fork from, must not be run once the pool uses it
+     * @param maxIdle  released machines beyond this are dropped instead of kept
+     */
+    public MachinePool(Motherboard template, int maxIdle) {
+        this.template = template;
+        this.maxIdle = maxIdle;
+    }
+
+    public MachinePool prewarm(int count) {
+        for (int i = 0; i < count && idleCount.get() < maxIdle; i++) {
+            idle.offerLast(newMachine());
+            idleCount.incrementAndGet();
+        }
+        return this;
+    }
+
+    /**
+     * Returns a machine in the template state, reusing an idle one when possible
+     */
+    public Motherboard acquire() {
+        Motherboard machine = idle.pollFirst();
+        if (machine == null) {
+            return newMachine();
+        }
+        idleCount.decrementAndGet();
+        return machine;
+    }
+
+    /**
+     * Restores the machine to the template state and keeps it for the next acquire()
+     */
+    public void release(Motherboard machine) {
+        machine.restore();
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            // LIFO, the most recently used machine has the warmest pages
+            idle.offerFirst(machine);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    private Motherboard newMachine() {
+        Motherboard machine;
+        // Forking marks the template's pages as shared, which must not race with another fork
+        synchronized (template) {
+            machine = template.fork();
+        }
+        created.incrementAndGet();
+        return machine;
+    }
+}
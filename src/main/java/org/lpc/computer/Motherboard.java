@@ -2,7 +2,9 @@ package org.lpc.computer;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.lpc.Logger;
 import org.lpc.computer.CPU.CPU;
+import org.lpc.computer.CPU.HostCalls;
 import org.lpc.computer.RAM.RAM;
 
 @Setter
@@ -11,20 +13,31 @@ public class Motherboard {
     private CPU cpu;
     private RAM ram;
 
-    private int ramMemorySize;
+    private long ramMemorySize;
     private int ramStackSize;
     private int ramDataSize;
     private int ramProgramSize;
+    private long ramHeapSize;
+
+    private HostCalls hostCalls = new HostCalls(); // Functions for HCALL, register extra ones before running
 
     public Motherboard(int ramStackSize, int ramDataSize, int ramProgramSize) {
-        this.ramMemorySize = ramProgramSize + ramDataSize + ramStackSize;
+        this(ramStackSize, ramDataSize, ramProgramSize, 0);
+    }
+
+    /**
+     * @param ramHeapSize extra memory above the stack, can go beyond 2GB for programs running in 64-bit mode
+     */
+    public Motherboard(int ramStackSize, int ramDataSize, int ramProgramSize, long ramHeapSize) {
+        this.ramMemorySize = (long) ramProgramSize + ramDataSize + ramStackSize + ramHeapSize;
         this.ramStackSize = ramStackSize;
         this.ramDataSize = ramDataSize;
         this.ramProgramSize = ramProgramSize;
+        this.ramHeapSize = ramHeapSize;
     }
 
     public void boot() {
-        this.ram = new RAM(this, ramDataSize, ramStackSize, ramProgramSize);
+        this.ram = new RAM(this, ramDataSize, ramStackSize, ramProgramSize, ramHeapSize);
         this.cpu = new CPU(this);
 
         cpu.init();
@@ -33,7 +46,46 @@ public class Motherboard {
         // TODO: Load RAM and CPU state from disk
     }
 
-    public void shutdown() {
+    /**
+     * Forks this booted machine: the child gets a copy of the CPU state and shares all RAM pages copy-on-write,
+     * so forking is close to free and each machine only pays for the pages it dirties afterwards.
+     * Typical use is to boot and load a template once, then fork a child per job.
+     */
+    public Motherboard fork() {
+        Motherboard child = new Motherboard(ramStackSize, ramDataSize, ramProgramSize, ramHeapSize);
+        child.hostCalls = hostCalls.copy();
+        child.ram = ram.fork(child);
+        child.cpu = cpu.fork(child);
+        child.ram.init();
+        return child;
+    }
+
+    /**
+     * Saves the current CPU and RAM state as the one restore() goes back to (a fork starts with its fork point)
+     */
+    public void checkpoint() {
+        cpu.checkpoint();
+        ram.checkpoint();
+    }
+
+    /**
+     * Goes back to the last checkpoint, only undoing the RAM pages written since then
+     */
+    public void restore() {
+        ram.restore();
+        cpu.restore();
+    }
 
+    /**
+     * Clears RAM and registers completely, as if freshly booted
+     */
+    public void reset() {
+        ram.reset();
+        cpu.setCheckpoint(null);
+        cpu.restart();
+    }
+
+    public void shutdown() {
+        Logger.flush();
     }
 }
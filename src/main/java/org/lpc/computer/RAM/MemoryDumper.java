@@ -0,0 +1,278 @@
+package org.lpc.computer.RAM;
+
+import org.lpc.computer.CPU.CPU;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.lpc.Logger.*;
+
+/**
+ * Streams memory contents straight to a Writer or channel
+ * <p>
+ * Lines are formatted by hand into a fixed char buffer (no String.format, no per-line garbage),
+ * and zero runs are skipped a whole untouched page or 8 bytes at a time, so dumping a memory of any size
+ * only needs a constant amount of heap.
+ * </p>
+ */
+public class MemoryDumper {
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final int LINE_WIDTH = 100;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    public enum Format {
+        SEGMENT, // Coloured, with the opcode name of the first byte (used by RAM.dump)
+        HEX,     // Bytes and value as hex
+        INT      // Bytes as hex, value as int
+    }
+
+    public enum Segment {
+        PROGRAM("Program", ANSI_PURPLE),
+        DATA("Data", ANSI_BLUE),
+        STACK("Stack", ANSI_GREEN);
+
+        private final String title;
+        private final String color;
+
+        Segment(String title, String color) {
+            this.title = title;
+            this.color = color;
+        }
+
+        public int start(RAM ram) {
+            return switch (this) {
+                case PROGRAM -> ram.getProgramStart();
+                case DATA -> ram.getDataStart();
+                case STACK -> ram.getStackStart();
+            };
+        }
+
+        // Exclusive end, matching how the segments have always been dumped
+        public int end(RAM ram) {
+            return switch (this) {
+                case PROGRAM -> ram.getProgramEnd();
+                case DATA -> ram.getDataEnd();
+                case STACK -> ram.getStackEnd();
+            };
+        }
+    }
+
+    private final RAM ram;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int length;
+
+    public MemoryDumper(RAM ram) {
+        this.ram = ram;
+    }
+
+    // ----------------------------- Text dumps -----------------------------
+
+    /**
+     * Dumps every segment with headers, the streaming equivalent of RAM.dump()
+     */
+    public void dumpSegments(Writer out) throws IOException {
+        append(ANSI_RED).append(strLine("Dumping memory segments", LINE_WIDTH)).append(ANSI_RESET);
+
+        for (Segment segment : Segment.values()) {
+            dumpSegment(out, segment);
+        }
+
+        append(ANSI_RED).append(strLine(LINE_WIDTH)).append(ANSI_RESET);
+        flushTo(out);
+    }
+
+    public void dumpSegment(Writer out, Segment segment) throws IOException {
+        append(ANSI_YELLOW).append(strLine(segment.title, LINE_WIDTH)).append(ANSI_RESET);
+        dumpRange(out, segment.start(ram), segment.end(ram), Format.SEGMENT, segment.color, true);
+    }
+
+    /**
+     * Dumps the words in [start, end) one per line
+     *
+     * @param color    only used by {@link Format#SEGMENT}
+     * @param skipZero leave out words that are zero
+     */
+    public void dumpRange(Writer out, long start, long end, Format format, String color, boolean skipZero) throws IOException {
+        end = Math.min(end, ram.getMemorySize());
+
+        long address = Math.max(start, 0);
+        while (address < end) {
+            if (skipZero) {
+                address = nextNonZeroWord(address, end);
+                if (address >= end) break;
+            }
+
+            appendWord(address, format, color);
+            if (length > BUFFER_SIZE - 256) {
+                flushTo(out);
+            }
+            address += 4;
+        }
+        flushTo(out);
+    }
+
+    public void dumpRange(WritableByteChannel channel, long start, long end, Format format, boolean skipZero) throws IOException {
+        Writer out = Channels.newWriter(channel, StandardCharsets.US_ASCII);
+        dumpRange(out, start, end, format, "", skipZero);
+        out.flush();
+    }
+
+    // ----------------------------- Binary dumps -----------------------------
+
+    /**
+     * Writes the raw bytes in [start, end) to the channel
+     */
+    public void dumpBinary(WritableByteChannel channel, long start, long end) throws IOException {
+        end = Math.min(end, ram.getMemorySize());
+        ByteBuffer zeros = ByteBuffer.allocate(RAM.PAGE_SIZE);
+
+        long address = Math.max(start, 0);
+        while (address < end) {
+            int offset = (int) address & RAM.PAGE_MASK;
+            int count = (int) Math.min(RAM.PAGE_SIZE - offset, end - address);
+            byte[] page = ram.getPage((int) (address >>> RAM.PAGE_SHIFT));
+
+            ByteBuffer chunk = page != null ? ByteBuffer.wrap(page, offset, count) : zeros.clear().limit(count);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            address += count;
+        }
+    }
+
+    public void dumpBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            dumpBinary(channel, 0, ram.getMemorySize());
+        }
+    }
+
+    // ----------------------------- Scanning -----------------------------
+
+    // Returns the address of the next non-zero word at or after address (stepping by 4 from address).
+    // Untouched pages are skipped whole, allocated ones are scanned 8 bytes at a time.
+    private long nextNonZeroWord(long address, long end) {
+        while (address < end) {
+            int offset = (int) address & RAM.PAGE_MASK;
+            byte[] page = ram.getPage((int) (address >>> RAM.PAGE_SHIFT));
+
+            if (page == null) {
+                address += (RAM.PAGE_SIZE - offset + 3) & ~3;
+                continue;
+            }
+            if (offset + 8 <= RAM.PAGE_SIZE && address + 8 <= end && (long) LONG_VIEW.get(page, offset) == 0L) {
+                address += 8;
+                continue;
+            }
+            if (readWord(address, end) != 0) {
+                return address;
+            }
+            address += 4;
+        }
+        return address;
+    }
+
+    private int readWord(long address, long end) {
+        int value = 0;
+        for (int i = 0; i < 4 && address + i < end; i++) {
+            value |= (ram.peek(address + i) & 0xFF) << (i * 8);
+        }
+        return value;
+    }
+
+    // ----------------------------- Formatting -----------------------------
+
+    private void appendWord(long address, Format format, String color) {
+        long end = ram.getMemorySize();
+        int value = readWord(address, end);
+        int byteDigits = format == Format.HEX ? 2 : 8;
+
+        if (format == Format.SEGMENT) append(color);
+
+        for (int i = 0; i < 4; i++) {
+            int b = address + i < end ? ram.peek(address + i) & 0xFF : 0;
+            appendHex(b, byteDigits);
+            append(i < 3 ? " " : " (0x");
+        }
+        appendHex(address, 4);
+        append(" : ");
+        appendDecimal(address, 4);
+
+        switch (format) {
+            case SEGMENT -> {
+                append(") [int: ");
+                appendDecimal(value, 6);
+                append("] | opcode: ");
+                CPU cpu = ram.getCpu();
+                append(cpu != null ? cpu.getOpcodeName(ram.peek(address)) : "?");
+                append(ANSI_RESET);
+            }
+            case HEX -> {
+                append(") [hex: 0x");
+                appendHex(value & 0xFFFFFFFFL, 8);
+                append("]");
+            }
+            case INT -> {
+                append(") [int: ");
+                appendDecimal(value, 0);
+                append("]");
+            }
+        }
+        append("\n");
+    }
+
+    private MemoryDumper append(String text) {
+        int n = text.length();
+        if (length + n > buffer.length) {
+            // Only headers can be long enough to get here; the caller flushes between lines
+            throw new IllegalStateException("Dump line too long: " + n);
+        }
+        text.getChars(0, n, buffer, length);
+        length += n;
+        return this;
+    }
+
+    private void appendHex(long value, int minDigits) {
+        int digits = Math.max(minDigits, (64 - Long.numberOfLeadingZeros(value) + 3) / 4);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer[length++] = shift >= 64 ? '0' : HEX[(int) (value >>> shift) & 0xF];
+        }
+    }
+
+    // Zero padded to minWidth including the sign, like %0Nd
+    private void appendDecimal(long value, int minWidth) {
+        long v = value;
+        boolean negative = v < 0;
+        if (negative) v = -v;
+
+        int digits = 1;
+        for (long p = 10; p <= v && digits < 19; p *= 10) digits++;
+
+        if (negative) buffer[length++] = '-';
+        for (int pad = minWidth - digits - (negative ? 1 : 0); pad > 0; pad--) {
+            buffer[length++] = '0';
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+        length += digits;
+    }
+
+    private void flushTo(Writer out) throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+}
@@ -0,0 +1,293 @@
+package org.lpc.computer.RAM;
+
+import lombok.Getter;
+import org.lpc.computer.CPU.CPU;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lpc.computer.RAM.RAM.PAGE_SHIFT;
+import static org.lpc.computer.RAM.RAM.PAGE_SIZE;
+
+/**
+ * Counts data reads and writes per page, and optionally per cache line, of the RAM it is attached to
+ * <p>
+ * Unlike a {@link MemoryObserver} the heatmap doesn't take the RAM off its page caches, every access adds to
+ * a couple of counters in place, so it can stay attached on real workloads. An access counts once, for the
+ * page and line of its first byte. Instruction fetches are not counted.
+ * </p>
+ * <p>
+ * With a bucket size the run is also split into buckets of that many instructions, each with its own per page
+ * counts, which shows how the working set moves over time. Only buckets with accesses are kept.
+ * </p>
+ */
+public class MemoryHeatmap {
+    public static final int LINE_SHIFT = 6;
+    public static final int LINE_SIZE = 1 << LINE_SHIFT; // 64 bytes
+    public static final int LINES_PER_PAGE = PAGE_SIZE >> LINE_SHIFT;
+
+    /**
+     * Accesses in instructions [start, end), pages are sorted and only the ones that were accessed are listed
+     */
+    public record Bucket(long start, long end, int[] pages, long[] reads, long[] writes) {
+        public int workingSet() {
+            return pages.length;
+        }
+    }
+
+    @Getter
+    private final boolean lines;
+    @Getter
+    private final long bucketInstructions; // 0 = no buckets
+
+    // Counters are interleaved, [i * 2] = reads and [i * 2 + 1] = writes
+    private long[] pageCounts;
+    private long[][] lineCounts; // Per page, allocated on its first access
+
+    private long[] bucketCounts;
+    private int[] touched;       // Pages with accesses in the current bucket
+    private int touchedCount;
+    private long bucketStart, bucketEnd;
+    private final List<Bucket> buckets = new ArrayList<>();
+
+    private RAM ram;
+    private CPU cpu;
+
+    /**
+     * @param lines              also count per cache line
+     * @param bucketInstructions instructions per time bucket, 0 for totals only
+     */
+    public MemoryHeatmap(boolean lines, long bucketInstructions) {
+        if (bucketInstructions < 0) {
+            throw new IllegalArgumentException("Invalid bucket size: " + bucketInstructions);
+        }
+        this.lines = lines;
+        this.bucketInstructions = bucketInstructions;
+    }
+
+    public MemoryHeatmap() {
+        this(false, 0);
+    }
+
+    void attach(RAM ram) {
+        if (bucketInstructions > 0 && ram.getCpu() == null) {
+            throw new IllegalStateException("Time buckets need a booted machine");
+        }
+        this.ram = ram;
+        this.cpu = ram.getCpu();
+        int pages = ram.getPageCount();
+        if (pageCounts == null || pageCounts.length != pages * 2) {
+            pageCounts = new long[pages * 2];
+            lineCounts = lines ? new long[pages][] : null;
+            bucketCounts = bucketInstructions > 0 ? new long[pages * 2] : null;
+            touched = bucketInstructions > 0 ? new int[64] : null;
+        }
+        startBucket();
+    }
+
+    public void reset() {
+        if (pageCounts == null) return;
+        Arrays.fill(pageCounts, 0);
+        if (lineCounts != null) Arrays.fill(lineCounts, null);
+        if (bucketCounts != null) clearBucket();
+        buckets.clear();
+        startBucket();
+    }
+
+    // ----------------------------- Counting -----------------------------
+
+    void record(long address, boolean write) {
+        int page = (int) (address >>> PAGE_SHIFT);
+        int slot = write ? 1 : 0;
+        pageCounts[page * 2 + slot]++;
+
+        if (lineCounts != null) {
+            long[] counts = lineCounts[page];
+            if (counts == null) {
+                counts = lineCounts[page] = new long[LINES_PER_PAGE * 2];
+            }
+            counts[((int) (address & RAM.PAGE_MASK) >>> LINE_SHIFT) * 2 + slot]++;
+        }
+
+        if (bucketCounts != null) {
+            if (cpu.getInstructionCount() >= bucketEnd) {
+                nextBucket();
+            }
+            if (bucketCounts[page * 2] == 0 && bucketCounts[page * 2 + 1] == 0) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = page;
+            }
+            bucketCounts[page * 2 + slot]++;
+        }
+    }
+
+    // ----------------------------- Buckets -----------------------------
+
+    private void startBucket() {
+        if (bucketCounts == null) return;
+        long now = cpu.getInstructionCount();
+        bucketStart = now - now % bucketInstructions;
+        bucketEnd = bucketStart + bucketInstructions;
+    }
+
+    private void nextBucket() {
+        if (touchedCount > 0) {
+            buckets.add(currentBucket());
+            clearBucket();
+        }
+        startBucket();
+    }
+
+    private Bucket currentBucket() {
+        int[] pages = Arrays.copyOf(touched, touchedCount);
+        Arrays.sort(pages);
+        long[] reads = new long[pages.length];
+        long[] writes = new long[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            reads[i] = bucketCounts[pages[i] * 2];
+            writes[i] = bucketCounts[pages[i] * 2 + 1];
+        }
+        return new Bucket(bucketStart, bucketEnd, pages, reads, writes);
+    }
+
+    private void clearBucket() {
+        for (int i = 0; i < touchedCount; i++) {
+            bucketCounts[touched[i] * 2] = bucketCounts[touched[i] * 2 + 1] = 0;
+        }
+        touchedCount = 0;
+    }
+
+    /**
+     * The finished buckets followed by the current one, if it has any accesses yet
+     */
+    public List<Bucket> getBuckets() {
+        List<Bucket> all = new ArrayList<>(buckets);
+        if (touchedCount > 0) {
+            all.add(currentBucket());
+        }
+        return all;
+    }
+
+    // ----------------------------- Totals -----------------------------
+
+    public long getReads(int page) {
+        return pageCounts[page * 2];
+    }
+
+    public long getWrites(int page) {
+        return pageCounts[page * 2 + 1];
+    }
+
+    /**
+     * Reads of a line of a page, 0 if lines aren't counted
+     */
+    public long getLineReads(int page, int line) {
+        return lineCounts == null || lineCounts[page] == null ? 0 : lineCounts[page][line * 2];
+    }
+
+    public long getLineWrites(int page, int line) {
+        return lineCounts == null || lineCounts[page] == null ? 0 : lineCounts[page][line * 2 + 1];
+    }
+
+    // ----------------------------- Export -----------------------------
+
+    /**
+     * One row per accessed page, or per accessed line when lines are counted:
+     * {@code address,size,region,reads,writes}
+     */
+    public void writeCsv(Writer out) throws IOException {
+        out.write("address,size,region,reads,writes\n");
+        for (int page = 0; page < pageCounts.length / 2; page++) {
+            if (getReads(page) == 0 && getWrites(page) == 0) continue;
+            if (lineCounts == null) {
+                csvRow(out, (long) page << PAGE_SHIFT, PAGE_SIZE, getReads(page), getWrites(page));
+                continue;
+            }
+            for (int line = 0; line < LINES_PER_PAGE; line++) {
+                long reads = getLineReads(page, line), writes = getLineWrites(page, line);
+                if (reads != 0 || writes != 0) {
+                    csvRow(out, ((long) page << PAGE_SHIFT) + ((long) line << LINE_SHIFT), LINE_SIZE, reads, writes);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * One row per accessed page per bucket: {@code start,end,address,reads,writes}
+     */
+    public void writeBucketsCsv(Writer out) throws IOException {
+        out.write("start,end,address,reads,writes\n");
+        for (Bucket bucket : getBuckets()) {
+            for (int i = 0; i < bucket.pages().length; i++) {
+                out.write(bucket.start() + "," + bucket.end() + "," + ((long) bucket.pages()[i] << PAGE_SHIFT)
+                        + "," + bucket.reads()[i] + "," + bucket.writes()[i] + "\n");
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Everything as one JSON object: the page and line size, the accessed pages with their accessed lines,
+     * and the buckets with their working set size
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write("{\"pageSize\":" + PAGE_SIZE + ",\"lineSize\":" + LINE_SIZE
+                + ",\"bucketInstructions\":" + bucketInstructions + ",\"pages\":[");
+        boolean first = true;
+        for (int page = 0; page < pageCounts.length / 2; page++) {
+            if (getReads(page) == 0 && getWrites(page) == 0) continue;
+            out.write((first ? "" : ",") + "{\"address\":" + ((long) page << PAGE_SHIFT)
+                    + ",\"region\":\"" + region((long) page << PAGE_SHIFT) + "\""
+                    + ",\"reads\":" + getReads(page) + ",\"writes\":" + getWrites(page));
+            first = false;
+            if (lineCounts != null) {
+                out.write(",\"lines\":[");
+                boolean firstLine = true;
+                for (int line = 0; line < LINES_PER_PAGE; line++) {
+                    long reads = getLineReads(page, line), writes = getLineWrites(page, line);
+                    if (reads == 0 && writes == 0) continue;
+                    out.write((firstLine ? "" : ",") + "{\"address\":"
+                            + (((long) page << PAGE_SHIFT) + ((long) line << LINE_SHIFT))
+                            + ",\"reads\":" + reads + ",\"writes\":" + writes + "}");
+                    firstLine = false;
+                }
+                out.write("]");
+            }
+            out.write("}");
+        }
+
+        out.write("],\"buckets\":[");
+        first = true;
+        for (Bucket bucket : getBuckets()) {
+            out.write((first ? "" : ",") + "{\"start\":" + bucket.start() + ",\"end\":" + bucket.end()
+                    + ",\"workingSet\":" + bucket.workingSet() + ",\"pages\":[");
+            for (int i = 0; i < bucket.pages().length; i++) {
+                out.write((i == 0 ? "" : ",") + "[" + ((long) bucket.pages()[i] << PAGE_SHIFT) + ","
+                        + bucket.reads()[i] + "," + bucket.writes()[i] + "]");
+            }
+            out.write("]}");
+            first = false;
+        }
+        out.write("]}\n");
+        out.flush();
+    }
+
+    private void csvRow(Writer out, long address, int size, long reads, long writes) throws IOException {
+        out.write(address + "," + size + "," + region(address) + "," + reads + "," + writes + "\n");
+    }
+
+    // Region of an address, pages and lines are labelled by their first byte
+    private String region(long address) {
+        if (ram == null) return "";
+        if (address >= ram.getHeapStart()) return "heap";
+        if (address >= ram.getStackStart()) return "stack";
+        if (address >= ram.getDataStart()) return "data";
+        return "program";
+    }
+}
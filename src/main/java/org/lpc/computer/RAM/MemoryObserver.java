@@ -0,0 +1,8 @@
+package org.lpc.computer.RAM;
+
+/**
+ * Gets told about every data access to a RAM it is added to, see {@link RAM#addObserver}
+ */
+public interface MemoryObserver {
+    void onAccess(long address, int size, boolean write);
+}
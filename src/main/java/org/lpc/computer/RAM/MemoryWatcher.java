@@ -0,0 +1,8 @@
+package org.lpc.computer.RAM;
+
+/**
+ * Gets told about accesses to pages flagged with {@link RAM#setWatchFlags}
+ */
+public interface MemoryWatcher {
+    void onWatchedAccess(long address, boolean write);
+}
@@ -1,44 +1,147 @@
 package org.lpc.computer.RAM;
 
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
-import org.lpc.Logger;
 import org.lpc.computer.CPU.CPU;
 import org.lpc.computer.Motherboard;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
 
 import static org.lpc.Logger.*;
 
+/**
+ * Sparse, paged memory
+ * <p>
+ * The address space is split into fixed size pages that are only allocated on their first write.
+ * Reading an untouched page returns zero without allocating anything, so large address spaces
+ * only cost heap for the pages a program actually uses. The last page used for reading and the
+ * last page used for writing are cached, which keeps sequential access on the fast path.
+ * <p>
+ * Pages can be shared copy-on-write between forks of the same machine, see {@link #fork(Motherboard)},
+ * and every page written since the last {@link #checkpoint()} is tracked, so {@link #restore()} and
+ * {@link #reset()} only touch what actually changed.
+ * </p>
+ * <p>
+ * Addresses are longs. Program, data and stack always lie in the first 2GB; a heap configured above the stack
+ * makes the memory larger than that, for programs running in 64-bit mode.
+ * </p>
+ */
 @Getter @Setter
 public class RAM {
+    public static final int PAGE_SHIFT = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT; // 4KB
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
     Motherboard motherboard;
     CPU cpu;
 
-    byte[] memory;  // A single memory array for both stack and data
-
+    byte[][] pages;  // A single paged address space for program, data and stack, null = untouched
+    boolean[] owned; // false = page is shared copy-on-write with a fork and must be copied before writing
+
+    // Pages written since the last checkpoint (or reset), so restoring only has to touch those
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private boolean[] dirty;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private int[] dirtyPages = new int[64];
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private int dirtyCount;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private byte[][] template;      // Page table at the last checkpoint, null = all zero
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private boolean hasSharedPages; // Some pages came from a fork or checkpoint and are not in the dirty list
+    long memorySize;
+
+    long heapStart, heapSize; // Above the stack, up to the end of the memory, empty unless configured
     int stackStart, stackEnd, stackSize;
     int dataStart, dataEnd, dataSize;
     int programStart, programEnd, programSize;
 
+    // Watchpoint flags per page (WATCH_READ / WATCH_WRITE), null when nothing is watched.
+    // Watched pages never enter the page caches, so only accesses to them leave the fast path.
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private byte[] watchFlags;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private MemoryWatcher watcher;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private MemoryObserver[] observers; // null when there are none
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private MemoryHeatmap heatmap;      // Counted on the fast path too, null when there is none
+    @Setter(AccessLevel.NONE)
+    private long accessCount;           // Data reads and writes while counting, see PerfCounter
+    @Setter(AccessLevel.NONE)
+    private boolean accessCounting;     // Off until a program reads its counter, see setAccessCounting()
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private boolean tracked;            // Heatmap or counting, the one check the fast path pays for both
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private long checkpointAccessCount;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private boolean checkpointAccessCounting;
+
+    public static final byte WATCH_READ = 1;
+    public static final byte WATCH_WRITE = 2;
+
+    // Last page caches, only ever hold pages that lie completely inside the memory
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private int readPageIndex = -1;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private byte[] readPage;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private int writePageIndex = -1;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private byte[] writePage;
+
+    // Writes to [protectedStart, protectedEnd) throw, pages overlapping it never enter the write cache
+    @Setter(AccessLevel.NONE)
+    private long protectedStart, protectedEnd;
+
     /***
      * ----- Memory Layout -----
      * Example memory layout for 1KB program memory, 1KB stack and 1KB data:
      * 0000 - 1023: Program
      * 1024 - 2047: Data
      * 2048 - 3071: Stack
+     * 3072 - ...:  Heap (optional)
      */
 
     public RAM(Motherboard motherboard, int dataSize, int stackSize, int programSize) {
+        this(motherboard, dataSize, stackSize, programSize, 0);
+    }
+
+    public RAM(Motherboard motherboard, int dataSize, int stackSize, int programSize, long heapSize) {
         this.motherboard = motherboard;
 
-        this.memory = new byte[programSize + dataSize + stackSize];
+        int segmentsSize = Math.addExact(Math.addExact(programSize, dataSize), stackSize);
+        if (heapSize < 0 || (segmentsSize + heapSize + PAGE_MASK) >>> PAGE_SHIFT > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid heap size: " + heapSize);
+        }
+        this.memorySize = segmentsSize + heapSize;
+        this.pages = new byte[(int) ((memorySize + PAGE_MASK) >>> PAGE_SHIFT)][];
+        this.owned = new boolean[pages.length];
+        this.dirty = new boolean[pages.length];
         this.stackSize = stackSize;
 
-        // Set up stack region (starts at the end of the memory and grows downward)
-        this.stackStart = memory.length - stackSize;
-        this.stackEnd = memory.length;
+        // Set up heap region (everything after the stack)
+        this.heapStart = segmentsSize;
+        this.heapSize = heapSize;
+
+        // Set up stack region (starts at the end of the segments and grows downward)
+        this.stackStart = segmentsSize - stackSize;
+        this.stackEnd = segmentsSize;
 
         // Set up data region (starts at the end of the program and grows downward)
         this.dataStart = stackStart - dataSize;
@@ -53,55 +156,511 @@ public class RAM {
         reset();
     }
 
+    // Copy constructor used by fork, shares every page with the parent and starts with the fork point as checkpoint
+    private RAM(Motherboard motherboard, RAM parent) {
+        this.motherboard = motherboard;
+
+        this.memorySize = parent.memorySize;
+        this.heapStart = parent.heapStart;
+        this.heapSize = parent.heapSize;
+        this.pages = parent.pages.clone();
+        this.owned = new boolean[pages.length];
+        this.dirty = new boolean[pages.length];
+        this.template = parent.pages.clone();
+        this.hasSharedPages = true;
+        this.accessCount = this.checkpointAccessCount = parent.accessCount;
+        this.accessCounting = this.checkpointAccessCounting = parent.accessCounting;
+        this.tracked = accessCounting;
+
+        this.stackStart = parent.stackStart;
+        this.stackEnd = parent.stackEnd;
+        this.stackSize = parent.stackSize;
+        this.dataStart = parent.dataStart;
+        this.dataEnd = parent.dataEnd;
+        this.dataSize = parent.dataSize;
+        this.programStart = parent.programStart;
+        this.programEnd = parent.programEnd;
+        this.programSize = parent.programSize;
+    }
+
     public void init() {
         this.cpu = motherboard.getCpu();
     }
 
-    public void write(int address, byte value) {
-        if (address >= 0 && address < memory.length) {
-            memory[address] = value;
-        } else {
-            logErr("Memory address out of bounds");
+    public void write(long address, byte value) {
+        if ((address >>> PAGE_SHIFT) == writePageIndex) {
+            if (tracked) track(address, true);
+            writePage[(int) address & PAGE_MASK] = value;
+        } else if (writable(address, 1)) {
+            onAccess(address, 1, true);
+            store(address, value);
         }
     }
 
-    public byte read(int address) {
-        if (address >= 0 && address < memory.length) {
-            return memory[address];
-        } else {
-            logErr("Memory address out of bounds");
-            return 0;
+    public byte read(long address) {
+        if ((address >>> PAGE_SHIFT) == readPageIndex) {
+            if (tracked) track(address, false);
+            return readPage[(int) address & PAGE_MASK];
+        } else if (inBounds(address, 1)) {
+            onAccess(address, 1, false);
+            return load(address);
         }
+        return 0;
     }
 
+    // Instruction fetches, same as read() but invisible to watchpoints and observers
+
+    public byte fetch(int address) {
+        if ((address >>> PAGE_SHIFT) == readPageIndex) {
+            return readPage[address & PAGE_MASK];
+        }
+        return inBounds(address, 1) ? load(address) : 0;
+    }
+
+    public int fetchWord(int address) {
+        int offset = address & PAGE_MASK;
+        if ((address >>> PAGE_SHIFT) == readPageIndex && offset <= PAGE_SIZE - 4) {
+            return (int) INT_VIEW.get(readPage, offset);
+        }
+        return inBounds(address, 4) ? loadWord(address) : 0;
+    }
+
+    /**
+     * Reads a byte without allocating, caching or reporting out of bounds addresses (for dumps and tools)
+     */
+    public byte peek(long address) {
+        if (address < 0 || address >= memorySize) return 0;
+        byte[] page = pages[(int) (address >>> PAGE_SHIFT)];
+        return page == null ? 0 : page[(int) address & PAGE_MASK];
+    }
+
+    /**
+     * Returns the backing array of a page, or null if it has never been written
+     */
+    public byte[] getPage(int pageIndex) {
+        return pages[pageIndex];
+    }
+
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    public int getAllocatedPageCount() {
+        int count = 0;
+        for (byte[] page : pages) {
+            if (page != null) count++;
+        }
+        return count;
+    }
+
+    // Pages this memory has written to since it was created or last forked
+    public int getOwnedPageCount() {
+        int count = 0;
+        for (boolean o : owned) {
+            if (o) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Zeroes the whole memory and drops the checkpoint.
+     * Only the pages written since the last reset are cleared unless pages are shared with a fork or checkpoint.
+     */
     public void reset() {
-        Arrays.fill(memory, (byte) 0);
+        if (hasSharedPages) {
+            Arrays.fill(pages, null);
+            Arrays.fill(owned, false);
+            Arrays.fill(dirty, false);
+            dirtyCount = 0;
+        } else {
+            for (int i = 0; i < dirtyCount; i++) {
+                int index = dirtyPages[i];
+                pages[index] = null;
+                owned[index] = false;
+                dirty[index] = false;
+            }
+            dirtyCount = 0;
+        }
+        template = null;
+        hasSharedPages = false;
+        accessCount = checkpointAccessCount = 0;
+        checkpointAccessCounting = false;
+        setAccessCounting(false);
+        invalidatePageCaches();
     }
 
-    public void writeWord(int value, int address) {
-        write(address, (byte) (value & 0xFF));
-        write(address + 1, (byte) ((value >> 8) & 0xFF));
-        write(address + 2, (byte) ((value >> 16) & 0xFF));
-        write(address + 3, (byte) ((value >> 24) & 0xFF));
+    /**
+     * Remembers the current contents as the state {@link #restore()} goes back to.
+     * The pages are shared copy-on-write with the checkpoint, so this costs no copying.
+     */
+    public void checkpoint() {
+        template = pages.clone();
+        checkpointAccessCount = accessCount;
+        checkpointAccessCounting = accessCounting;
+        Arrays.fill(owned, false);
+        clearDirty();
+        hasSharedPages = true;
+        writePageIndex = -1;
+        writePage = null;
     }
 
-    public int readWord(int address) {
-        return (read(address) & 0xFF) |
-                ((read(address + 1) & 0xFF) << 8) |
-                ((read(address + 2) & 0xFF) << 16) |
-                ((read(address + 3) & 0xFF) << 24);
+    /**
+     * Puts back the contents and the access counter of the last checkpoint (or zeroes if there is none) by only
+     * touching the pages written since then
+     */
+    public void restore() {
+        for (int i = 0; i < dirtyCount; i++) {
+            int index = dirtyPages[i];
+            pages[index] = template == null ? null : template[index];
+            owned[index] = false;
+        }
+        clearDirty();
+        accessCount = checkpointAccessCount;
+        setAccessCounting(checkpointAccessCounting);
+        invalidatePageCaches();
     }
 
-    // 64-bit operations, don't know if this is necessary
-    public void writeDWord(long value, int address) {
-        writeWord((int) (value & 0xFFFFFFFFL), address);
-        writeWord((int) (value >> 32), address + 4);
+    public int getDirtyPageCount() {
+        return dirtyCount;
     }
 
-    public long readDWord(int address) {
-        long lower = readWord(address) & 0xFFFFFFFFL;
-        long upper = readWord(address + 4) & 0xFFFFFFFFL;
-        return (upper << 32) | lower;
+    /**
+     * Creates a copy of this memory for another machine without copying any page.
+     * From now on both sides share their pages copy-on-write: whichever writes to a page first gets a private copy,
+     * so forking is O(page count) and each side only pays for the pages it dirties.
+     * The child's checkpoint is the state at the fork.
+     * Must not be called while this memory is being written by another thread.
+     */
+    public RAM fork(Motherboard child) {
+        Arrays.fill(owned, false);
+        hasSharedPages = true;
+        // Our cached write page is shared now, the next write must go through writablePage() and copy it
+        writePageIndex = -1;
+        writePage = null;
+
+        return new RAM(child, this);
+    }
+
+    // ----------------------------- Slow path -----------------------------
+
+    private boolean inBounds(long address, int size) {
+        if (address >= 0 && address <= memorySize - size) {
+            return true;
+        }
+        logErr(() -> "Memory address out of bounds: " + address);
+        return false;
+    }
+
+    // Bounds check of the write slow path, which also enforces the write protection
+    private boolean writable(long address, int size) {
+        if (address < protectedEnd && address + size > protectedStart) {
+            throw new IllegalStateException("Write to protected memory at " + address
+                    + " (self-modifying code is not allowed in verified mode)");
+        }
+        return inBounds(address, size);
+    }
+
+    private byte load(long address) {
+        return readablePage((int) (address >>> PAGE_SHIFT))[(int) address & PAGE_MASK];
+    }
+
+    private int loadWord(long address) {
+        return (load(address) & 0xFF) |
+                ((load(address + 1) & 0xFF) << 8) |
+                ((load(address + 2) & 0xFF) << 16) |
+                ((load(address + 3) & 0xFF) << 24);
+    }
+
+    private void store(long address, byte value) {
+        writablePage((int) (address >>> PAGE_SHIFT))[(int) address & PAGE_MASK] = value;
+    }
+
+    // Reports an access that missed the page caches to watchpoints, observers and the heatmap
+    private void onAccess(long address, int size, boolean write) {
+        if (tracked) {
+            track(address, write);
+        }
+        if (watchFlags != null) {
+            byte flag = write ? WATCH_WRITE : WATCH_READ;
+            for (long a = address; a < address + size; a++) {
+                if ((watchFlags[(int) (a >>> PAGE_SHIFT)] & flag) != 0) {
+                    watcher.onWatchedAccess(a, write);
+                }
+            }
+        }
+        if (observers != null) {
+            for (MemoryObserver observer : observers) {
+                observer.onAccess(address, size, write);
+            }
+        }
+    }
+
+    private void track(long address, boolean write) {
+        if (accessCounting) accessCount++;
+        if (heatmap != null) heatmap.record(address, write);
+    }
+
+    // ----------------------------- Paging -----------------------------
+
+    private byte[] readablePage(int index) {
+        byte[] page = pages[index];
+        if (page == null) page = ZERO_PAGE;
+        if (isCacheable(index)) {
+            readPageIndex = index;
+            readPage = page;
+        }
+        return page;
+    }
+
+    private byte[] writablePage(int index) {
+        byte[] page = pages[index];
+        if (page == null || !owned[index]) {
+            page = page == null ? new byte[PAGE_SIZE] : page.clone();
+            pages[index] = page;
+            owned[index] = true;
+            markDirty(index);
+            if (readPageIndex == index) {
+                readPage = page;
+            }
+        }
+        if (isCacheable(index) && !isProtected(index)) {
+            writePageIndex = index;
+            writePage = page;
+        }
+        return page;
+    }
+
+    private void markDirty(int index) {
+        if (dirty[index]) return;
+        dirty[index] = true;
+        if (dirtyCount == dirtyPages.length) {
+            dirtyPages = Arrays.copyOf(dirtyPages, dirtyCount * 2);
+        }
+        dirtyPages[dirtyCount++] = index;
+    }
+
+    private void clearDirty() {
+        for (int i = 0; i < dirtyCount; i++) {
+            dirty[dirtyPages[i]] = false;
+        }
+        dirtyCount = 0;
+    }
+
+    // Pages that every access has to be reported for are never cached
+    private boolean isCacheable(int index) {
+        return isFullPage(index) && observers == null && (watchFlags == null || watchFlags[index] == 0);
+    }
+
+    /**
+     * Reports every data read and write (not instruction fetches) to the observer.
+     * While any observer is installed the page caches stay empty, so memories without one keep the fast path.
+     */
+    public void addObserver(MemoryObserver observer) {
+        MemoryObserver[] current = observers == null ? new MemoryObserver[0] : observers;
+        MemoryObserver[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = observer;
+        observers = updated;
+        invalidatePageCaches();
+    }
+
+    public void removeObserver(MemoryObserver observer) {
+        if (observers == null) return;
+        MemoryObserver[] updated = Arrays.stream(observers).filter(o -> o != observer).toArray(MemoryObserver[]::new);
+        observers = updated.length == 0 ? null : updated;
+    }
+
+    /**
+     * Counts every data access from now on, see {@link MemoryHeatmap}. Replaces the current heatmap, if any.
+     * The page caches stay in use, so this is cheap enough for real workloads.
+     */
+    public void attachHeatmap(MemoryHeatmap heatmap) {
+        heatmap.attach(this);
+        this.heatmap = heatmap;
+        tracked = true;
+    }
+
+    public void detachHeatmap() {
+        heatmap = null;
+        tracked = accessCounting;
+    }
+
+    /**
+     * Turns counting data accesses for {@link org.lpc.computer.CPU.PerfCounter#MEMORY_ACCESSES_SINCE_FIRST_READ} on or off.
+     * The CPU turns it on when the counter is first read, so machines whose programs never read it don't pay for it.
+     */
+    public void setAccessCounting(boolean counting) {
+        accessCounting = counting;
+        tracked = counting || heatmap != null;
+    }
+
+    public MemoryHeatmap getHeatmap() {
+        return heatmap;
+    }
+
+    /**
+     * Installs per page watch flags (WATCH_READ / WATCH_WRITE), or removes them all when flags is null.
+     * Accesses to flagged pages are reported to the watcher, which does the exact address matching.
+     */
+    public void setWatchFlags(byte[] flags, MemoryWatcher watcher) {
+        if (flags != null && flags.length != pages.length) {
+            throw new IllegalArgumentException("Need one watch flag per page");
+        }
+        this.watchFlags = flags;
+        this.watcher = watcher;
+        invalidatePageCaches();
+    }
+
+    private boolean isProtected(int index) {
+        return ((long) index << PAGE_SHIFT) < protectedEnd && ((long) index + 1 << PAGE_SHIFT) > protectedStart;
+    }
+
+    /**
+     * Makes writes to [start, end) throw, e.g. the program region while running verified code.
+     * Only the write slow path checks this, writes to other pages stay on the fast path.
+     */
+    public void protect(long start, long end) {
+        protectedStart = start;
+        protectedEnd = end;
+        invalidatePageCaches();
+    }
+
+    public void unprotect() {
+        protectedStart = protectedEnd = 0;
+    }
+
+    private boolean isFullPage(int index) {
+        return ((long) index + 1 << PAGE_SHIFT) <= memorySize;
+    }
+
+    private void invalidatePageCaches() {
+        readPageIndex = writePageIndex = -1;
+        readPage = writePage = null;
+    }
+
+    // ----------------------------- Blocks -----------------------------
+
+    /**
+     * Copies length bytes from src into memory at address, a page at a time
+     * <p>
+     * Block writes are seen like any other write (watchpoints, observers, heatmap and access counter),
+     * as one access per page they touch.
+     * </p>
+     */
+    public void writeBlock(long address, byte[] src, int offset, int length) {
+        if (address < 0 || length < 0 || address + length > memorySize) {
+            throw new IndexOutOfBoundsException("Block out of bounds: " + address + " + " + length);
+        }
+        if (length > 0 && !writable(address, length)) return;
+        while (length > 0) {
+            int pageOffset = (int) address & PAGE_MASK;
+            int count = Math.min(PAGE_SIZE - pageOffset, length);
+            onAccess(address, count, true);
+            System.arraycopy(src, offset, writablePage((int) (address >>> PAGE_SHIFT)), pageOffset, count);
+            address += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Reads length bytes from the channel straight into the pages at address, without an intermediate buffer
+     *
+     * @throws EOFException if the channel ends first
+     */
+    public void writeBlock(long address, ReadableByteChannel in, long length) throws IOException {
+        if (address < 0 || length < 0 || address + length > memorySize) {
+            throw new IndexOutOfBoundsException("Block out of bounds: " + address + " + " + length);
+        }
+        if (length > 0 && !writable(address, (int) Math.min(length, Integer.MAX_VALUE))) return;
+        while (length > 0) {
+            int pageOffset = (int) address & PAGE_MASK;
+            int count = (int) Math.min(PAGE_SIZE - pageOffset, length);
+            onAccess(address, count, true);
+            ByteBuffer buffer = ByteBuffer.wrap(writablePage((int) (address >>> PAGE_SHIFT)), pageOffset, count);
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    throw new EOFException("Channel ended " + (length - count + buffer.remaining()) + " bytes early");
+                }
+            }
+            address += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Zeroes [address, address + length), pages that were never written are already zero and stay unallocated
+     */
+    public void zeroBlock(long address, long length) {
+        if (address < 0 || length < 0 || address + length > memorySize) {
+            throw new IndexOutOfBoundsException("Block out of bounds: " + address + " + " + length);
+        }
+        if (length > 0 && !writable(address, (int) Math.min(length, Integer.MAX_VALUE))) return;
+        while (length > 0) {
+            int index = (int) (address >>> PAGE_SHIFT);
+            int pageOffset = (int) address & PAGE_MASK;
+            int count = (int) Math.min(PAGE_SIZE - pageOffset, length);
+            onAccess(address, count, true);
+            if (pages[index] != null) {
+                Arrays.fill(writablePage(index), pageOffset, pageOffset + count, (byte) 0);
+            }
+            address += count;
+            length -= count;
+        }
+    }
+
+    // ----------------------------- Words -----------------------------
+
+    public void writeWord(int value, long address) {
+        int offset = (int) address & PAGE_MASK;
+        if ((address >>> PAGE_SHIFT) == writePageIndex && offset <= PAGE_SIZE - 4) {
+            if (tracked) track(address, true);
+            INT_VIEW.set(writePage, offset, value);
+            return;
+        }
+        if (!writable(address, 4)) return;
+        onAccess(address, 4, true);
+        store(address, (byte) (value & 0xFF));
+        store(address + 1, (byte) ((value >> 8) & 0xFF));
+        store(address + 2, (byte) ((value >> 16) & 0xFF));
+        store(address + 3, (byte) ((value >> 24) & 0xFF));
+    }
+
+    public int readWord(long address) {
+        int offset = (int) address & PAGE_MASK;
+        if ((address >>> PAGE_SHIFT) == readPageIndex && offset <= PAGE_SIZE - 4) {
+            if (tracked) track(address, false);
+            return (int) INT_VIEW.get(readPage, offset);
+        }
+        if (!inBounds(address, 4)) return 0;
+        onAccess(address, 4, false);
+        return loadWord(address);
+    }
+
+    // 64-bit words, used by 64-bit mode
+
+    public void writeDWord(long value, long address) {
+        int offset = (int) address & PAGE_MASK;
+        if ((address >>> PAGE_SHIFT) == writePageIndex && offset <= PAGE_SIZE - 8) {
+            if (tracked) track(address, true);
+            LONG_VIEW.set(writePage, offset, value);
+            return;
+        }
+        if (!writable(address, 8)) return;
+        onAccess(address, 8, true);
+        for (int i = 0; i < 8; i++) {
+            store(address + i, (byte) (value >> (i * 8)));
+        }
+    }
+
+    public long readDWord(long address) {
+        int offset = (int) address & PAGE_MASK;
+        if ((address >>> PAGE_SHIFT) == readPageIndex && offset <= PAGE_SIZE - 8) {
+            if (tracked) track(address, false);
+            return (long) LONG_VIEW.get(readPage, offset);
+        }
+        if (!inBounds(address, 8)) return 0;
+        onAccess(address, 8, false);
+        return (loadWord(address) & 0xFFFFFFFFL) | ((long) loadWord(address + 4) << 32);
     }
 
     public static byte[] convertIntToBytes(int value) {
@@ -126,6 +685,10 @@ public class RAM {
             RAM {
                 memorySize=%d,
                 
+                Heap {
+                    size=%d,
+                    start=%d
+                },
                 Stack {
                     size=%d,
                     start=%d,
@@ -142,77 +705,37 @@ public class RAM {
                     end=%d
                 }
             }
-            """.formatted(memory.length, stackSize, stackStart, stackEnd, dataSize, dataStart, dataEnd, programSize, programStart, programEnd);
+            """.formatted(memorySize, heapSize, heapStart, stackSize, stackStart, stackEnd, dataSize, dataStart, dataEnd, programSize, programStart, programEnd);
     }
 
     // ----------------- Memory Dumping / Debugging -----------------
+    // These build the whole dump in memory; for large memories stream through a MemoryDumper instead
 
     public String dump() {
-        StringBuilder sb = new StringBuilder();
-
-        // Define and iterate over each memory segment
-        sb.append(ANSI_RED).append(strLine("Dumping memory segments", 100)).append(ANSI_RESET);
-
-
-        dumpSegment(sb, "Program", ANSI_PURPLE, programStart, programEnd);
-        dumpSegment(sb, "Data", ANSI_BLUE, dataStart, dataEnd);
-        dumpSegment(sb, "Stack", ANSI_GREEN, stackStart, stackEnd);
-
-        sb.append(ANSI_RED).append(strLine(100)).append(ANSI_RESET);
-
-        return sb.toString();
-    }
-
-    // Helper method to dump a segment
-    private void dumpSegment(StringBuilder sb, String name, String color, int start, int end) {
-        sb.append(ANSI_YELLOW).append(strLine(name, 100)).append(ANSI_RESET);
-
-        for (int i = start; i < end; i += 4) {
-            int value = readWord(i);
-            String opcode = cpu.getOpcodeName(memory[i]);
-
-            // Print non-zero memory contents only
-            if (value != 0) {
-                sb.append(String.format(
-                        color + "%08X %08X %08X %08X (0x%04X : %04d) [int: %06d] | opcode: %s" + Logger.ANSI_RESET + "\n",
-                        memory[i] & 0xFF, memory[i + 1] & 0xFF, memory[i + 2] & 0xFF, memory[i + 3] & 0xFF,
-                        i, i, value, opcode));
-            }
+        StringWriter out = new StringWriter();
+        try {
+            new MemoryDumper(this).dumpSegments(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return out.toString();
     }
 
-
     public String DumpHex() {
-        StringBuilder sb = new StringBuilder();
-
-        // Iterate through memory in steps of 4 bytes (word size)
-        for (int i = 0; i < memory.length; i += 4) {
-            int value = readWord(i);
-
-            // If the value is non-zero, print it in hexadecimal
-            if (value != 0) {
-                sb.append(String.format("%02X %02X %02X %02X (0x%04X : %04d) [hex: 0x%08X]\n",
-                        memory[i] & 0xFF, memory[i + 1] & 0xFF,
-                        memory[i + 2] & 0xFF, memory[i + 3] & 0xFF, i, i, value));
-            }
-        }
-
-        return sb.toString();
+        return dumpRange(MemoryDumper.Format.HEX, true);
     }
 
-
     public String DumpAll(){
-        StringBuilder sb = new StringBuilder();
-        int address = 0;
-
-        for (int i = 0; i < memory.length; i += 4) {
-            int value = readWord(i);
+        return dumpRange(MemoryDumper.Format.INT, false);
+    }
 
-            sb.append(String.format("%08X %08X %08X %08X (0x%04X : %04d) [int: %d]\n",
-                    memory[i] & 0xFF, memory[i + 1] & 0xFF,
-                    memory[i + 2] & 0xFF, memory[i + 3] & 0xFF, i, i, value));
+    private String dumpRange(MemoryDumper.Format format, boolean skipZero) {
+        StringWriter out = new StringWriter();
+        try {
+            new MemoryDumper(this).dumpRange(out, 0, memorySize, format, "", skipZero);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-
-        return sb.toString();
+        return out.toString();
     }
 }
@@ -0,0 +1,120 @@
+package org.lpc.computer;
+
+import org.lpc.computer.CPU.CPU;
+import org.lpc.computer.RAM.RAM;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.lpc.Logger.log;
+
+/**
+ * Records a run so it can be reproduced exactly by a {@link Replayer}
+ * <p>
+ * Only the initial checkpoint and the nondeterministic inputs that pass through {@link CPU#input} are logged,
+ * everything else follows from executing the same instructions again. Recording therefore costs nothing per
+ * instruction; the log grows with the number of inputs, not with the length of the run.
+ * </p>
+ */
+public class Recorder implements Closeable {
+    private final Motherboard motherboard;
+    private final DataOutputStream out;
+    private long lastInstruction;
+    private long inputs;
+    private boolean finished;
+
+    private Recorder(Motherboard motherboard, DataOutputStream out) {
+        this.motherboard = motherboard;
+        this.out = out;
+    }
+
+    /**
+     * Writes the checkpoint of the (booted and loaded) machine and starts logging its inputs
+     */
+    public static Recorder start(Motherboard motherboard, Path file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(Files.newOutputStream(file), new Deflater(Deflater.BEST_SPEED), 64 * 1024)));
+
+        Recorder recorder = new Recorder(motherboard, out);
+        recorder.writeCheckpoint();
+
+        CPU cpu = motherboard.getCpu();
+        recorder.lastInstruction = cpu.getInstructionCount();
+        cpu.setRecorder(recorder);
+        return recorder;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        RAM ram = motherboard.getRam();
+
+        out.writeInt(EventLog.MAGIC);
+        out.writeByte(EventLog.VERSION);
+        EventLog.writeVarLong(out, motherboard.getRamStackSize());
+        EventLog.writeVarLong(out, motherboard.getRamDataSize());
+        EventLog.writeVarLong(out, motherboard.getRamProgramSize());
+        EventLog.writeVarLong(out, motherboard.getRamHeapSize());
+        EventLog.writeVarLong(out, ram.getProgramEnd());
+
+        CPU cpu = motherboard.getCpu();
+        out.writeByte(cpu.getEncoding().ordinal());
+        out.writeByte(cpu.getMode().ordinal());
+
+        long[] registers = cpu.getRegisterState();
+        EventLog.writeVarLong(out, registers.length);
+        for (long register : registers) {
+            EventLog.writeSignedVarLong(out, register);
+        }
+
+        int pageCount = ram.getAllocatedPageCount();
+        EventLog.writeVarLong(out, pageCount);
+        for (int index = 0; index < ram.getPageCount(); index++) {
+            byte[] page = ram.getPage(index);
+            if (page == null) continue;
+            EventLog.writeVarLong(out, index);
+            out.write(page);
+        }
+    }
+
+    // Called by the CPU for every nondeterministic input
+    public void input(long instruction, int value) {
+        try {
+            out.writeByte(EventLog.EVENT_INPUT);
+            EventLog.writeVarLong(out, instruction - lastInstruction);
+            EventLog.writeSignedVarLong(out, value);
+            lastInstruction = instruction;
+            inputs++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the final state hash, closes the log and detaches from the CPU
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+
+        CPU cpu = motherboard.getCpu();
+        cpu.setRecorder(null);
+
+        out.writeByte(EventLog.EVENT_END);
+        EventLog.writeVarLong(out, cpu.getInstructionCount() - lastInstruction);
+        out.writeLong(EventLog.stateHash(motherboard));
+        out.close();
+
+        log("Recorded ", cpu.getInstructionCount(), " instructions, ", inputs, " inputs");
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
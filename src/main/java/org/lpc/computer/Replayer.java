@@ -0,0 +1,140 @@
+package org.lpc.computer;
+
+import lombok.Getter;
+import org.lpc.computer.CPU.CPU;
+import org.lpc.computer.CPU.Encoding;
+import org.lpc.computer.CPU.HostCalls;
+import org.lpc.computer.CPU.Mode;
+import org.lpc.computer.RAM.RAM;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.InflaterInputStream;
+
+import static org.lpc.Logger.log;
+
+/**
+ * Reproduces a run logged by a {@link Recorder}
+ * <p>
+ * A fresh machine is built from the recorded layout and checkpoint, and every call to {@link CPU#input}
+ * returns the recorded value instead of asking the real source. The replay fails with an
+ * IllegalStateException as soon as it diverges from the recording.
+ * </p>
+ */
+public class Replayer implements Closeable {
+    @Getter
+    private final Motherboard motherboard;
+    private final DataInputStream in;
+    private long lastInstruction;
+
+    private Replayer(Motherboard motherboard, DataInputStream in) {
+        this.motherboard = motherboard;
+        this.in = in;
+    }
+
+    /**
+     * Builds and boots a machine in the recorded initial state, ready to run
+     */
+    public static Replayer load(Path file) throws IOException {
+        return load(file, new HostCalls());
+    }
+
+    /**
+     * Same as {@link #load(Path)} for recordings that call host functions beyond the built-in ones
+     */
+    public static Replayer load(Path file, HostCalls hostCalls) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(Files.newInputStream(file)), 64 * 1024));
+
+        if (in.readInt() != EventLog.MAGIC) {
+            throw new IOException("Not a recording: " + file);
+        }
+        if (in.readByte() != EventLog.VERSION) {
+            throw new IOException("Unsupported recording version: " + file);
+        }
+
+        int stackSize = (int) EventLog.readVarLong(in);
+        int dataSize = (int) EventLog.readVarLong(in);
+        int programSize = (int) EventLog.readVarLong(in);
+        long heapSize = EventLog.readVarLong(in);
+        Motherboard motherboard = new Motherboard(stackSize, dataSize, programSize, heapSize);
+        motherboard.setHostCalls(hostCalls.copy());
+        motherboard.boot();
+
+        RAM ram = motherboard.getRam();
+        ram.setProgramEnd((int) EventLog.readVarLong(in));
+
+        CPU cpu = motherboard.getCpu();
+        cpu.setEncoding(Encoding.values()[in.readByte()]);
+        cpu.setMode(Mode.values()[in.readByte()]);
+
+        long[] registers = new long[(int) EventLog.readVarLong(in)];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = EventLog.readSignedVarLong(in);
+        }
+
+        byte[] page = new byte[RAM.PAGE_SIZE];
+        for (long pages = EventLog.readVarLong(in); pages > 0; pages--) {
+            int index = (int) EventLog.readVarLong(in);
+            in.readFully(page);
+            long address = (long) index << RAM.PAGE_SHIFT;
+            ram.writeBlock(address, page, 0, (int) Math.min(RAM.PAGE_SIZE, ram.getMemorySize() - address));
+        }
+
+        Replayer replayer = new Replayer(motherboard, in);
+        cpu.setRegisterState(registers);
+        cpu.setReplayer(replayer);
+        replayer.lastInstruction = cpu.getInstructionCount();
+        return replayer;
+    }
+
+    // Called by the CPU in place of every nondeterministic input
+    public int nextInput(long instruction) {
+        try {
+            byte type = in.readByte();
+            long at = lastInstruction + EventLog.readVarLong(in);
+            if (type != EventLog.EVENT_INPUT || at != instruction) {
+                throw new IllegalStateException("Replay diverged: input at instruction " + instruction
+                        + " but the recording has " + (type == EventLog.EVENT_INPUT ? "one" : "the end") + " at " + at);
+            }
+            lastInstruction = at;
+            return (int) EventLog.readSignedVarLong(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs the machine to completion and checks it ended exactly where the recording did
+     */
+    public void run() throws IOException {
+        CPU cpu = motherboard.getCpu();
+        cpu.run();
+        cpu.setReplayer(null);
+
+        if (in.readByte() != EventLog.EVENT_END) {
+            throw new IllegalStateException("Replay diverged: run ended before all recorded inputs were consumed");
+        }
+        long end = lastInstruction + EventLog.readVarLong(in);
+        if (end != cpu.getInstructionCount()) {
+            throw new IllegalStateException("Replay diverged: ended after " + cpu.getInstructionCount()
+                    + " instructions, recording ended after " + end);
+        }
+        if (in.readLong() != EventLog.stateHash(motherboard)) {
+            throw new IllegalStateException("Replay diverged: final state differs from the recording");
+        }
+        close();
+
+        log("Replayed ", end, " instructions");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,243 @@
+package org.lpc.computer;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.lpc.computer.CPU.CPU;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lpc.Logger.logErr;
+
+/**
+ * Runs many machines on a fixed number of host threads by giving each one a quantum of instructions at a time
+ * <p>
+ * A job is taken from the ready queue, runs {@link CPU#run(long)} for one quantum and goes back to the end of the
+ * queue, so a program that never ends only ever holds a thread for one quantum. With {@link Policy#PRIORITY}
+ * higher priorities always go first and jobs of equal priority take turns; {@link Policy#ROUND_ROBIN}
+ * ignores priorities. Instruction budgets, deadlines and cancellation are checked between quanta,
+ * the quantum is the upper bound on how late they take effect.
+ * </p>
+ */
+@Getter
+public class Scheduler implements AutoCloseable {
+    public enum Policy {
+        ROUND_ROBIN, PRIORITY
+    }
+
+    public enum State {
+        READY,             // Waiting in the queue or running a quantum
+        FINISHED,          // The program ran to its end
+        STOPPED,           // Hit a breakpoint or watchpoint of an attached debugger
+        BUDGET_EXCEEDED,   // Used up its instructions
+        DEADLINE_EXCEEDED, // Still running at its deadline
+        CANCELLED,
+        FAILED             // The program threw, see Job.getError()
+    }
+
+    /**
+     * @param instructionBudget maximum instructions to run, 0 for no limit
+     * @param timeout           wall-clock time from submitting until the job is stopped, null for no limit
+     */
+    public record Options(int priority, long instructionBudget, Duration timeout) {
+        public static Options defaults() {
+            return new Options(0, 0, null);
+        }
+    }
+
+    @Getter
+    public static class Job {
+        private final Motherboard machine;
+        private final Options options;
+        private final long deadline; // System.nanoTime(), Long.MAX_VALUE for none
+        private final CompletableFuture<Job> completion = new CompletableFuture<>();
+
+        private volatile State state = State.READY;
+        private volatile boolean cancelRequested;
+        private long executed;  // Instructions run by this scheduler
+        private long quanta;
+        private Throwable error;
+        @Getter(AccessLevel.NONE)
+        private long sequence;  // Queue order within a priority
+
+        Job(Motherboard machine, Options options) {
+            this.machine = machine;
+            this.options = options;
+            this.deadline = options.timeout() == null ? Long.MAX_VALUE : System.nanoTime() + options.timeout().toNanos();
+        }
+
+        /**
+         * Stops the job before its next quantum
+         */
+        public void cancel() {
+            cancelRequested = true;
+        }
+
+        public boolean isDone() {
+            return completion.isDone();
+        }
+
+        /**
+         * Waits until the job is no longer READY and returns its final state
+         *
+         * @throws IllegalStateException if the scheduler was closed before the job could be queued
+         */
+        public State await() throws InterruptedException {
+            try {
+                completion.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            }
+            return state;
+        }
+    }
+
+    private final Policy policy;
+    private final long quantum;
+    private final PriorityBlockingQueue<Job> ready;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param threads host threads running machines
+     * @param quantum instructions a machine runs before the next one gets the thread
+     */
+    public Scheduler(int threads, long quantum, Policy policy) {
+        if (threads <= 0 || quantum <= 0) {
+            throw new IllegalArgumentException("Threads and quantum must be positive: " + threads + ", " + quantum);
+        }
+        this.policy = policy;
+        this.quantum = quantum;
+
+        Comparator<Job> order = Comparator.comparingLong(job -> job.sequence);
+        if (policy == Policy.PRIORITY) {
+            order = Comparator.<Job>comparingInt(job -> -job.options.priority()).thenComparing(order);
+        }
+        this.ready = new PriorityBlockingQueue<>(64, order);
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "scheduler-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public Scheduler(int threads) {
+        this(threads, 100_000, Policy.ROUND_ROBIN);
+    }
+
+    public Job submit(Motherboard machine) {
+        return submit(machine, Options.defaults());
+    }
+
+    /**
+     * Queues a booted machine with its program loaded, it continues from its current IP
+     * <p>
+     * A job submitted while the scheduler closes is completed exceptionally with an IllegalStateException.
+     * </p>
+     */
+    public Job submit(Motherboard machine, Options options) {
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        Job job = new Job(machine, options);
+        enqueue(job);
+        if (closed && ready.remove(job)) { // close() may have emptied the queue before the job got in
+            job.completion.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+        }
+        return job;
+    }
+
+    private void enqueue(Job job) {
+        job.sequence = sequence.getAndIncrement();
+        ready.add(job);
+    }
+
+    // ----------------------------- Workers -----------------------------
+
+    private void work() {
+        while (!closed) {
+            Job job;
+            try {
+                job = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (runQuantum(job)) {
+                enqueue(job);
+            }
+        }
+    }
+
+    // Returns true if the job has to run again
+    private boolean runQuantum(Job job) {
+        if (job.cancelRequested) {
+            return finish(job, State.CANCELLED);
+        }
+        if (System.nanoTime() - job.deadline >= 0) {
+            return finish(job, State.DEADLINE_EXCEEDED);
+        }
+
+        long budget = job.options.instructionBudget();
+        long slice = budget > 0 ? Math.min(quantum, budget - job.executed) : quantum;
+        if (slice <= 0) {
+            return finish(job, State.BUDGET_EXCEEDED);
+        }
+
+        CPU cpu = job.machine.getCpu();
+        long before = cpu.getInstructionCount();
+        CPU.StopReason reason = null;
+        try {
+            reason = cpu.run(slice);
+        } catch (Throwable e) { // Also errors like a StackOverflowError, the worker has to go on with the other jobs
+            job.error = e;
+            logErr(() -> "Machine failed: " + e);
+        }
+        job.executed += cpu.getInstructionCount() - before;
+        job.quanta++;
+
+        if (reason == null) {
+            return finish(job, State.FAILED);
+        }
+        return switch (reason) {
+            case HALTED -> finish(job, State.FINISHED);
+            case BREAKPOINT, WATCHPOINT -> finish(job, State.STOPPED);
+            case STEP -> budget > 0 && job.executed >= budget ? finish(job, State.BUDGET_EXCEEDED) : true;
+        };
+    }
+
+    private boolean finish(Job job, State state) {
+        job.state = state;
+        job.completion.complete(job);
+        return false;
+    }
+
+    /**
+     * Stops the workers after their current quantum and cancels every queued job
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.forEach(Thread::interrupt);
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Job job;
+        while ((job = ready.poll()) != null) {
+            finish(job, State.CANCELLED);
+        }
+    }
+}
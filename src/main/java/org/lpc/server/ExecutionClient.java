@@ -0,0 +1,91 @@
+package org.lpc.server;
+
+import org.lpc.server.Protocol.Request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client for {@link ExecutionServer}
+ * <p>
+ * {@link #execute} sends one request and waits for its result. For pipelining, {@link #send} several requests
+ * and {@link #receive} the responses, which are matched by request id.
+ * </p>
+ */
+public class ExecutionClient implements AutoCloseable {
+    public record Response(int id, byte type, ByteBuffer body) {
+        public String text() {
+            return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+        }
+    }
+
+    /**
+     * @param output what the program printed
+     */
+    public record Execution(Protocol.Result result, String output) {
+    }
+
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+
+    public ExecutionClient(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+    }
+
+    public synchronized void send(Request request) throws IOException {
+        ByteBuffer frame = Protocol.encode(request);
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    public Response receive() throws IOException {
+        header.clear();
+        readFully(header);
+        ByteBuffer frame = ByteBuffer.allocate(header.flip().getInt());
+        readFully(frame);
+        frame.flip();
+        return new Response(frame.getInt(), frame.get(), frame.slice());
+    }
+
+    /**
+     * Runs one request, only use it while no other requests are in flight on this connection
+     *
+     * @throws IOException with the server's message if the program couldn't be loaded or failed
+     */
+    public Execution execute(Request request) throws IOException {
+        send(request);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        while (true) {
+            Response response = receive();
+            switch (response.type()) {
+                case Protocol.OUTPUT -> output.write(response.body().array(),
+                        response.body().arrayOffset() + response.body().position(), response.body().remaining());
+                case Protocol.RESULT -> {
+                    return new Execution(Protocol.decodeResult(response.id(), response.body()),
+                            output.toString(StandardCharsets.UTF_8));
+                }
+                case Protocol.ERROR -> throw new IOException(response.text());
+                default -> throw new IOException("Unknown response type: " + response.type());
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
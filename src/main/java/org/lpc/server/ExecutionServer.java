@@ -0,0 +1,437 @@
+package org.lpc.server;
+
+import lombok.Getter;
+import org.lpc.computer.CPU.CPU;
+import org.lpc.computer.CPU.Encoding;
+import org.lpc.computer.MachinePool;
+import org.lpc.computer.Motherboard;
+import org.lpc.computer.RAM.RAM;
+import org.lpc.computer.Scheduler;
+import org.lpc.server.Protocol.MachineConfig;
+import org.lpc.server.Protocol.Request;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.lpc.Logger.log;
+import static org.lpc.Logger.logErr;
+
+/**
+ * Long-running service that executes programs sent over a socket, see {@link Protocol} for the wire format
+ * <p>
+ * One selector thread does all the network IO and nothing else. Requests are loaded (taking a machine from the pool,
+ * assembling the source) on separate loader threads, so a big source doesn't hold up the other connections;
+ * assembling is given up after {@link #LOAD_TIMEOUT}.
+ * Programs run on a {@link Scheduler}, on machines forked from a warm
+ * {@link MachinePool} per machine size and restored when done, so a request doesn't boot a machine.
+ * Only the pools of the {@link #MAX_POOLS} most recently used sizes are kept.
+ * At most maxConcurrent programs run at a time, later requests wait in arrival order. Clients can pipeline
+ * requests on one connection, responses are matched by request id.
+ * </p>
+ * <p>
+ * Programs print to their client with {@code HCALL print} (EAX = address, EBX = length); the output is streamed
+ * back while the program runs.
+ * </p>
+ */
+@Getter
+public class ExecutionServer implements AutoCloseable {
+    public static final int PRINT = 16;    // Host call number of print
+    public static final int MAX_POOLS = 8; // Machine sizes kept warm, clients choose the size
+    public static final Duration LOAD_TIMEOUT = Duration.ofSeconds(10); // Assembling a source, or the request's timeout if shorter
+
+    private final int maxConcurrent;
+    private final long defaultBudget; // Instructions per request unless the request asks for less, 0 = no limit
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Scheduler scheduler;
+    private final ExecutorService loader; // Takes machines from the pools and loads the programs into them
+    private final Map<MachineConfig, MachinePool> pools = new LinkedHashMap<>(16, 0.75f, true) { // Guarded by itself
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MachineConfig, MachinePool> eldest) {
+            // Machines in use go back to the dropped pool and are collected with it
+            return size() > MAX_POOLS;
+        }
+    };
+    private final Map<CPU, Execution> executions = new ConcurrentHashMap<>(); // Running programs by their CPU, for print
+
+    private final Deque<Execution> waiting = new ArrayDeque<>(); // Guarded by this
+    private int running;                                         // Guarded by this
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private Thread thread;
+    private volatile boolean closed;
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        final Set<Execution> executions = ConcurrentHashMap.newKeySet();
+        volatile boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private static final class Execution {
+        final Connection connection;
+        final Request request;
+        MachinePool pool;
+        Motherboard machine;
+        volatile Scheduler.Job job; // Set on a loader thread, cancelled from the selector thread
+
+        Execution(Connection connection, Request request) {
+            this.connection = connection;
+            this.request = request;
+        }
+    }
+
+    /**
+     * @param threads       host threads running programs, and as many loading them
+     * @param maxConcurrent programs running (and machines in use) at once
+     * @param defaultBudget instruction limit of requests that don't set one, 0 for no limit
+     */
+    public ExecutionServer(InetSocketAddress address, int threads, int maxConcurrent, long defaultBudget) throws IOException {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be positive: " + maxConcurrent);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.defaultBudget = defaultBudget;
+        this.scheduler = new Scheduler(threads);
+        this.loader = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "execution-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public ExecutionServer start() {
+        thread = new Thread(this::serve, "execution-server");
+        thread.setDaemon(true);
+        thread.start();
+        log(() -> "Execution server listening on " + server.socket().getLocalSocketAddress());
+        return this;
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    // ----------------------------- Network -----------------------------
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                Connection writable;
+                while ((writable = pendingWrites.poll()) != null) {
+                    if (writable.key.isValid()) {
+                        writable.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) read(connection);
+                            if (key.isValid() && key.isWritable()) write(connection);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (key.attachment() instanceof Connection connection) {
+                            disconnect(connection);
+                        } else {
+                            logErr(() -> "Accept failed: " + e);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) logErr(() -> "Execution server stopped: " + e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) < 0) {
+            disconnect(connection);
+            return;
+        }
+
+        ByteBuffer in = connection.in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < Protocol.HEADER - 4 || length > Protocol.MAX_FRAME) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                if (in.capacity() < 4 + length) { // Grow for a frame bigger than the buffer
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    connection.in = bigger.put(in);
+                    return;
+                }
+                break;
+            }
+
+            in.getInt();
+            ByteBuffer frame = in.slice(in.position(), length);
+            in.position(in.position() + length);
+
+            int id = frame.getInt(0);
+            try {
+                submit(connection, Protocol.decodeRequest(frame));
+            } catch (RuntimeException e) {
+                send(connection, Protocol.error(id, "Invalid request: " + e.getMessage()));
+            }
+        }
+        in.compact();
+    }
+
+    private void write(Connection connection) throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = connection.out.peek()) != null) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) return; // Socket buffer full, continue when writable again
+            connection.out.poll();
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+        if (!connection.out.isEmpty()) { // Raced with a send from a worker
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Can be called from any thread
+    private void send(Connection connection, ByteBuffer frame) {
+        if (connection.closed) return;
+        connection.out.add(frame);
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    private void disconnect(Connection connection) {
+        connection.closed = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+        // Nobody is left to receive the results
+        connection.executions.forEach(execution -> {
+            if (execution.job != null) execution.job.cancel();
+        });
+    }
+
+    // ----------------------------- Execution -----------------------------
+
+    private void submit(Connection connection, Request request) {
+        Execution execution = new Execution(connection, request);
+        connection.executions.add(execution);
+        synchronized (this) {
+            if (running >= maxConcurrent) {
+                waiting.addLast(execution);
+                return;
+            }
+            running++;
+        }
+        loader.execute(() -> start(execution));
+    }
+
+    // Runs on a loader thread
+    private void start(Execution execution) {
+        Request request = execution.request;
+        if (execution.connection.closed) {
+            done(execution);
+            return;
+        }
+
+        try {
+            synchronized (pools) {
+                execution.pool = pools.computeIfAbsent(request.machine(), this::newPool);
+            }
+            execution.machine = execution.pool.acquire();
+            load(execution.machine, request);
+        } catch (Throwable e) { // Also errors, e.g. a StackOverflowError, the machine and the slot have to be given back
+            send(execution.connection, Protocol.error(request.id(), "Load failed: "
+                    + (e instanceof Exception ? e.getMessage() : e)));
+            done(execution);
+            return;
+        }
+
+        long budget = request.instructionBudget() > 0 && (defaultBudget == 0 || request.instructionBudget() < defaultBudget)
+                ? request.instructionBudget() : defaultBudget;
+        Duration timeout = request.timeoutMillis() > 0 ? Duration.ofMillis(request.timeoutMillis()) : null;
+
+        executions.put(execution.machine.getCpu(), execution);
+        try {
+            execution.job = scheduler.submit(execution.machine, new Scheduler.Options(0, budget, timeout));
+        } catch (IllegalStateException e) { // The server is closing
+            executions.remove(execution.machine.getCpu());
+            done(execution);
+            return;
+        }
+        execution.job.getCompletion().whenComplete((job, error) -> finish(execution, error));
+        if (execution.connection.closed) { // Disconnected while loading
+            execution.job.cancel();
+        }
+    }
+
+    private void load(Motherboard machine, Request request) throws IOException {
+        CPU cpu = machine.getCpu();
+        RAM ram = machine.getRam();
+
+        if (request.type() == Protocol.SOURCE) {
+            cpu.getAssembler().setIncludesAllowed(false); // Clients must not read the server's files
+            cpu.getAssembler().setTimeout(request.timeoutMillis() > 0 && request.timeoutMillis() < LOAD_TIMEOUT.toMillis()
+                    ? Duration.ofMillis(request.timeoutMillis()) : LOAD_TIMEOUT);
+            cpu.getAssembler().assemble(new StringReader(request.source()), request.encoding());
+            return;
+        }
+
+        byte[] program = request.program();
+        if (program.length == 0 || program.length > ram.getProgramSize()) {
+            throw new IllegalArgumentException("Program image doesn't fit the program region: " + program.length);
+        }
+        ram.writeBlock(ram.getProgramStart(), program, 0, program.length);
+        // Same end convention as the assembler: last byte for fixed, exclusive for compact programs
+        int end = ram.getProgramStart() + program.length;
+        ram.setProgramEnd(request.encoding() == Encoding.COMPACT ? end : end - 1);
+        cpu.setEncoding(request.encoding());
+        cpu.setMode(request.mode());
+    }
+
+    // error is set if the job never ran because the scheduler closed
+    private void finish(Execution execution, Throwable error) {
+        Request request = execution.request;
+        CPU cpu = execution.machine.getCpu();
+        Scheduler.Job job = execution.job;
+
+        try {
+            if (error != null) {
+                send(execution.connection, Protocol.error(request.id(), "Not run: " + error.getMessage()));
+            } else if (job.getState() == Scheduler.State.FAILED) {
+                send(execution.connection, Protocol.error(request.id(), "Program failed: " + job.getError()));
+            } else {
+                send(execution.connection, Protocol.result(new Protocol.Result(request.id(), job.getState(),
+                        job.getExecuted(), cpu.getRegisterState(), resultMemory(execution.machine.getRam(), request))));
+            }
+        } catch (Throwable e) {
+            send(execution.connection, Protocol.error(request.id(), "Sending the result failed: " + e));
+        } finally {
+            executions.remove(cpu);
+            done(execution);
+        }
+    }
+
+    private static byte[] resultMemory(RAM ram, Request request) {
+        long address = request.resultAddress();
+        int length = (int) Math.max(0, Math.min(request.resultLength(), ram.getMemorySize() - address));
+        if (address < 0 || length > Protocol.MAX_FRAME / 2) {
+            return new byte[0];
+        }
+        byte[] memory = new byte[length];
+        for (int i = 0; i < length; i++) {
+            memory[i] = ram.read(address + i);
+        }
+        return memory;
+    }
+
+    // Gives the machine back and starts the next waiting request
+    private void done(Execution execution) {
+        try {
+            if (execution.machine != null) {
+                execution.pool.release(execution.machine);
+            }
+        } catch (RuntimeException e) { // The machine is dropped, the slot still has to go to the next request
+            logErr(() -> "Releasing a machine failed: " + e);
+        }
+        execution.connection.executions.remove(execution);
+
+        Execution next;
+        synchronized (this) {
+            next = waiting.pollFirst();
+            if (next == null) {
+                running--;
+                return;
+            }
+        }
+        loader.execute(() -> start(next));
+    }
+
+    private MachinePool newPool(MachineConfig config) {
+        Motherboard template = new Motherboard(config.stackSize(), config.dataSize(), config.programSize(), config.heapSize());
+        template.getHostCalls().register(PRINT, "print", this::print);
+        template.boot();
+        return new MachinePool(template, maxConcurrent);
+    }
+
+    private void print(CPU cpu, RAM ram) {
+        Execution execution = executions.get(cpu);
+        if (execution == null) return;
+
+        long address = cpu.getEAX_VALUE();
+        int length = (int) Math.min(cpu.getEBX_VALUE(), Protocol.MAX_FRAME / 2);
+        byte[] bytes = new byte[Math.max(0, length)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = ram.read(address + i);
+        }
+        send(execution.connection, Protocol.output(execution.request.id(), bytes));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        loader.shutdownNow();
+        scheduler.close();
+    }
+}
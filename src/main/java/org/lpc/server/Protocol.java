@@ -0,0 +1,165 @@
+package org.lpc.server;
+
+import org.lpc.computer.CPU.Encoding;
+import org.lpc.computer.CPU.Mode;
+import org.lpc.computer.Scheduler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format shared by {@link ExecutionServer} and {@link ExecutionClient}
+ * <p>
+ * Every message is a frame: int length of the rest, int request id, byte type, then the body (all big-endian).
+ * Requests can be pipelined, responses carry the id of their request and may arrive in any order.
+ * <pre>
+ * SOURCE request: config, byte encoding, int length, UTF-8 assembly source
+ * IMAGE request:  config, byte encoding, byte mode, int length, program bytes loaded at the program start
+ * config:         int stackSize, dataSize, programSize, long heapSize, long instructionBudget (0 = server default),
+ *                 int timeoutMillis (0 = none), long resultAddress, int resultLength
+ * OUTPUT:         the bytes the program printed with HCALL print
+ * RESULT:         byte Scheduler.State, long instructions, int register count, long per register
+ *                 (see CPU.getRegisterState), int length, the result memory range
+ * ERROR:          UTF-8 message, the request did not run
+ * </pre>
+ * Machine sizes are limited to {@link #MAX_REGION_SIZE} per region and {@link #MAX_HEAP_SIZE} of heap, a request
+ * asking for more is rejected before the server creates a machine for it.
+ * </p>
+ */
+public final class Protocol {
+    public static final byte SOURCE = 1;
+    public static final byte IMAGE = 2;
+
+    public static final byte OUTPUT = 1;
+    public static final byte RESULT = 2;
+    public static final byte ERROR = 3;
+
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+    public static final int HEADER = 4 + 4 + 1; // length, id, type
+    public static final int MAX_REGION_SIZE = 64 * 1024 * 1024; // Stack, data and program region of a machine
+    public static final long MAX_HEAP_SIZE = 256L * 1024 * 1024;
+
+    private Protocol() {
+    }
+
+    public record MachineConfig(int stackSize, int dataSize, int programSize, long heapSize) {
+        public MachineConfig {
+            checkRegion("stack", stackSize, 0);
+            checkRegion("data", dataSize, 0);
+            checkRegion("program", programSize, 8); // At least the CALL start
+            if (heapSize < 0 || heapSize > MAX_HEAP_SIZE) {
+                throw new IllegalArgumentException("Invalid heap size: " + heapSize + " (at most " + MAX_HEAP_SIZE + ")");
+            }
+        }
+
+        private static void checkRegion(String name, int size, int min) {
+            if (size < min || size > MAX_REGION_SIZE) {
+                throw new IllegalArgumentException("Invalid " + name + " size: " + size + " (" + min + " to " + MAX_REGION_SIZE + ")");
+            }
+        }
+    }
+
+    public record Request(int id, byte type, MachineConfig machine, long instructionBudget, int timeoutMillis,
+                          long resultAddress, int resultLength, Encoding encoding, Mode mode, byte[] program) {
+        /**
+         * Assembly source in the fixed encoding without limits beyond the server's, returning the given memory range
+         */
+        public static Request source(int id, MachineConfig machine, String source, long resultAddress, int resultLength) {
+            return new Request(id, SOURCE, machine, 0, 0, resultAddress, resultLength,
+                    Encoding.FIXED, Mode.BITS_32, source.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public String source() {
+            return new String(program, StandardCharsets.UTF_8);
+        }
+    }
+
+    public record Result(int id, Scheduler.State state, long instructions, long[] registers, byte[] memory) {
+    }
+
+    // ----------------------------- Requests -----------------------------
+
+    public static ByteBuffer encode(Request request) {
+        boolean image = request.type() == IMAGE;
+        int length = 4 + 1 + 4 * 3 + 8 + 8 + 4 + 8 + 4 + 1 + (image ? 1 : 0) + 4 + request.program().length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).putInt(request.id()).put(request.type());
+        MachineConfig machine = request.machine();
+        buffer.putInt(machine.stackSize()).putInt(machine.dataSize()).putInt(machine.programSize()).putLong(machine.heapSize());
+        buffer.putLong(request.instructionBudget()).putInt(request.timeoutMillis());
+        buffer.putLong(request.resultAddress()).putInt(request.resultLength());
+        buffer.put((byte) request.encoding().ordinal());
+        if (image) {
+            buffer.put((byte) request.mode().ordinal());
+        }
+        buffer.putInt(request.program().length).put(request.program());
+        return buffer.flip();
+    }
+
+    /**
+     * Decodes a request frame without its length prefix
+     */
+    public static Request decodeRequest(ByteBuffer frame) {
+        int id = frame.getInt();
+        byte type = frame.get();
+        if (type != SOURCE && type != IMAGE) {
+            throw new IllegalArgumentException("Unknown request type: " + type);
+        }
+        MachineConfig machine = new MachineConfig(frame.getInt(), frame.getInt(), frame.getInt(), frame.getLong());
+        long budget = frame.getLong();
+        int timeout = frame.getInt();
+        long resultAddress = frame.getLong();
+        int resultLength = frame.getInt();
+        Encoding encoding = Encoding.values()[frame.get()];
+        Mode mode = type == IMAGE ? Mode.values()[frame.get()] : Mode.BITS_32;
+
+        int length = frame.getInt();
+        if (length < 0 || length > frame.remaining()) {
+            throw new IllegalArgumentException("Invalid program length: " + length);
+        }
+        byte[] program = new byte[length];
+        frame.get(program);
+        return new Request(id, type, machine, budget, timeout, resultAddress, resultLength, encoding, mode, program);
+    }
+
+    // ----------------------------- Responses -----------------------------
+
+    public static ByteBuffer output(int id, byte[] bytes) {
+        return frame(id, OUTPUT, bytes.length).put(bytes).flip();
+    }
+
+    public static ByteBuffer error(int id, String message) {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        return frame(id, ERROR, bytes.length).put(bytes).flip();
+    }
+
+    public static ByteBuffer result(Result result) {
+        ByteBuffer buffer = frame(result.id(), RESULT,
+                1 + 8 + 4 + 8 * result.registers().length + 4 + result.memory().length);
+        buffer.put((byte) result.state().ordinal()).putLong(result.instructions());
+        buffer.putInt(result.registers().length);
+        for (long register : result.registers()) {
+            buffer.putLong(register);
+        }
+        buffer.putInt(result.memory().length).put(result.memory());
+        return buffer.flip();
+    }
+
+    public static Result decodeResult(int id, ByteBuffer body) {
+        Scheduler.State state = Scheduler.State.values()[body.get()];
+        long instructions = body.getLong();
+        long[] registers = new long[body.getInt()];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = body.getLong();
+        }
+        byte[] memory = new byte[body.getInt()];
+        body.get(memory);
+        return new Result(id, state, instructions, registers, memory);
+    }
+
+    private static ByteBuffer frame(int id, byte type, int bodyLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + bodyLength);
+        return buffer.putInt(4 + 1 + bodyLength).putInt(id).put(type);
+    }
+}
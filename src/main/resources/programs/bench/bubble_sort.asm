@@ -0,0 +1,73 @@
+; Bubble sort of n pseudo-random signed words at 2048
+; The array is refilled from the same seed every round, so each round sorts the same input
+; 1100 = 1 if the result is sorted, 1104 = smallest, 1108 = largest, 1112 = sum of the array
+; @memory stack=1024 data=4096 program=1024
+; @expect 1100 = 1
+; @expect 1104 = -2139617931
+; @expect 1108 = 2145990661
+; @expect 1112 = -471889400
+
+.data
+    n = 400
+    rounds = 12
+
+.fill                   ; a[i] = x = x * 1103515245 + 12345 from x = 42
+    MOV EAX, 42
+    MOV ECX, 0
+.fillNext
+    MUL EAX, 1103515245
+    ADD EAX, 12345
+    STORE [ECX*4 + 2048], EAX
+    ADD ECX, 1
+    CMP ECX, n
+    JL fillNext
+    RET
+
+.check                  ; Stores the sorted flag, first and last element and the sum
+    MOV EDI, 1
+    LOAD EAX, 2048
+    MOV ESI, EAX
+    MOV ECX, 1
+.checkNext
+    LOAD EBX, [ECX*4 + 2048]
+    ADD ESI, EBX
+    CMP EAX, EBX
+    JLE checkOrdered
+    MOV EDI, 0
+.checkOrdered
+    MOV EAX, EBX
+    ADD ECX, 1
+    CMP ECX, n
+    JL checkNext
+    STORE 1100, EDI
+    LOAD EAX, 2048
+    STORE 1104, EAX
+    LOAD EAX, 3644      ; 2048 + (n - 1) * 4
+    STORE 1108, EAX
+    STORE 1112, ESI
+    RET
+
+.start
+    MOV EBP, rounds
+.round
+    CALL fill
+    MOV EDI, 399        ; n - 1, elements left to bubble through
+.pass
+    MOV ECX, 0
+.compare
+    LOAD EAX, [ECX*4 + 2048]
+    LOAD EBX, [ECX*4 + 2052]
+    CMP EAX, EBX
+    JLE inOrder
+    STORE [ECX*4 + 2048], EBX
+    STORE [ECX*4 + 2052], EAX
+.inOrder
+    ADD ECX, 1
+    CMP ECX, EDI
+    JL compare
+    SUB EDI, 1
+    JNZ pass
+
+    SUB EBP, 1
+    JNZ round
+    CALL check
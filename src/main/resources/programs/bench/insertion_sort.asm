@@ -0,0 +1,72 @@
+; Insertion sort of n pseudo-random signed words at 2048, same input and checks as bubble_sort.asm
+; 1100 = 1 if the result is sorted, 1104 = smallest, 1108 = largest, 1112 = sum of the array
+; @memory stack=1024 data=4096 program=1024
+; @expect 1100 = 1
+; @expect 1104 = -2139617931
+; @expect 1108 = 2145990661
+; @expect 1112 = -471889400
+
+.data
+    n = 400
+    rounds = 24
+
+.fill                   ; a[i] = x = x * 1103515245 + 12345 from x = 42
+    MOV EAX, 42
+    MOV ECX, 0
+.fillNext
+    MUL EAX, 1103515245
+    ADD EAX, 12345
+    STORE [ECX*4 + 2048], EAX
+    ADD ECX, 1
+    CMP ECX, n
+    JL fillNext
+    RET
+
+.check                  ; Stores the sorted flag, first and last element and the sum
+    MOV EDI, 1
+    LOAD EAX, 2048
+    MOV ESI, EAX
+    MOV ECX, 1
+.checkNext
+    LOAD EBX, [ECX*4 + 2048]
+    ADD ESI, EBX
+    CMP EAX, EBX
+    JLE checkOrdered
+    MOV EDI, 0
+.checkOrdered
+    MOV EAX, EBX
+    ADD ECX, 1
+    CMP ECX, n
+    JL checkNext
+    STORE 1100, EDI
+    LOAD EAX, 2048
+    STORE 1104, EAX
+    LOAD EAX, 3644      ; 2048 + (n - 1) * 4
+    STORE 1108, EAX
+    STORE 1112, ESI
+    RET
+
+.start
+    MOV EBP, rounds
+.round
+    CALL fill
+    MOV ECX, 1          ; i
+.insert
+    LOAD EAX, [ECX*4 + 2048] ; key
+    MOV EDX, ECX        ; j
+.shift
+    LOAD EBX, [EDX*4 + 2044] ; a[j - 1]
+    CMP EBX, EAX
+    JLE place
+    STORE [EDX*4 + 2048], EBX
+    SUB EDX, 1
+    JNZ shift
+.place
+    STORE [EDX*4 + 2048], EAX
+    ADD ECX, 1
+    CMP ECX, n
+    JL insert
+
+    SUB EBP, 1
+    JNZ round
+    CALL check
@@ -0,0 +1,86 @@
+; C = A * B for n x n matrices of words, A at 2048, B at 6144, C at 10240 (row major, n <= 32)
+; A[i][j] = i + j, B[i][j] = i - j. 1100 = trace of C, 1104 = sum of all of C, 1108 = C[n-1][0]
+; @memory stack=1024 data=13312 program=1024
+; @expect 1100 = 0
+; @expect 1104 = 662400
+; @expect 1108 = 10672
+
+.data
+    n = 24
+    rounds = 36
+
+.start
+    ; Fill A and B
+    MOV ECX, 0          ; i
+.fillRow
+    MOV EDX, 0          ; j
+.fillColumn
+    MUL EDI, ECX, n
+    ADD EDI, EDX        ; i * n + j
+    ADD EAX, ECX, EDX
+    STORE [EDI*4 + 2048], EAX
+    SUB EAX, ECX, EDX
+    STORE [EDI*4 + 6144], EAX
+    ADD EDX, 1
+    CMP EDX, n
+    JL fillColumn
+    ADD ECX, 1
+    CMP ECX, n
+    JL fillRow
+
+    MOV EBP, rounds
+.round
+    MOV ECX, 0          ; i
+.row
+    MOV EDX, 0          ; j
+.column
+    MOV ESI, 0          ; sum
+    MOV EBX, 0          ; k
+    MUL EDI, ECX, n     ; i * n, the row of A
+.dot
+    ADD EAX, EDI, EBX
+    LOAD EAX, [EAX*4 + 2048] ; A[i][k]
+    PUSH EAX
+    MUL EAX, EBX, n
+    ADD EAX, EDX
+    LOAD EAX, [EAX*4 + 6144] ; B[k][j]
+    POP EDI
+    MUL EAX, EDI
+    ADD ESI, EAX
+    MUL EDI, ECX, n
+    ADD EBX, 1
+    CMP EBX, n
+    JL dot
+    ADD EAX, EDI, EDX
+    STORE [EAX*4 + 10240], ESI
+    ADD EDX, 1
+    CMP EDX, n
+    JL column
+    ADD ECX, 1
+    CMP ECX, n
+    JL row
+    SUB EBP, 1
+    JNZ round
+
+    ; Trace, total and C[n-1][0]
+    MOV ESI, 0
+    MOV EDI, 0
+    MOV ECX, 0
+.sum
+    LOAD EAX, [ECX*4 + 10240]
+    ADD EDI, EAX
+    ADD ECX, 1
+    CMP ECX, 576        ; n * n
+    JL sum
+    MOV ECX, 0
+.trace
+    MUL EAX, ECX, 25     ; n + 1
+    LOAD EAX, [EAX*4 + 10240]
+    ADD ESI, EAX
+    ADD ECX, 1
+    CMP ECX, n
+    JL trace
+    STORE 1100, ESI
+    STORE 1104, EDI
+    LOAD EAX, 12448     ; 10240 + (n - 1) * n * 4
+    STORE 1108, EAX
@@ -0,0 +1,49 @@
+; Copies n words from 2048 to 2048 + n * 4 over and over, four words per iteration
+; 1100 = sum of the copy, 1104 = its last word
+; @memory stack=1024 data=33792 program=1024
+; @expect 1100 = 8386560
+; @expect 1104 = 4095
+
+.data
+    n = 4096
+    rounds = 450
+
+.start
+    MOV ECX, 0          ; src[i] = i
+.fill
+    STORE [ECX*4 + 2048], ECX
+    ADD ECX, 1
+    CMP ECX, n
+    JL fill
+
+    MOV EBP, rounds
+.round
+    MOV ESI, 2048       ; src
+    MOV EDI, 18432      ; dst = 2048 + n * 4
+    MOV ECX, 1024       ; n / 4
+.copy
+    LOAD EAX, [ESI]
+    LOAD EBX, [ESI + 4]
+    LOAD EDX, [ESI + 8]
+    STORE [EDI], EAX
+    STORE [EDI + 4], EBX
+    STORE [EDI + 8], EDX
+    LOAD EAX, [ESI + 12]
+    STORE [EDI + 12], EAX
+    ADD ESI, 16
+    ADD EDI, 16
+    SUB ECX, 1
+    JNZ copy
+    SUB EBP, 1
+    JNZ round
+
+    MOV ECX, 0
+    MOV EAX, 0
+.sum
+    LOAD EBX, [ECX*4 + 18432]
+    ADD EAX, EBX
+    ADD ECX, 1
+    CMP ECX, n
+    JL sum
+    STORE 1100, EAX
+    STORE 1104, EBX
@@ -0,0 +1,32 @@
+; Naive recursive Fibonacci, deep call trees with PUSH / POP frames
+; 1100 = fib(n), 1104 = number of calls
+; @memory stack=4096 data=1024 program=1024
+; @expect 1100 = 196418
+; @expect 1104 = 635621
+
+.data
+    n = 27
+
+.fib                    ; EAX = fib(EAX), counts calls in EDI, keeps EBX
+    ADD EDI, 1
+    CMP EAX, 2
+    JL fibDone
+    PUSH EBX
+    PUSH EAX
+    SUB EAX, 1
+    CALL fib
+    MOV EBX, EAX        ; fib(n - 1)
+    POP EAX
+    SUB EAX, 2
+    CALL fib
+    ADD EAX, EBX        ; + fib(n - 2)
+    POP EBX
+.fibDone
+    RET
+
+.start
+    MOV EDI, 0
+    MOV EAX, n
+    CALL fib
+    STORE 1100, EAX
+    STORE 1104, EDI
@@ -0,0 +1,45 @@
+; Sieve of Eratosthenes over the numbers below n, repeated a few times
+; One word per number at 2048, 1 = still a prime candidate
+; @memory stack=1024 data=34816 program=1024
+; @expect 1100 = 1028
+
+.data
+    n = 8192
+    rounds = 60
+
+.start
+    MOV EDI, rounds
+.round
+    MOV EAX, 1
+    MOV ECX, 2
+.fill
+    STORE [ECX*4 + 2048], EAX
+    ADD ECX, 1
+    CMP ECX, n
+    JL fill
+
+    MOV ECX, 2          ; i
+    MOV ESI, 0          ; primes found
+.outer
+    LOAD EAX, [ECX*4 + 2048]
+    CMP EAX, 0
+    JZ nextNumber
+    ADD ESI, 1
+    MUL EDX, ECX, ECX   ; j = i * i
+    CMP EDX, n
+    JGE nextNumber
+    MOV EBX, 0
+.cross
+    STORE [EDX*4 + 2048], EBX
+    ADD EDX, ECX
+    CMP EDX, n
+    JL cross
+.nextNumber
+    ADD ECX, 1
+    CMP ECX, n
+    JL outer
+
+    SUB EDI, 1
+    JNZ round
+
+    STORE 1100, ESI
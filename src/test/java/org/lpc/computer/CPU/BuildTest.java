@@ -0,0 +1,135 @@
+package org.lpc.computer.CPU;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lpc.computer.Motherboard;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BuildTest {
+    private static final String MACROS = """
+            .macro twice reg
+                ADD \\reg, \\reg
+            .endm
+            """;
+    private static final String MAIN = """
+            .include "macros.inc"
+            .data
+                result: .space 4
+            .start
+                MOV EAX, 5
+                CALL triple
+                twice EAX
+                MOV ESI, result
+                STORE [ESI], EAX
+            """;
+    private static final String MATH = """
+            .triple
+                MOV EBX, EAX
+                ADD EAX, EBX
+                ADD EAX, EBX
+                RET
+            """;
+
+    @TempDir
+    Path dir;
+
+    private Path main;
+    private Path math;
+    private Path cache;
+    private Motherboard motherboard;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.writeString(dir.resolve("macros.inc"), MACROS);
+        main = Files.writeString(dir.resolve("main.asm"), MAIN);
+        math = Files.writeString(dir.resolve("math.asm"), MATH);
+        cache = dir.resolve("build");
+        motherboard = new Motherboard(512, 2048, 2048);
+        motherboard.boot();
+    }
+
+    @Test
+    void assemblesIncludesAndMacros() throws IOException {
+        Build.Result result = build(newBuild());
+
+        assertEquals(Set.of(main, math), Set.copyOf(result.assembled()));
+        assertEquals(30, run(result));
+    }
+
+    @Test
+    void rebuildUsesTheCache() throws IOException {
+        Build build = newBuild();
+        build(build);
+        Build.Result result = build(build);
+
+        assertEquals(List.of(), result.assembled());
+        assertEquals(30, run(result));
+    }
+
+    @Test
+    void changedIncludeReassemblesOnlyTheFilesUsingIt() throws IOException {
+        Build build = newBuild();
+        build(build);
+        Files.writeString(dir.resolve("macros.inc"), MACROS.replace("ADD \\reg, \\reg", "ADD \\reg, 1"));
+        Build.Result result = build(build);
+
+        assertEquals(List.of(main), result.assembled());
+        assertEquals(16, run(result));
+    }
+
+    @Test
+    void diskCacheOutlivesTheBuild() throws IOException {
+        build(newBuild());
+        Build.Result result = build(newBuild());
+
+        assertEquals(List.of(), result.assembled());
+        assertEquals(30, run(result));
+    }
+
+    @Test
+    void corruptCachedModulesAreReassembled() throws IOException {
+        build(newBuild());
+        try (Stream<Path> files = Files.list(cache)) {
+            for (Path object : files.filter(file -> file.toString().endsWith(".o")).toList()) {
+                byte[] bytes = Files.readAllBytes(object);
+                Files.write(object, Arrays.copyOf(bytes, bytes.length / 2));
+            }
+        }
+        Build.Result result = build(newBuild());
+
+        assertEquals(Set.of(main, math), Set.copyOf(result.assembled()));
+        assertEquals(30, run(result));
+    }
+
+    @Test
+    void missingSourceIsAnIOException() {
+        Build build = newBuild();
+        assertThrows(IOException.class, () -> build.build(List.of(main, dir.resolve("missing.asm")), Encoding.FIXED));
+    }
+
+    private Build newBuild() {
+        return new Build(motherboard, ForkJoinPool.commonPool(), cache);
+    }
+
+    private Build.Result build(Build build) throws IOException {
+        motherboard.reset();
+        return build.build(List.of(main, math), Encoding.COMPACT);
+    }
+
+    private int run(Build.Result result) {
+        motherboard.getCpu().run();
+        return motherboard.getRam().readWord(result.linker().getDataLabels().get("result"));
+    }
+}
@@ -0,0 +1,152 @@
+package org.lpc.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.lpc.computer.CPU.Encoding;
+import org.lpc.computer.CPU.Mode;
+import org.lpc.computer.Motherboard;
+import org.lpc.computer.RAM.RAM;
+import org.lpc.computer.Scheduler;
+import org.lpc.server.Protocol.MachineConfig;
+import org.lpc.server.Protocol.Request;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class ExecutionServerTest {
+    private static final MachineConfig MACHINE = new MachineConfig(1024, 1024, 1024, 0);
+    private static final String ANSWER = """
+            .data
+                msg: .ascii "hi"
+            .start
+                MOV EAX, msg
+                MOV EBX, 2
+                HCALL print
+                MOV EAX, 6
+                MUL EAX, 7
+                STORE 1100, EAX
+            """;
+    private static final String SPIN = """
+            .start
+            .spin
+                JMP spin
+            """;
+
+    private ExecutionServer server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (server != null) server.close();
+    }
+
+    @Test
+    void runsSource() throws IOException {
+        try (ExecutionClient client = connect(2)) {
+            ExecutionClient.Execution execution = client.execute(Request.source(1, MACHINE, ANSWER, 1100, 4));
+
+            assertEquals(Scheduler.State.FINISHED, execution.result().state());
+            assertEquals(42, word(execution.result().memory()));
+            assertEquals("hi", execution.output());
+        }
+    }
+
+    @Test
+    void runsImage() throws IOException {
+        try (ExecutionClient client = connect(2)) {
+            ExecutionClient.Execution execution = client.execute(new Request(1, Protocol.IMAGE, MACHINE, 0, 0, 1100, 4,
+                    Encoding.FIXED, Mode.BITS_32, image(ANSWER)));
+
+            assertEquals(Scheduler.State.FINISHED, execution.result().state());
+            assertEquals(42, word(execution.result().memory()));
+        }
+    }
+
+    @Test
+    void reportsAssemblerErrors() throws IOException {
+        try (ExecutionClient client = connect(2)) {
+            IOException error = assertThrows(IOException.class,
+                    () -> client.execute(Request.source(1, MACHINE, ".start\n    BOGUS EAX\n", 0, 0)));
+            assertTrue(error.getMessage().startsWith("Load failed"), error.getMessage());
+        }
+    }
+
+    @Test
+    void stopsAtTheInstructionBudget() throws IOException {
+        try (ExecutionClient client = connect(2)) {
+            Protocol.Result result = client.execute(spin(1, 10_000, 0)).result();
+
+            assertEquals(Scheduler.State.BUDGET_EXCEEDED, result.state());
+            assertEquals(10_000, result.instructions());
+        }
+    }
+
+    @Test
+    void stopsAtTheTimeout() throws IOException {
+        try (ExecutionClient client = connect(2)) {
+            assertEquals(Scheduler.State.DEADLINE_EXCEEDED, client.execute(spin(1, 0, 100)).result().state());
+        }
+    }
+
+    @Test
+    void cancelsRequestsOfClientsThatDisconnectWhileLoading() throws IOException, InterruptedException {
+        // One request at a time: the next one only runs if the spinning program of the closed connection is cancelled
+        MachineConfig big = new MachineConfig(1024, 1024, 1 << 20, 0);
+        StringBuilder source = new StringBuilder(".start\n");
+        source.append("    ADD EAX, 1\n".repeat(50_000));
+        source.append(".spin\n    JMP spin\n");
+
+        try (ExecutionClient client = connect(1)) {
+            try (ExecutionClient leaving = new ExecutionClient(address())) {
+                leaving.send(Request.source(1, big, source.toString(), 0, 0));
+                Thread.sleep(50); // Closed while the source is still being assembled
+            }
+            ExecutionClient.Execution execution = client.execute(Request.source(2, MACHINE, ANSWER, 1100, 4));
+
+            assertEquals(Scheduler.State.FINISHED, execution.result().state());
+            assertEquals(42, word(execution.result().memory()));
+        }
+    }
+
+    private ExecutionClient connect(int maxConcurrent) throws IOException {
+        server = new ExecutionServer(new InetSocketAddress("127.0.0.1", 0), 2, maxConcurrent, 0).start();
+        return new ExecutionClient(address());
+    }
+
+    private InetSocketAddress address() {
+        return new InetSocketAddress("127.0.0.1", server.getPort());
+    }
+
+    private static Request spin(int id, long budget, int timeoutMillis) {
+        return new Request(id, Protocol.SOURCE, MACHINE, budget, timeoutMillis, 0, 0,
+                Encoding.FIXED, Mode.BITS_32, SPIN.getBytes());
+    }
+
+    // The program region of a machine of the same size after assembling the source there
+    private static byte[] image(String source) throws IOException {
+        Motherboard machine = new Motherboard(MACHINE.stackSize(), MACHINE.dataSize(), MACHINE.programSize());
+        machine.getHostCalls().register(ExecutionServer.PRINT, "print", (cpu, ram) -> {
+        });
+        machine.boot();
+        machine.getCpu().getAssembler().assemble(new StringReader(source), Encoding.FIXED);
+
+        RAM ram = machine.getRam();
+        byte[] image = new byte[ram.getProgramEnd() + 1 - ram.getProgramStart()];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = ram.read(ram.getProgramStart() + i);
+        }
+        return image;
+    }
+
+    private static int word(byte[] memory) {
+        return ByteBuffer.wrap(memory).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+}